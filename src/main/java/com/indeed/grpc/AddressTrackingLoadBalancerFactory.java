@@ -0,0 +1,167 @@
+package com.indeed.grpc;
+
+import io.grpc.Attributes;
+import io.grpc.CallOptions;
+import io.grpc.ConnectivityState;
+import io.grpc.EquivalentAddressGroup;
+import io.grpc.LoadBalancer;
+import io.grpc.ManagedChannel;
+import io.grpc.NameResolver;
+import io.grpc.util.RoundRobinLoadBalancerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A {@link LoadBalancer.Factory} telling client interceptors which addresses
+ * every call was sent to.
+ *
+ * Interceptors can't see the subchannel picked for a call, and the remote
+ * address attribute of the transport is only set by grpc-netty on TLS
+ * connections. An interceptor that needs the address of a call, such as the
+ * ones of {@link com.indeed.grpc.metrics.ClientMetrics} and
+ * {@link com.indeed.grpc.consul.OutlierDetector}, adds a holder to the
+ * options of the call with {@link #track(CallOptions)}, and the pickers of
+ * the balancers built by this factory set the {@link EquivalentAddressGroup}
+ * of the picked subchannel into it. Interceptors then read it back with
+ * {@link #getPickedAddresses(CallOptions)} once the call closes.
+ *
+ * <pre>
+ * final ManagedChannel channel = NettyChannelBuilder.forTarget("consul:///MyServiceName")
+ *         .nameResolverFactory(consulNameResolverProvider)
+ *         .loadBalancerFactory(AddressTrackingLoadBalancerFactory.wrap(RoundRobinLoadBalancerFactory.getInstance()))
+ *         .intercept(clientMetrics.newClientInterceptor("consul:///MyServiceName"))
+ *         .build();
+ * </pre>
+ */
+@ThreadSafe
+public final class AddressTrackingLoadBalancerFactory extends LoadBalancer.Factory {
+    private static final CallOptions.Key<AtomicReference<EquivalentAddressGroup>> PICKED_ADDRESSES =
+            CallOptions.Key.of("picked-addresses", null);
+
+    private final LoadBalancer.Factory delegate;
+
+    private AddressTrackingLoadBalancerFactory(final LoadBalancer.Factory delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * @param delegate The balancer picking the subchannels.
+     * @return A factory of balancers tracking the picks of the delegate.
+     */
+    public static AddressTrackingLoadBalancerFactory wrap(final LoadBalancer.Factory delegate) {
+        return new AddressTrackingLoadBalancerFactory(checkNotNull(delegate, "delegate"));
+    }
+
+    /**
+     * @return A factory of round robin balancers tracking their picks.
+     */
+    public static AddressTrackingLoadBalancerFactory getInstance() {
+        return wrap(RoundRobinLoadBalancerFactory.getInstance());
+    }
+
+    @Override
+    public LoadBalancer newLoadBalancer(final LoadBalancer.Helper helper) {
+        return delegate.newLoadBalancer(new TrackingHelper(helper));
+    }
+
+    /**
+     * Interceptors of the same call share the holder.
+     *
+     * @param callOptions The options of a call.
+     * @return The options, with a holder for the addresses the call is sent
+     *         to.
+     */
+    public static CallOptions track(final CallOptions callOptions) {
+        if (callOptions.getOption(PICKED_ADDRESSES) != null) {
+            return callOptions;
+        }
+        return callOptions.withOption(PICKED_ADDRESSES, new AtomicReference<>());
+    }
+
+    /**
+     * @param callOptions The options returned by {@link #track(CallOptions)}.
+     * @return The addresses of the subchannel last picked for the call, or
+     *         null if none was picked, or the balancer of the channel doesn't
+     *         come from this factory.
+     */
+    @Nullable
+    public static EquivalentAddressGroup getPickedAddresses(final CallOptions callOptions) {
+        final AtomicReference<EquivalentAddressGroup> picked = callOptions.getOption(PICKED_ADDRESSES);
+        return picked == null ? null : picked.get();
+    }
+
+    private static final class TrackingPicker extends LoadBalancer.SubchannelPicker {
+        private final LoadBalancer.SubchannelPicker delegate;
+
+        private TrackingPicker(final LoadBalancer.SubchannelPicker delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public LoadBalancer.PickResult pickSubchannel(final LoadBalancer.PickSubchannelArgs args) {
+            final LoadBalancer.PickResult result = delegate.pickSubchannel(args);
+
+            final AtomicReference<EquivalentAddressGroup> picked = args.getCallOptions().getOption(PICKED_ADDRESSES);
+            if (picked != null && result.getSubchannel() != null) {
+                // a call waiting for a ready subchannel is picked again, the last pick is the one used
+                picked.set(result.getSubchannel().getAddresses());
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Wraps the pickers of the delegate balancer.
+     */
+    private static final class TrackingHelper extends LoadBalancer.Helper {
+        private final LoadBalancer.Helper helper;
+
+        private TrackingHelper(final LoadBalancer.Helper helper) {
+            this.helper = helper;
+        }
+
+        @Override
+        public LoadBalancer.Subchannel createSubchannel(final EquivalentAddressGroup addrs, final Attributes attrs) {
+            return helper.createSubchannel(addrs, attrs);
+        }
+
+        @Override
+        public void updateSubchannelAddresses(final LoadBalancer.Subchannel subchannel, final EquivalentAddressGroup addrs) {
+            helper.updateSubchannelAddresses(subchannel, addrs);
+        }
+
+        @Override
+        public ManagedChannel createOobChannel(final EquivalentAddressGroup eag, final String authority) {
+            return helper.createOobChannel(eag, authority);
+        }
+
+        @Override
+        public void updateOobChannelAddresses(final ManagedChannel channel, final EquivalentAddressGroup eag) {
+            helper.updateOobChannelAddresses(channel, eag);
+        }
+
+        @Override
+        public void updateBalancingState(final ConnectivityState newState, final LoadBalancer.SubchannelPicker newPicker) {
+            helper.updateBalancingState(newState, new TrackingPicker(newPicker));
+        }
+
+        @Override
+        public void runSerialized(final Runnable task) {
+            helper.runSerialized(task);
+        }
+
+        @Override
+        public NameResolver.Factory getNameResolverFactory() {
+            return helper.getNameResolverFactory();
+        }
+
+        @Override
+        public String getAuthority() {
+            return helper.getAuthority();
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.indeed.grpc;
+
+import io.grpc.ForwardingServerCallListener.SimpleForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link LoadReporter} that is also a {@link ServerInterceptor} counting the
+ * calls currently being handled by the server it's installed on.
+ *
+ * The queue depth is read from the executor handling the calls, when one is
+ * provided. The cpu utilization is the recent cpu load of the process when the
+ * JVM exposes it, or the system load average divided by the number of
+ * processors otherwise.
+ */
+@ThreadSafe
+public final class InFlightLoadReporter implements LoadReporter, ServerInterceptor {
+    private final AtomicInteger inFlightRpcs = new AtomicInteger();
+
+    @Nullable
+    private final ThreadPoolExecutor executor;
+    private final OperatingSystemMXBean operatingSystem = ManagementFactory.getOperatingSystemMXBean();
+
+    public InFlightLoadReporter() {
+        this(null);
+    }
+
+    /**
+     * @param executor The executor the server hands calls to, used to report
+     *                 the queue depth.
+     */
+    public InFlightLoadReporter(@Nullable final ThreadPoolExecutor executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(
+            final ServerCall<ReqT, RespT> call,
+            final Metadata headers,
+            final ServerCallHandler<ReqT, RespT> next
+    ) {
+        inFlightRpcs.incrementAndGet();
+
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final Runnable complete = () -> {
+            if (done.compareAndSet(false, true)) {
+                inFlightRpcs.decrementAndGet();
+            }
+        };
+
+        final ServerCall.Listener<ReqT> listener;
+        try {
+            listener = next.startCall(call, headers);
+        } catch (final RuntimeException e) {
+            complete.run();
+            throw e;
+        }
+
+        return new SimpleForwardingServerCallListener<ReqT>(listener) {
+            @Override
+            public void onComplete() {
+                complete.run();
+                super.onComplete();
+            }
+
+            @Override
+            public void onCancel() {
+                complete.run();
+                super.onCancel();
+            }
+        };
+    }
+
+    @Override
+    public ServerLoad sample() {
+        final int queueDepth = executor == null ? 0 : executor.getQueue().size();
+        return new ServerLoad(inFlightRpcs.get(), queueDepth, cpuUtilization());
+    }
+
+    private double cpuUtilization() {
+        if (operatingSystem instanceof com.sun.management.OperatingSystemMXBean) {
+            final double load = ((com.sun.management.OperatingSystemMXBean) operatingSystem).getProcessCpuLoad();
+            if (load >= 0) {
+                return load;
+            }
+        }
+
+        final double loadAverage = operatingSystem.getSystemLoadAverage();
+        if (loadAverage < 0) {
+            return 0;
+        }
+        return Math.min(1, loadAverage / operatingSystem.getAvailableProcessors());
+    }
+}
@@ -0,0 +1,15 @@
+package com.indeed.grpc;
+
+/**
+ * Samples the current load of the process. Called on every heartbeat, so
+ * implementations must be cheap.
+ *
+ * @see InFlightLoadReporter
+ */
+@FunctionalInterface
+public interface LoadReporter {
+    /**
+     * @return The current load of the process.
+     */
+    ServerLoad sample();
+}
@@ -0,0 +1,138 @@
+package com.indeed.grpc;
+
+import com.google.common.base.Splitter;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A cheap snapshot of how loaded a server process is, as sampled by a
+ * {@link LoadReporter}.
+ *
+ * Loads are published in a compact text form, for example:
+ *
+ * <pre>inflight=12 queue=3 cpu=0.42</pre>
+ *
+ * which can be read back with {@link #parse(String)}.
+ */
+@Immutable
+public final class ServerLoad {
+    private static final Splitter.MapSplitter SPLITTER = Splitter.on(' ')
+            .omitEmptyStrings()
+            .withKeyValueSeparator('=');
+
+    private final int inFlightRpcs;
+    private final int queueDepth;
+    private final double cpuUtilization;
+    private final String formatted;
+
+    /**
+     * @param inFlightRpcs The number of calls currently being handled.
+     * @param queueDepth The number of calls or tasks waiting to be handled.
+     * @param cpuUtilization The cpu utilization of the process, within [0, 1].
+     */
+    public ServerLoad(
+            final int inFlightRpcs,
+            final int queueDepth,
+            final double cpuUtilization
+    ) {
+        this.inFlightRpcs = inFlightRpcs;
+        this.queueDepth = queueDepth;
+        this.cpuUtilization = cpuUtilization;
+        this.formatted = String.format(Locale.US, "inflight=%d queue=%d cpu=%.2f", inFlightRpcs, queueDepth, cpuUtilization);
+    }
+
+    public int getInFlightRpcs() {
+        return inFlightRpcs;
+    }
+
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    public double getCpuUtilization() {
+        return cpuUtilization;
+    }
+
+    /**
+     * Compare this load to a previously published one. Small absolute changes
+     * are never significant so that an idle server doesn't flap between 0 and
+     * 1 in-flight calls.
+     *
+     * @param previous The previously published load.
+     * @param threshold The relative change, within [0, 1], above which a
+     *                  change is significant.
+     * @return True if any of the signals changed by more than the threshold.
+     */
+    public boolean differsSignificantly(final ServerLoad previous, final double threshold) {
+        return differsSignificantly(inFlightRpcs, previous.inFlightRpcs, threshold, 2)
+                || differsSignificantly(queueDepth, previous.queueDepth, threshold, 2)
+                || differsSignificantly(cpuUtilization, previous.cpuUtilization, threshold, 0.05);
+    }
+
+    private static boolean differsSignificantly(
+            final double current,
+            final double previous,
+            final double threshold,
+            final double minimumDelta
+    ) {
+        final double delta = Math.abs(current - previous);
+        return delta >= minimumDelta && delta > Math.max(Math.abs(previous), Math.abs(current)) * threshold;
+    }
+
+    /**
+     * @param formatted A load as formatted by {@link #toString()}.
+     * @return The parsed load, or null if the text is not a load.
+     */
+    @Nullable
+    public static ServerLoad parse(@Nullable final String formatted) {
+        if (formatted == null) {
+            return null;
+        }
+
+        try {
+            final Map<String, String> values = SPLITTER.split(formatted.trim());
+            final String inFlightRpcs = values.get("inflight");
+            final String queueDepth = values.get("queue");
+            final String cpuUtilization = values.get("cpu");
+            if (inFlightRpcs == null || queueDepth == null || cpuUtilization == null) {
+                return null;
+            }
+
+            return new ServerLoad(
+                    Integer.parseInt(inFlightRpcs),
+                    Integer.parseInt(queueDepth),
+                    Double.parseDouble(cpuUtilization)
+            );
+        } catch (final IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        final ServerLoad that = (ServerLoad) o;
+        return formatted.equals(that.formatted);
+    }
+
+    @Override
+    public int hashCode() {
+        return formatted.hashCode();
+    }
+
+    /**
+     * @return The compact text form of this load. Computed once.
+     */
+    @Override
+    public String toString() {
+        return formatted;
+    }
+}
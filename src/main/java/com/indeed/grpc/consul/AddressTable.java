@@ -0,0 +1,194 @@
+package com.indeed.grpc.consul;
+
+import com.ecwid.consul.v1.catalog.model.CatalogService;
+import com.google.common.base.Strings;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import io.grpc.EquivalentAddressGroup;
+
+import javax.annotation.concurrent.Immutable;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The addresses of the instances of a service, as a table of hosts and ports
+ * sorted by host then port, without duplicates.
+ *
+ * Resolvers poll consul far more often than the instances of a service
+ * change. {@link #matches(List)} checks whether a catalog response contains
+ * the same addresses as the table in a single pass, without allocating, so
+ * that only responses that changed are turned into a new table.
+ *
+ * Hosts are interned since the same hosts are shared by the tables of every
+ * service running on them.
+ */
+@Immutable
+final class AddressTable {
+    private static final Interner<String> HOSTS = Interners.newWeakInterner();
+
+    private final String[] hosts;
+    private final int[] ports;
+
+    // describe the catalog response the table was built from, duplicates included
+    private final int sourceCount;
+    private final long sourceFingerprint;
+
+    private AddressTable(
+            final String[] hosts,
+            final int[] ports,
+            final int sourceCount,
+            final long sourceFingerprint
+    ) {
+        this.hosts = hosts;
+        this.ports = ports;
+        this.sourceCount = sourceCount;
+        this.sourceFingerprint = sourceFingerprint;
+    }
+
+    /**
+     * @param services The instances of a service, as read from the catalog.
+     * @return The table of the addresses of the instances.
+     */
+    static AddressTable of(final List<CatalogService> services) {
+        final int count = services.size();
+        final Integer[] order = new Integer[count];
+        final String[] unsortedHosts = new String[count];
+        final int[] unsortedPorts = new int[count];
+        for (int i = 0; i < count; i++) {
+            final CatalogService service = services.get(i);
+            order[i] = i;
+            unsortedHosts[i] = HOSTS.intern(host(service));
+            unsortedPorts[i] = port(service);
+        }
+
+        Arrays.sort(order, Comparator
+                .<Integer, String>comparing((i) -> unsortedHosts[i])
+                .thenComparingInt((i) -> unsortedPorts[i]));
+
+        final String[] hosts = new String[count];
+        final int[] ports = new int[count];
+        int size = 0;
+        for (final int i : order) {
+            if (size > 0 && hosts[size - 1].equals(unsortedHosts[i]) && ports[size - 1] == unsortedPorts[i]) {
+                continue;
+            }
+            hosts[size] = unsortedHosts[i];
+            ports[size] = unsortedPorts[i];
+            size++;
+        }
+
+        return new AddressTable(
+                Arrays.copyOf(hosts, size),
+                Arrays.copyOf(ports, size),
+                count,
+                fingerprint(services)
+        );
+    }
+
+    /**
+     * @param services The instances of a service, as read from the catalog.
+     * @return True if the instances have the same addresses as the response
+     *         the table was built from.
+     */
+    boolean matches(final List<CatalogService> services) {
+        if (services.size() != sourceCount || fingerprint(services) != sourceFingerprint) {
+            return false;
+        }
+
+        for (int i = 0; i < services.size(); i++) {
+            final CatalogService service = services.get(i);
+            if (indexOf(host(service), port(service)) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param other Another table.
+     * @return True if both tables hold the same addresses.
+     */
+    boolean hasSameAddresses(final AddressTable other) {
+        return Arrays.equals(hosts, other.hosts) && Arrays.equals(ports, other.ports);
+    }
+
+    private int indexOf(final String host, final int port) {
+        int low = 0;
+        int high = hosts.length - 1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            int comparison = hosts[middle].compareTo(host);
+            if (comparison == 0) {
+                comparison = Integer.compare(ports[middle], port);
+            }
+
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return An order-independent hash of the addresses of the instances.
+     */
+    private static long fingerprint(final List<CatalogService> services) {
+        long fingerprint = 0;
+        for (int i = 0; i < services.size(); i++) {
+            final CatalogService service = services.get(i);
+            fingerprint += mix(host(service).hashCode() * 31L + port(service));
+        }
+        return fingerprint;
+    }
+
+    // finalizer of murmur3, spreads the bits so that sums of similar addresses don't collide
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+
+    private static String host(final CatalogService service) {
+        // use service address then fall back to address
+        final String serviceAddress = service.getServiceAddress();
+        return Strings.isNullOrEmpty(serviceAddress) ? Strings.nullToEmpty(service.getAddress()) : serviceAddress;
+    }
+
+    private static int port(final CatalogService service) {
+        final Integer port = service.getServicePort();
+        return port == null ? 0 : port;
+    }
+
+    int size() {
+        return hosts.length;
+    }
+
+    String getHost(final int index) {
+        return hosts[index];
+    }
+
+    int getPort(final int index) {
+        return ports[index];
+    }
+
+    /**
+     * @return One address group per address of the table, in order.
+     */
+    List<EquivalentAddressGroup> toAddressGroups() {
+        final List<EquivalentAddressGroup> groups = new ArrayList<>(hosts.length);
+        for (int i = 0; i < hosts.length; i++) {
+            groups.add(new EquivalentAddressGroup(new InetSocketAddress(hosts[i], ports[i])));
+        }
+        return groups;
+    }
+}
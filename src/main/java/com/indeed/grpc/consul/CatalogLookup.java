@@ -0,0 +1,244 @@
+package com.indeed.grpc.consul;
+
+import com.ecwid.consul.SingleUrlParameters;
+import com.ecwid.consul.UrlParameters;
+import com.ecwid.consul.json.GsonFactory;
+import com.ecwid.consul.transport.RawResponse;
+import com.ecwid.consul.v1.ConsulRawClient;
+import com.ecwid.consul.v1.OperationException;
+import com.ecwid.consul.v1.QueryParams;
+import com.ecwid.consul.v1.Response;
+import com.ecwid.consul.v1.catalog.CatalogClient;
+import com.ecwid.consul.v1.catalog.model.CatalogService;
+import com.ecwid.consul.v1.health.HealthClient;
+import com.ecwid.consul.v1.health.model.Check;
+import com.ecwid.consul.v1.health.model.HealthService;
+import com.ecwid.consul.v1.query.QueryClient;
+import com.ecwid.consul.v1.query.model.QueryExecution;
+import com.ecwid.consul.v1.query.model.QueryNode;
+import com.google.gson.reflect.TypeToken;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Reads the instances of a service from the catalog or the health endpoint of
+ * a single consul endpoint, or from the execution of a prepared query.
+ *
+ * The catalog lists every registered instance whatever the status of its
+ * checks, while the health endpoint only lists the instances whose checks are
+ * all passing. Instances that are warming up, draining or in maintenance are
+ * only left out by the latter.
+ */
+@FunctionalInterface
+interface CatalogLookup {
+    /**
+     * @param queryParams The consistency mode of the read.
+     * @return The matching instances of the service.
+     */
+    Response<List<CatalogService>> lookup(QueryParams queryParams);
+
+    /**
+     * @return A lookup filtering on at most one tag, through the ecwid client.
+     */
+    static CatalogLookup of(
+            final CatalogClient catalogClient,
+            final String serviceName,
+            final Optional<String> tag
+    ) {
+        return (queryParams) -> tag
+                .map(t -> catalogClient.getCatalogService(serviceName, t, queryParams))
+                .orElseGet(() -> catalogClient.getCatalogService(serviceName, queryParams));
+    }
+
+    /**
+     * @return A lookup of the instances whose checks are all passing,
+     *         filtering on at most one tag, through the ecwid client.
+     */
+    static CatalogLookup passing(
+            final HealthClient healthClient,
+            final String serviceName,
+            final Optional<String> tag
+    ) {
+        return (queryParams) -> {
+            final Response<List<HealthService>> response = tag
+                    .map(t -> healthClient.getHealthServices(serviceName, t, true, queryParams))
+                    .orElseGet(() -> healthClient.getHealthServices(serviceName, true, queryParams));
+
+            return new Response<>(
+                    toCatalogServices(response.getValue()),
+                    response.getConsulIndex(),
+                    response.isConsulKnownLeader(),
+                    response.getConsulLastContact()
+            );
+        };
+    }
+
+    /**
+     * The ecwid client only supports filtering on a single tag, so this
+     * lookup sends the request itself. The filtering is done by consul.
+     *
+     * The filter expression applies to the entries of the endpoint read: over
+     * {@code ServiceMeta} or {@code NodeMeta} in the catalog, over
+     * {@code Service.Meta} or {@code Node.Meta} in the health endpoint.
+     *
+     * Agents older than 1.5 ignore the filter expression, and may ignore all
+     * but one tag. The instances missing any of the tags are dropped, with a
+     * warning, as the filter expression was most likely ignored as well.
+     *
+     * @param tags The tags every instance must have.
+     * @param filter A consul filter expression.
+     * @param passing True to read the health endpoint, and only get the
+     *                instances whose checks are all passing.
+     * @return A lookup filtering on any number of tags and on a filter
+     *         expression.
+     */
+    static CatalogLookup filtered(
+            final ConsulRawClient rawClient,
+            final String serviceName,
+            final List<String> tags,
+            @Nullable final String filter,
+            final boolean passing
+    ) {
+        final String path = (passing ? "/v1/health/service/" : "/v1/catalog/service/") + serviceName;
+        final Type servicesType = passing
+                ? new TypeToken<List<HealthService>>() {}.getType()
+                : new TypeToken<List<CatalogService>>() {}.getType();
+
+        final List<UrlParameters> filterParameters = new ArrayList<>(tags.size() + 2);
+        if (passing) {
+            filterParameters.add(new SingleUrlParameters("passing"));
+        }
+        tags.forEach((tag) -> filterParameters.add(new SingleUrlParameters("tag", tag)));
+        if (filter != null) {
+            filterParameters.add(new SingleUrlParameters("filter", filter));
+        }
+
+        final AtomicBoolean warned = new AtomicBoolean(false);
+
+        return (queryParams) -> {
+            final UrlParameters[] parameters = new UrlParameters[filterParameters.size() + 1];
+            parameters[0] = queryParams;
+            for (int i = 0; i < filterParameters.size(); i++) {
+                parameters[i + 1] = filterParameters.get(i);
+            }
+
+            final RawResponse rawResponse = rawClient.makeGetRequest(path, parameters);
+            if (rawResponse.getStatusCode() != 200) {
+                throw new OperationException(rawResponse);
+            }
+
+            final List<CatalogService> services = passing
+                    ? toCatalogServices(GsonFactory.getGson().<List<HealthService>>fromJson(rawResponse.getContent(), servicesType))
+                    : GsonFactory.getGson().<List<CatalogService>>fromJson(rawResponse.getContent(), servicesType);
+            // instances without tags are only excluded when tags are required
+            final boolean excluded = !tags.isEmpty() && services.removeIf((service) ->
+                    service.getServiceTags() == null || !service.getServiceTags().containsAll(tags)
+            );
+            if (excluded && warned.compareAndSet(false, true)) {
+                LoggerFactory.getLogger(CatalogLookup.class).warn(
+                        "The consul agent returned instances of {} without the tags {}, it probably ignores " +
+                                "the filter {} too. Filtering requires consul 1.5 or later.",
+                        serviceName, tags, filter
+                );
+            }
+            return new Response<>(services, rawResponse);
+        };
+    }
+
+    /**
+     * The prepared query decides which instances are returned, including the
+     * failover to other datacenters, so the lookup only converts its nodes
+     * into catalog instances.
+     *
+     * @param queryName The name or the ID of the prepared query.
+     * @return A lookup executing the prepared query.
+     */
+    static CatalogLookup preparedQuery(
+            final QueryClient queryClient,
+            final String queryName
+    ) {
+        return (queryParams) -> {
+            final Response<QueryExecution> response = queryClient.executePreparedQuery(queryName, queryParams);
+
+            final List<QueryNode> nodes = response.getValue() == null || response.getValue().getNodes() == null
+                    ? Collections.emptyList()
+                    : response.getValue().getNodes();
+            final List<CatalogService> services = new ArrayList<>(nodes.size());
+            for (final QueryNode node : nodes) {
+                services.add(toCatalogService(node));
+            }
+
+            return new Response<>(
+                    services,
+                    response.getConsulIndex(),
+                    response.isConsulKnownLeader(),
+                    response.getConsulLastContact()
+            );
+        };
+    }
+
+    /**
+     * The instances with a check that isn't passing are dropped, in case the
+     * agent returned them anyway.
+     */
+    static List<CatalogService> toCatalogServices(@Nullable final List<HealthService> healthServices) {
+        if (healthServices == null) {
+            return new ArrayList<>();
+        }
+
+        final List<CatalogService> services = new ArrayList<>(healthServices.size());
+        for (final HealthService healthService : healthServices) {
+            if (isPassing(healthService)) {
+                services.add(toCatalogService(healthService));
+            }
+        }
+        return services;
+    }
+
+    static boolean isPassing(final HealthService healthService) {
+        if (healthService.getChecks() == null) {
+            return true;
+        }
+        return healthService.getChecks().stream()
+                .allMatch((check) -> check.getStatus() == Check.CheckStatus.PASSING);
+    }
+
+    static CatalogService toCatalogService(final HealthService healthService) {
+        final CatalogService service = new CatalogService();
+        if (healthService.getNode() != null) {
+            service.setNode(healthService.getNode().getNode());
+            service.setAddress(healthService.getNode().getAddress());
+        }
+        if (healthService.getService() != null) {
+            service.setServiceId(healthService.getService().getId());
+            service.setServiceName(healthService.getService().getService());
+            service.setServiceTags(healthService.getService().getTags());
+            service.setServiceAddress(healthService.getService().getAddress());
+            service.setServicePort(healthService.getService().getPort());
+        }
+        return service;
+    }
+
+    static CatalogService toCatalogService(final QueryNode queryNode) {
+        final CatalogService service = new CatalogService();
+        if (queryNode.getNode() != null) {
+            service.setNode(queryNode.getNode().getNode());
+            service.setAddress(queryNode.getNode().getAddress());
+        }
+        if (queryNode.getService() != null) {
+            service.setServiceId(queryNode.getService().getId());
+            service.setServiceName(queryNode.getService().getService());
+            service.setServiceTags(queryNode.getService().getTags());
+            service.setServiceAddress(queryNode.getService().getAddress());
+            service.setServicePort(queryNode.getService().getPort());
+        }
+        return service;
+    }
+}
@@ -2,6 +2,7 @@ package com.indeed.grpc.consul;
 
 import com.ecwid.consul.transport.TLSConfig;
 import com.ecwid.consul.v1.ConsulClient;
+import com.ecwid.consul.v1.ConsulRawClient;
 
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
@@ -15,6 +16,9 @@ import java.util.concurrent.ConcurrentMap;
  * instances will reduce extra object cruft by sharing a singleton for a given
  * {@code host} / {@code port} / {@link TLSConfig} triplet.
  *
+ * The {@link ConsulClient} and the {@link ConsulRawClient} of a triplet share
+ * a single HTTP transport, and so a single connection pool.
+ *
  * TODO: This should probably be moved to the ecwid library for everyone to share.
  *
  * @author jpitz
@@ -24,6 +28,7 @@ public final class ConsulClientManager {
     private static final ConsulClientManager INSTANCE = new ConsulClientManager();
 
     private final ConcurrentMap<IndexKey, ConsulClient> index = new ConcurrentHashMap<>();
+    private final ConcurrentMap<IndexKey, ConsulRawClient> rawIndex = new ConcurrentHashMap<>();
 
     private ConsulClientManager() {}
 
@@ -61,11 +66,37 @@ public final class ConsulClientManager {
             final int port,
             @Nullable final TLSConfig tlsConfig
     ) {
-        return INSTANCE.index.computeIfAbsent(new IndexKey(host, port, tlsConfig), (key) -> {
-            if (tlsConfig == null) {
-                return new ConsulClient(host, port);
+        return INSTANCE.index.computeIfAbsent(
+                new IndexKey(host, port, tlsConfig),
+                (key) -> new ConsulClient(INSTANCE.getRawClient(key))
+        );
+    }
+
+    /**
+     * Get or create a plaintext {@link ConsulRawClient} for the given {@code
+     * host} / {@code port} pair, used for the requests the
+     * {@link ConsulClient} doesn't support. It shares the transport of the
+     * {@link ConsulClient} returned by {@link #getInstance(String, int)}.
+     *
+     * @param host The hostname of the consul instance we are attempting to
+     *             connect to.
+     * @param port The port of the consul instance we are attempting to connect
+     *             to.
+     * @return The raw consul client for the given pair.
+     */
+    public static ConsulRawClient getRawInstance(
+            final String host,
+            final int port
+    ) {
+        return INSTANCE.getRawClient(new IndexKey(host, port, null));
+    }
+
+    private ConsulRawClient getRawClient(final IndexKey key) {
+        return rawIndex.computeIfAbsent(key, (k) -> {
+            if (k.tlsConfig == null) {
+                return new ConsulRawClient(k.host, k.port);
             } else {
-                return new ConsulClient(host, port, tlsConfig);
+                return new ConsulRawClient(k.host, k.port, k.tlsConfig);
             }
         });
     }
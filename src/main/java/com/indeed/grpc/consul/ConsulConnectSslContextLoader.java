@@ -0,0 +1,807 @@
+package com.indeed.grpc.consul;
+
+import com.ecwid.consul.SingleUrlParameters;
+import com.ecwid.consul.UrlParameters;
+import com.ecwid.consul.json.GsonFactory;
+import com.ecwid.consul.transport.RawResponse;
+import com.ecwid.consul.v1.ConsulRawClient;
+import com.ecwid.consul.v1.OperationException;
+import com.ecwid.consul.v1.QueryParams;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.gson.annotations.SerializedName;
+import com.indeed.grpc.netty.SslContextReloader;
+import io.netty.handler.ssl.ClientAuth;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.util.SimpleTrustManagerFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.net.ssl.ManagerFactoryParameters;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509ExtendedTrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Builds {@link SslContext}s from the certificates consul Connect issues to a
+ * service, as an {@link SslContextReloader.ExceptionalSupplier}.
+ *
+ * The leaf certificate of the service and the roots of the Connect CA are
+ * read from the local agent. Contexts present the leaf certificate and only
+ * trust peers whose certificate was issued by one of the roots. A new context
+ * is only built once the agent returned a new leaf certificate or new roots,
+ * so that the reloader sees no change otherwise.
+ *
+ * {@link #watch(SslContextReloader, Executor)} waits on blocking queries for
+ * the agent to rotate the leaf certificate or the roots, and reloads as soon
+ * as it does, without polling.
+ *
+ * <pre>
+ * final ConsulConnectSslContextLoader loader = ConsulConnectSslContextLoader.newBuilder()
+ *         .withConsulClient(ConsulClientManager.getRawInstance("localhost", 8500))
+ *         .withServiceName("my-service")
+ *         .withConfigurator(GrpcSslContexts::configure)
+ *         .build();
+ * final SslContextReloader reloader = new SslContextReloader("connect", loader);
+ * loader.watch(reloader, ConsulExecutors.getSharedBlockingIoExecutor());
+ * </pre>
+ *
+ * Connect certificates identify services by a SPIFFE URI rather than by a
+ * host name, which the host name verification of grpc can't match. Client
+ * contexts verify the SPIFFE URI of the server against the
+ * {@code targetServiceName} instead, and ignore the host name.
+ */
+@ThreadSafe
+public final class ConsulConnectSslContextLoader implements SslContextReloader.ExceptionalSupplier<SslContext>, Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConsulConnectSslContextLoader.class);
+
+    private static final long WATCH_WAIT_SECONDS = TimeUnit.MINUTES.toSeconds(5);
+    private static final long MIN_RETRY_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(1);
+    private static final long MAX_RETRY_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private static final Pattern PEM = Pattern.compile(
+            "-----BEGIN ([A-Z0-9 ]+)-----(.*?)-----END \\1-----",
+            Pattern.DOTALL
+    );
+
+    private static final byte[] EC_PUBLIC_KEY_OID = {0x06, 0x07, 0x2a, (byte) 0x86, 0x48, (byte) 0xce, 0x3d, 0x02, 0x01};
+    private static final byte[] RSA_ENCRYPTION_OID = {0x06, 0x09, 0x2a, (byte) 0x86, 0x48, (byte) 0x86, (byte) 0xf7, 0x0d, 0x01, 0x01, 0x01};
+    private static final byte[] NULL = {0x05, 0x00};
+    private static final byte[] VERSION_ZERO = {0x02, 0x01, 0x00};
+
+    /**
+     * Whether contexts are built for the client or for the server side of
+     * connections.
+     */
+    public enum Side {
+        CLIENT,
+        SERVER
+    }
+
+    private final ConsulRawClient consulClient;
+    private final Side side;
+    @Nullable
+    private final String targetServiceName;
+    private final UnaryOperator<SslContextBuilder> configurator;
+
+    private final Watched<Leaf> leaf;
+    private final Watched<Roots> roots;
+
+    @GuardedBy("this")
+    @Nullable
+    private Leaf builtLeaf = null;
+    @GuardedBy("this")
+    @Nullable
+    private Roots builtRoots = null;
+    @GuardedBy("this")
+    @Nullable
+    private SslContext built = null;
+
+    private volatile boolean closed = false;
+
+    ConsulConnectSslContextLoader(
+            final ConsulRawClient consulClient,
+            final String serviceName,
+            final Side side,
+            @Nullable final String targetServiceName,
+            @Nullable final String consulToken,
+            final UnaryOperator<SslContextBuilder> configurator
+    ) {
+        this.consulClient = consulClient;
+        this.side = side;
+        this.targetServiceName = targetServiceName;
+        this.configurator = configurator;
+        this.leaf = new Watched<>("/v1/agent/connect/ca/leaf/" + serviceName, consulToken, Leaf::parse);
+        this.roots = new Watched<>("/v1/agent/connect/ca/roots", consulToken, Roots::parse);
+    }
+
+    /**
+     * Read the leaf certificate and the roots if not read yet, then build a
+     * context from them, unless they didn't change since the last one.
+     *
+     * @return The context for the current leaf certificate and roots.
+     */
+    @Override
+    public SslContext get() throws Exception {
+        if (leaf.value == null) {
+            refresh(leaf, 0);
+        }
+        if (roots.value == null) {
+            refresh(roots, 0);
+        }
+
+        return build(checkNotNull(leaf.value), checkNotNull(roots.value));
+    }
+
+    private synchronized SslContext build(final Leaf currentLeaf, final Roots currentRoots) throws Exception {
+        if (built != null && currentLeaf == builtLeaf && currentRoots == builtRoots) {
+            return built;
+        }
+
+        final SslContextBuilder builder;
+        if (side == Side.SERVER) {
+            builder = SslContextBuilder.forServer(currentLeaf.key, currentLeaf.chain)
+                    .clientAuth(ClientAuth.REQUIRE)
+                    .trustManager(currentRoots.certificates);
+        } else {
+            checkArgument(currentRoots.trustDomain != null, "roots response without a trust domain");
+            final SpiffeTrustManager trustManager = new SpiffeTrustManager(
+                    newTrustManager(currentRoots.certificates),
+                    currentRoots.trustDomain,
+                    checkNotNull(targetServiceName, "targetServiceName")
+            );
+            builder = SslContextBuilder.forClient()
+                    .keyManager(currentLeaf.key, currentLeaf.chain)
+                    .trustManager(new SimpleTrustManagerFactory() {
+                        @Override
+                        protected void engineInit(final KeyStore keyStore) {}
+
+                        @Override
+                        protected void engineInit(final ManagerFactoryParameters managerFactoryParameters) {}
+
+                        @Override
+                        protected TrustManager[] engineGetTrustManagers() {
+                            return new TrustManager[] {trustManager};
+                        }
+                    });
+        }
+
+        built = configurator.apply(builder).build();
+        builtLeaf = currentLeaf;
+        builtRoots = currentRoots;
+        return built;
+    }
+
+    /**
+     * @return A trust manager validating chains against the given roots only.
+     */
+    private static X509TrustManager newTrustManager(final X509Certificate[] roots) throws GeneralSecurityException, IOException {
+        final KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        keyStore.load(null, null);
+        for (int i = 0; i < roots.length; i++) {
+            keyStore.setCertificateEntry("root-" + i, roots[i]);
+        }
+
+        final TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        factory.init(keyStore);
+        for (final TrustManager trustManager : factory.getTrustManagers()) {
+            if (trustManager instanceof X509TrustManager) {
+                return (X509TrustManager) trustManager;
+            }
+        }
+        throw new IllegalStateException("no X.509 trust manager available");
+    }
+
+    /**
+     * Wait for the agent to rotate the leaf certificate or the roots, and
+     * reload the reloader whenever it does, until {@link #close()}.
+     *
+     * Each of the two watches blocks a thread of the executor for as long
+     * as the loader isn't closed, see
+     * {@link ConsulExecutors#getSharedBlockingIoExecutor()}.
+     *
+     * @param reloader A reloader loading its contexts from this loader.
+     * @param executor The executor the blocking queries are made on.
+     */
+    public void watch(final SslContextReloader reloader, final Executor executor) {
+        executor.execute(() -> watch(leaf, reloader));
+        executor.execute(() -> watch(roots, reloader));
+    }
+
+    private void watch(final Watched<?> watched, final SslContextReloader reloader) {
+        long retryDelayMillis = MIN_RETRY_DELAY_MILLIS;
+        while (!closed) {
+            try {
+                if (refresh(watched, WATCH_WAIT_SECONDS) && !closed) {
+                    LOGGER.info("Consul Connect rotated {}, reloading", watched.path);
+                    reloader.loadAsync();
+                }
+                retryDelayMillis = MIN_RETRY_DELAY_MILLIS;
+            } catch (final Exception e) {
+                LOGGER.error("Failed to watch {}, retrying in {}ms", watched.path, retryDelayMillis, e);
+                try {
+                    Thread.sleep(retryDelayMillis);
+                } catch (final InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                retryDelayMillis = Math.min(2 * retryDelayMillis, MAX_RETRY_DELAY_MILLIS);
+            }
+        }
+    }
+
+    /**
+     * @param watched The leaf certificate or the roots.
+     * @param waitSeconds How long the agent may wait for a change, 0 to read
+     *                    the current value.
+     * @return True if the value changed.
+     */
+    @VisibleForTesting
+    boolean refresh(final Watched<?> watched, final long waitSeconds) throws Exception {
+        final long index = watched.index;
+        final UrlParameters queryParams = waitSeconds > 0 && index > 0
+                ? new QueryParams(waitSeconds, index)
+                : QueryParams.DEFAULT;
+
+        final RawResponse rawResponse = watched.token == null
+                ? consulClient.makeGetRequest(watched.path, queryParams)
+                : consulClient.makeGetRequest(watched.path, queryParams, new SingleUrlParameters("token", watched.token));
+        if (rawResponse.getStatusCode() != 200) {
+            throw new OperationException(rawResponse);
+        }
+
+        final Long newIndex = rawResponse.getConsulIndex();
+        if (waitSeconds > 0 && (newIndex == null || newIndex == 0)) {
+            // nothing to block on, retry later rather than spinning
+            throw new IllegalStateException(watched.path + " returned no index");
+        }
+        if (watched.value != null && newIndex != null && newIndex == index) {
+            return false;
+        }
+
+        watched.update(rawResponse.getContent(), newIndex == null ? 0 : newIndex);
+        return true;
+    }
+
+    @VisibleForTesting
+    Watched<Leaf> getLeaf() {
+        return leaf;
+    }
+
+    @VisibleForTesting
+    Watched<Roots> getRoots() {
+        return roots;
+    }
+
+    /**
+     * Stop watching. Watches stop once their pending blocking query returns.
+     */
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    /**
+     * A value read from the agent, with the index of the blocking query it
+     * was read from.
+     */
+    @VisibleForTesting
+    static final class Watched<T> {
+        private final String path;
+        @Nullable
+        private final String token;
+        private final ExceptionalFunction<String, T> parser;
+
+        @Nullable
+        private volatile T value = null;
+        private volatile long index = 0;
+
+        private Watched(
+                final String path,
+                @Nullable final String token,
+                final ExceptionalFunction<String, T> parser
+        ) {
+            this.path = path;
+            this.token = token;
+            this.parser = parser;
+        }
+
+        private void update(final String content, final long newIndex) throws Exception {
+            value = parser.apply(content);
+            // a lower index means the state of consul was reset, start over
+            index = newIndex < index ? 0 : newIndex;
+        }
+    }
+
+    @FunctionalInterface
+    private interface ExceptionalFunction<F, T> {
+        T apply(F input) throws Exception;
+    }
+
+    /**
+     * The leaf certificate of the service, with its intermediates, and its
+     * private key.
+     */
+    @Immutable
+    static final class Leaf {
+        private final PrivateKey key;
+        private final X509Certificate[] chain;
+
+        private Leaf(final PrivateKey key, final X509Certificate[] chain) {
+            this.key = key;
+            this.chain = chain;
+        }
+
+        private static Leaf parse(final String json) throws GeneralSecurityException {
+            final LeafJson leafJson = GsonFactory.getGson().fromJson(json, LeafJson.class);
+            checkArgument(leafJson != null && leafJson.certPem != null && leafJson.privateKeyPem != null,
+                    "leaf certificate response without a certificate or a key");
+            return new Leaf(parsePrivateKey(leafJson.privateKeyPem), parseCertificates(leafJson.certPem));
+        }
+    }
+
+    /**
+     * The root certificates of the Connect CA, and the trust domain of the
+     * SPIFFE URIs of the certificates they issue.
+     */
+    @Immutable
+    static final class Roots {
+        private final X509Certificate[] certificates;
+        @Nullable
+        private final String trustDomain;
+
+        private Roots(final X509Certificate[] certificates, @Nullable final String trustDomain) {
+            this.certificates = certificates;
+            this.trustDomain = trustDomain;
+        }
+
+        private static Roots parse(final String json) throws CertificateException {
+            final RootsJson rootsJson = GsonFactory.getGson().fromJson(json, RootsJson.class);
+            checkArgument(rootsJson != null && rootsJson.roots != null && !rootsJson.roots.isEmpty(),
+                    "roots response without any root");
+
+            final List<X509Certificate> certificates = new ArrayList<>();
+            for (final RootJson root : rootsJson.roots) {
+                for (final X509Certificate certificate : parseCertificates(root.rootCert)) {
+                    certificates.add(certificate);
+                }
+            }
+            return new Roots(certificates.toArray(new X509Certificate[0]), rootsJson.trustDomain);
+        }
+    }
+
+    /**
+     * Trusts the servers whose chain is issued by the Connect roots, and
+     * whose leaf certificate has the SPIFFE URI of the target service, such
+     * as {@code spiffe://<trust domain>/ns/default/dc/dc1/svc/<service>}.
+     *
+     * Being an {@link X509ExtendedTrustManager}, it is called in place of the
+     * host name verification the JDK would otherwise run for grpc.
+     */
+    @VisibleForTesting
+    static final class SpiffeTrustManager extends X509ExtendedTrustManager {
+        private static final int URI_NAME = 6;
+        private static final Pattern SERVICE_URI = Pattern.compile(
+                "spiffe://([^/]+)(?:/ap/[^/]+)?/ns/[^/]+/dc/[^/]+/svc/([^/]+)"
+        );
+
+        private final X509TrustManager roots;
+        private final String trustDomain;
+        private final String serviceName;
+
+        SpiffeTrustManager(final X509TrustManager roots, final String trustDomain, final String serviceName) {
+            this.roots = roots;
+            this.trustDomain = trustDomain;
+            this.serviceName = serviceName;
+        }
+
+        @Override
+        public void checkServerTrusted(final X509Certificate[] chain, final String authType) throws CertificateException {
+            roots.checkServerTrusted(chain, authType);
+            checkIdentity(chain[0]);
+        }
+
+        @Override
+        public void checkServerTrusted(
+                final X509Certificate[] chain,
+                final String authType,
+                final Socket socket
+        ) throws CertificateException {
+            checkServerTrusted(chain, authType);
+        }
+
+        @Override
+        public void checkServerTrusted(
+                final X509Certificate[] chain,
+                final String authType,
+                final SSLEngine engine
+        ) throws CertificateException {
+            checkServerTrusted(chain, authType);
+        }
+
+        @Override
+        public void checkClientTrusted(final X509Certificate[] chain, final String authType) throws CertificateException {
+            roots.checkClientTrusted(chain, authType);
+        }
+
+        @Override
+        public void checkClientTrusted(
+                final X509Certificate[] chain,
+                final String authType,
+                final Socket socket
+        ) throws CertificateException {
+            checkClientTrusted(chain, authType);
+        }
+
+        @Override
+        public void checkClientTrusted(
+                final X509Certificate[] chain,
+                final String authType,
+                final SSLEngine engine
+        ) throws CertificateException {
+            checkClientTrusted(chain, authType);
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return roots.getAcceptedIssuers();
+        }
+
+        private void checkIdentity(final X509Certificate certificate) throws CertificateException {
+            final Collection<List<?>> names = certificate.getSubjectAlternativeNames();
+            if (names != null) {
+                for (final List<?> name : names) {
+                    if (name.size() < 2 || !Integer.valueOf(URI_NAME).equals(name.get(0))) {
+                        continue;
+                    }
+
+                    final Matcher matcher = SERVICE_URI.matcher(String.valueOf(name.get(1)));
+                    if (matcher.matches()
+                            && matcher.group(1).equalsIgnoreCase(trustDomain)
+                            && matcher.group(2).equals(serviceName)) {
+                        return;
+                    }
+                }
+            }
+            throw new CertificateException(
+                    "server certificate does not identify service " + serviceName + " of trust domain " + trustDomain
+            );
+        }
+    }
+
+    private static final class LeafJson {
+        @SerializedName("CertPEM")
+        private String certPem;
+
+        @SerializedName("PrivateKeyPEM")
+        private String privateKeyPem;
+    }
+
+    private static final class RootsJson {
+        @SerializedName("TrustDomain")
+        private String trustDomain;
+
+        @SerializedName("Roots")
+        private List<RootJson> roots;
+    }
+
+    private static final class RootJson {
+        @SerializedName("RootCert")
+        private String rootCert;
+    }
+
+    @VisibleForTesting
+    static X509Certificate[] parseCertificates(final String pem) throws CertificateException {
+        final Collection<? extends Certificate> certificates = CertificateFactory.getInstance("X.509")
+                .generateCertificates(new ByteArrayInputStream(pem.getBytes(StandardCharsets.US_ASCII)));
+        checkArgument(!certificates.isEmpty(), "no certificate found");
+
+        final List<X509Certificate> x509Certificates = new ArrayList<>(certificates.size());
+        for (final Certificate certificate : certificates) {
+            x509Certificates.add((X509Certificate) certificate);
+        }
+        return x509Certificates.toArray(new X509Certificate[0]);
+    }
+
+    /**
+     * The agent returns EC keys in the SEC1 format and RSA keys in the PKCS#1
+     * format, which the JDK can't read, so they are wrapped into PKCS#8.
+     *
+     * @param pem A PEM encoded PKCS#8, SEC1 or PKCS#1 private key.
+     * @return The private key.
+     */
+    @VisibleForTesting
+    static PrivateKey parsePrivateKey(final String pem) throws GeneralSecurityException {
+        final Matcher matcher = PEM.matcher(pem);
+        checkArgument(matcher.find(), "no PEM encoded private key found");
+
+        final String type = matcher.group(1);
+        final byte[] der = Base64.getMimeDecoder().decode(matcher.group(2));
+        switch (type) {
+            case "EC PRIVATE KEY":
+                return KeyFactory.getInstance("EC").generatePrivate(
+                        new PKCS8EncodedKeySpec(wrap(der, sequence(EC_PUBLIC_KEY_OID, sec1Curve(der))))
+                );
+            case "RSA PRIVATE KEY":
+                return KeyFactory.getInstance("RSA").generatePrivate(
+                        new PKCS8EncodedKeySpec(wrap(der, sequence(RSA_ENCRYPTION_OID, NULL)))
+                );
+            case "PRIVATE KEY":
+                final PKCS8EncodedKeySpec keySpec = new PKCS8EncodedKeySpec(der);
+                try {
+                    return KeyFactory.getInstance("EC").generatePrivate(keySpec);
+                } catch (final GeneralSecurityException e) {
+                    return KeyFactory.getInstance("RSA").generatePrivate(keySpec);
+                }
+            default:
+                throw new IllegalArgumentException("unsupported private key type: " + type);
+        }
+    }
+
+    /**
+     * @return PrivateKeyInfo ::= SEQUENCE { version, algorithm, OCTET STRING key }
+     */
+    private static byte[] wrap(final byte[] key, final byte[] algorithm) {
+        return sequence(VERSION_ZERO, algorithm, encode(0x04, key));
+    }
+
+    /**
+     * ECPrivateKey ::= SEQUENCE { version, privateKey, [0] parameters, [1] publicKey }
+     *
+     * @return The curve OID, from the parameters of a SEC1 key.
+     */
+    private static byte[] sec1Curve(final byte[] der) {
+        checkArgument(der.length > 0 && der[0] == 0x30, "EC private key is not a sequence");
+
+        int offset = headerLength(der, 0);
+        while (offset < der.length) {
+            final int headerLength = headerLength(der, offset);
+            final int contentLength = contentLength(der, offset);
+            if ((der[offset] & 0xff) == 0xa0) {
+                final byte[] curve = new byte[contentLength];
+                System.arraycopy(der, offset + headerLength, curve, 0, contentLength);
+                return curve;
+            }
+            offset += headerLength + contentLength;
+        }
+        throw new IllegalArgumentException("EC private key without a curve");
+    }
+
+    private static int headerLength(final byte[] der, final int offset) {
+        final int first = der[offset + 1] & 0xff;
+        return first < 0x80 ? 2 : 2 + (first & 0x7f);
+    }
+
+    private static int contentLength(final byte[] der, final int offset) {
+        final int first = der[offset + 1] & 0xff;
+        if (first < 0x80) {
+            return first;
+        }
+
+        int length = 0;
+        for (int i = 0; i < (first & 0x7f); i++) {
+            length = (length << 8) | (der[offset + 2 + i] & 0xff);
+        }
+        return length;
+    }
+
+    private static byte[] sequence(final byte[]... elements) {
+        final ByteArrayOutputStream content = new ByteArrayOutputStream();
+        for (final byte[] element : elements) {
+            content.write(element, 0, element.length);
+        }
+        return encode(0x30, content.toByteArray());
+    }
+
+    private static byte[] encode(final int tag, final byte[] content) {
+        final ByteArrayOutputStream encoded = new ByteArrayOutputStream(content.length + 6);
+        encoded.write(tag);
+        if (content.length < 0x80) {
+            encoded.write(content.length);
+        } else {
+            int lengthBytes = 0;
+            for (int length = content.length; length > 0; length >>>= 8) {
+                lengthBytes++;
+            }
+            encoded.write(0x80 | lengthBytes);
+            for (int i = lengthBytes - 1; i >= 0; i--) {
+                encoded.write(content.length >>> (8 * i));
+            }
+        }
+        encoded.write(content, 0, content.length);
+        return encoded.toByteArray();
+    }
+
+    /**
+     * @return A new builder used to compose a loader.
+     */
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    /**
+     * Builder object used to compose the {@link ConsulConnectSslContextLoader}.
+     */
+    public static final class Builder {
+        private @Nullable ConsulRawClient consulClient = null;
+        private @Nullable String serviceName = null;
+        private Side side = Side.SERVER;
+        private @Nullable String targetServiceName = null;
+        private @Nullable String consulToken = null;
+        private UnaryOperator<SslContextBuilder> configurator = UnaryOperator.identity();
+
+        /**
+         * @see #newBuilder()
+         */
+        private Builder() {}
+
+        /* consulClient */
+
+        @Nullable
+        public ConsulRawClient getConsulClient() {
+            return consulClient;
+        }
+
+        /**
+         * @param consulClient A client of the local agent, which issues the
+         *                     certificates.
+         */
+        public void setConsulClient(final ConsulRawClient consulClient) {
+            this.consulClient = checkNotNull(consulClient, "consulClient");
+        }
+
+        public Builder withConsulClient(final ConsulRawClient consulClient) {
+            setConsulClient(consulClient);
+            return this;
+        }
+
+        /* serviceName */
+
+        @Nullable
+        public String getServiceName() {
+            return serviceName;
+        }
+
+        /**
+         * @param serviceName The service the leaf certificate is issued to.
+         */
+        public void setServiceName(final String serviceName) {
+            this.serviceName = checkNotNull(serviceName, "serviceName");
+        }
+
+        public Builder withServiceName(final String serviceName) {
+            setServiceName(serviceName);
+            return this;
+        }
+
+        /* side */
+
+        public Side getSide() {
+            return side;
+        }
+
+        /**
+         * @param side The side of the connections the contexts are built for.
+         *             Defaults to the server side, which requires clients to
+         *             present a certificate.
+         */
+        public void setSide(final Side side) {
+            this.side = checkNotNull(side, "side");
+        }
+
+        public Builder withSide(final Side side) {
+            setSide(side);
+            return this;
+        }
+
+        /* targetServiceName */
+
+        @Nullable
+        public String getTargetServiceName() {
+            return targetServiceName;
+        }
+
+        /**
+         * @param targetServiceName The service the servers connected to must
+         *                          be issued certificates for, as checked
+         *                          against their SPIFFE URI. Required on the
+         *                          client side.
+         */
+        public void setTargetServiceName(final String targetServiceName) {
+            this.targetServiceName = checkNotNull(targetServiceName, "targetServiceName");
+        }
+
+        public Builder withTargetServiceName(final String targetServiceName) {
+            setTargetServiceName(targetServiceName);
+            return this;
+        }
+
+        /* consul token */
+
+        @Nullable
+        public String getConsulToken() {
+            return consulToken;
+        }
+
+        /**
+         * @param consulToken A token allowed to write the service, which the
+         *                    agent requires to issue its leaf certificate.
+         */
+        public void setConsulToken(final String consulToken) {
+            this.consulToken = checkNotNull(consulToken, "consulToken");
+        }
+
+        public Builder withConsulToken(final String consulToken) {
+            setConsulToken(consulToken);
+            return this;
+        }
+
+        /* configurator */
+
+        public UnaryOperator<SslContextBuilder> getConfigurator() {
+            return configurator;
+        }
+
+        /**
+         * @param configurator Applied to every context builder before the
+         *                     context is built, for example
+         *                     {@code GrpcSslContexts::configure}.
+         */
+        public void setConfigurator(final UnaryOperator<SslContextBuilder> configurator) {
+            this.configurator = checkNotNull(configurator, "configurator");
+        }
+
+        public Builder withConfigurator(final UnaryOperator<SslContextBuilder> configurator) {
+            setConfigurator(configurator);
+            return this;
+        }
+
+        /* build */
+
+        public ConsulConnectSslContextLoader build() {
+            checkArgument(side != Side.CLIENT || targetServiceName != null,
+                    "targetServiceName is required on the client side");
+            return new ConsulConnectSslContextLoader(
+                    checkNotNull(consulClient, "consulClient"),
+                    checkNotNull(serviceName, "serviceName"),
+                    checkNotNull(side, "side"),
+                    targetServiceName,
+                    consulToken,
+                    checkNotNull(configurator, "configurator")
+            );
+        }
+    }
+}
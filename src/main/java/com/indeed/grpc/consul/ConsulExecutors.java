@@ -0,0 +1,48 @@
+package com.indeed.grpc.consul;
+
+import com.indeed.grpc.netty.SharedResources;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Executors suited to running the blocking requests made to consul by the
+ * {@link ConsulNameResolver} and {@link ConsulServiceRegistrar}.
+ *
+ * The ecwid client blocks the calling thread for the whole duration of every
+ * request. Handing those requests to an executor from this class keeps the
+ * scheduled executors of the resolvers and registrars free for timing only.
+ */
+public final class ConsulExecutors {
+    private ConsulExecutors() {}
+
+    /**
+     * On runtimes supporting virtual threads, every task runs on its own
+     * virtual thread, making thousands of concurrent blocking requests cheap.
+     * On older runtimes, tasks run on a cached pool of daemon threads.
+     *
+     * @return A new executor for blocking consul requests.
+     */
+    public static ExecutorService newBlockingIoExecutor() {
+        return SharedResources.newBlockingIoExecutor("consul-io");
+    }
+
+    /**
+     * @return The {@link SharedResources#BLOCKING_IO_EXECUTOR}, held for the
+     *         lifetime of the process. It must not be shut down.
+     */
+    public static ExecutorService getSharedBlockingIoExecutor() {
+        return SharedHolder.EXECUTOR;
+    }
+
+    /**
+     * @return True if {@link #newBlockingIoExecutor()} runs tasks on virtual
+     *         threads.
+     */
+    public static boolean isVirtualThreadSupported() {
+        return SharedResources.isVirtualThreadSupported();
+    }
+
+    private static final class SharedHolder {
+        private static final ExecutorService EXECUTOR = SharedResources.get(SharedResources.BLOCKING_IO_EXECUTOR);
+    }
+}
@@ -1,41 +1,62 @@
 package com.indeed.grpc.consul;
 
+import com.ecwid.consul.v1.ConsistencyMode;
 import com.ecwid.consul.v1.QueryParams;
 import com.ecwid.consul.v1.Response;
 import com.ecwid.consul.v1.catalog.CatalogClient;
 import com.ecwid.consul.v1.catalog.model.CatalogService;
 import com.ecwid.consul.v1.kv.KeyValueClient;
-import com.google.common.base.Strings;
-import com.google.common.net.HostAndPort;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.indeed.grpc.metrics.ClientMetrics;
 import io.grpc.Attributes;
 import io.grpc.EquivalentAddressGroup;
 import io.grpc.NameResolver;
 import io.grpc.Status;
 import io.grpc.internal.LogExceptionRunnable;
+import io.grpc.internal.SerializingExecutor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
-import java.net.InetSocketAddress;
-import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
-import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicReference;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
 /**
  * A consul-based {@link NameResolver}.
  *
- * The {@link EquivalentAddressGroup} will be fetched from the service catalog.
+ * The {@link EquivalentAddressGroup} will be fetched from the health endpoint,
+ * or from the service catalog, see {@link CatalogLookup}.
  * When the Java implementation supports service configurations, we can fetch
  * those from the key-value store.
  *
+ * When several consul endpoints are given, they are queried in order and a
+ * slow endpoint is hedged by querying the next one, see {@link RequestHedger}.
+ * Responses from an endpoint that doesn't know the leader, or whose index is
+ * lower than the highest one already seen, are discarded as stale.
+ *
+ * Resolutions use the {@link ConsistencyMode} of the target. Stale reads can
+ * be answered by any consul server, spreading the discovery load off the
+ * leader. When a stale response lags behind the leader by more than the
+ * maximum staleness, the read is retried in the default mode.
+ *
+ * The resolver holds no lock. Requests to consul are made on the io executor
+ * and their results are handled on a {@link SerializingExecutor}, which also
+ * confines the resolution state and serializes the calls to the listener.
+ * {@link #shutdown()} returns immediately: the result of a request still in
+ * flight is discarded once it completes.
+ *
  * Much of this implementation is based off of the existing io.grpc.internal.DnsNameResolver
  *
  * @see ConsulNameResolverProvider
@@ -45,26 +66,56 @@ import static com.google.common.base.Preconditions.checkState;
 public final class ConsulNameResolver extends NameResolver {
     private final Logger LOGGER = LoggerFactory.getLogger(ConsulNameResolver.class);
 
-    private final CatalogClient catalogClient;
+    private final List<CatalogLookup> catalogLookups;
     private final KeyValueClient keyValueClient;
 
     private final String serviceName;
-    private final Optional<String> tag;
+    private final List<String> tags;
+    @Nullable
+    private final String filter;
+    private final QueryParams queryParams;
+    private final long maxStalenessMillis;
 
     private final ScheduledExecutorService timerService;
-    private final int resolveInterval;
-    private final TimeUnit resolveIntervalTimeUnit;
+    private final Executor ioExecutor;
+    private final ResolveSchedule resolveSchedule;
+    private final RequestHedger requestHedger;
+    private final ConsulRequestGovernor requestGovernor;
 
     @Nullable
-    private Listener listener = null;
+    private final OutlierDetector outlierDetector;
+    private final Runnable outlierListener = this::republish;
 
     @Nullable
-    private ScheduledFuture<?> resolutionTask = null;
+    private final ClientMetrics clientMetrics;
+    // the target the client metrics of the resolver are kept under
+    private final String target;
+
+    private enum State {
+        NEW,
+        STARTED,
+        SHUTDOWN
+    }
+
+    private final AtomicReference<State> state = new AtomicReference<>(State.NEW);
+    private final AtomicReference<ScheduledFuture<?>> resolutionTask = new AtomicReference<>();
+    private final SerializingExecutor serializingExecutor = new SerializingExecutor(MoreExecutors.sameThreadExecutor());
 
-    private boolean shutdown = false;
+    @Nullable
+    private volatile Listener listener = null;
+
+    @Nullable
+    private volatile Long highestConsulIndex = null;
+
+    // confined to the serializing executor
+    @Nullable
+    private AddressTable knownAddresses = null;
+
+    @Nullable
+    private List<EquivalentAddressGroup> knownServers = null;
 
     @Nullable
-    private Set<HostAndPort> knownServiceAddresses = null;
+    private List<EquivalentAddressGroup> publishedServers = null;
 
     ConsulNameResolver(
             final CatalogClient catalogClient,
@@ -75,18 +126,81 @@ public final class ConsulNameResolver extends NameResolver {
             final int resolveInterval,
             final TimeUnit resolveIntervalTimeUnit
     ) {
-        this.catalogClient = catalogClient;
+        this(
+                Collections.singletonList(CatalogLookup.of(catalogClient, serviceName, tag)),
+                keyValueClient, serviceName,
+                tag.map(Collections::singletonList).orElse(Collections.emptyList()), null,
+                ConsistencyMode.DEFAULT, 0,
+                timerService,
+                MoreExecutors.sameThreadExecutor(),
+                ResolveSchedule.fixed(resolveInterval, resolveIntervalTimeUnit),
+                new RequestHedger(MoreExecutors.sameThreadExecutor(), 0, 0),
+                ConsulRequestGovernor.getShared(),
+                null,
+                null,
+                serviceName
+        );
+    }
+
+    ConsulNameResolver(
+            final List<CatalogLookup> catalogLookups,
+            final KeyValueClient keyValueClient,
+            final String serviceName,
+            final List<String> tags,
+            @Nullable final String filter,
+            final ConsistencyMode consistencyMode,
+            final long maxStalenessMillis,
+            final ScheduledExecutorService timerService,
+            final Executor ioExecutor,
+            final ResolveSchedule resolveSchedule,
+            final RequestHedger requestHedger,
+            final ConsulRequestGovernor requestGovernor,
+            @Nullable final OutlierDetector outlierDetector,
+            @Nullable final ClientMetrics clientMetrics,
+            final String target
+    ) {
+        checkArgument(!catalogLookups.isEmpty(), "catalogLookups cannot be empty");
+
+        this.catalogLookups = catalogLookups;
         this.keyValueClient = keyValueClient;
         this.serviceName = serviceName;
-        this.tag = tag;
+        this.tags = tags;
+        this.filter = filter;
+        this.queryParams = consistencyMode == ConsistencyMode.DEFAULT
+                ? QueryParams.DEFAULT
+                : new QueryParams(consistencyMode);
+        this.maxStalenessMillis = maxStalenessMillis;
         this.timerService = timerService;
-        this.resolveInterval = resolveInterval;
-        this.resolveIntervalTimeUnit = resolveIntervalTimeUnit;
+        this.ioExecutor = ioExecutor;
+        this.resolveSchedule = resolveSchedule;
+        this.requestHedger = requestHedger;
+        this.requestGovernor = requestGovernor;
+        this.outlierDetector = outlierDetector;
+        this.clientMetrics = clientMetrics;
+        this.target = target;
     }
 
+    /**
+     * @return The first tag instances are filtered on.
+     */
     @Nullable
     public String getTag() {
-        return tag.orElse(null);
+        return tags.isEmpty() ? null : tags.get(0);
+    }
+
+    /**
+     * @return The tags instances are filtered on.
+     */
+    public List<String> getTags() {
+        return tags;
+    }
+
+    /**
+     * @return The consul filter expression instances are filtered on.
+     */
+    @Nullable
+    public String getFilter() {
+        return filter;
     }
 
     /**
@@ -106,88 +220,223 @@ public final class ConsulNameResolver extends NameResolver {
     }
 
     @Override
-    public synchronized void start(final Listener listener) {
-        checkState(this.listener == null, "ConsulNameResolver already started");
-        this.listener = checkNotNull(listener, "listener cannot be null");
-        this.resolutionTask = timerService.scheduleAtFixedRate(
-                new LogExceptionRunnable(this::run),
-                0, resolveInterval, resolveIntervalTimeUnit
-        );
+    public void start(final Listener listener) {
+        checkNotNull(listener, "listener cannot be null");
+        checkState(state.compareAndSet(State.NEW, State.STARTED), "ConsulNameResolver already started");
+
+        this.listener = listener;
+        if (outlierDetector != null) {
+            outlierDetector.addListener(outlierListener);
+        }
+        scheduleResolution(0);
     }
 
     @Override
-    public synchronized void refresh() {
-        checkState(listener != null, "ConsulNameResolver not yet started");
+    public void refresh() {
+        checkState(state.get() != State.NEW, "ConsulNameResolver not yet started");
+    }
+
+    /**
+     * The timer service only waits for the delay, the request to consul
+     * itself is made on the io executor.
+     */
+    private void scheduleResolution(final long delayNanos) {
+        final ScheduledFuture<?> task = timerService.schedule(
+                new LogExceptionRunnable(() -> ioExecutor.execute(new LogExceptionRunnable(this::run))),
+                delayNanos, TimeUnit.NANOSECONDS
+        );
+        resolutionTask.set(task);
+
+        // shutdown may have missed the task
+        if (state.get() == State.SHUTDOWN) {
+            task.cancel(false);
+        }
     }
 
-    private synchronized void run() {
-        if (shutdown) {
+    /**
+     * Query consul, then handle the response and schedule the next
+     * resolution on the serializing executor, unless the resolver was shut
+     * down in the meantime.
+     */
+    private void run() {
+        if (state.get() == State.SHUTDOWN) {
             return;
         }
 
-        checkNotNull(listener, "resolver not started");
-        checkNotNull(timerService, "resolver not started");
+        List<CatalogService> services = null;
+        Exception failure = null;
+        try {
+            services = fetch();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (final Exception e) {
+            failure = e;
+        }
 
+        final List<CatalogService> resolvedServices = services;
+        final Exception resolutionFailure = failure;
+        serializingExecutor.execute(() -> {
+            if (state.get() == State.SHUTDOWN) {
+                return;
+            }
+
+            final ResolveSchedule.Outcome outcome;
+            if (resolvedServices != null) {
+                outcome = update(resolvedServices);
+            } else if (resolutionFailure != null) {
+                outcome = fail(resolutionFailure);
+            } else {
+                outcome = ResolveSchedule.Outcome.FAILED;
+            }
+
+            scheduleResolution(resolveSchedule.nextDelayNanos(outcome));
+        });
+    }
+
+    private List<CatalogService> fetch() throws Exception {
+        final List<Callable<Response<List<CatalogService>>>> attempts = new ArrayList<>(catalogLookups.size());
+        for (final CatalogLookup catalogLookup : catalogLookups) {
+            attempts.add(() -> lookup(catalogLookup));
+        }
+
+        final Response<List<CatalogService>> response;
         try {
-            final Response<List<CatalogService>> response = tag
-                    .map(tag -> catalogClient.getCatalogService(serviceName, tag, QueryParams.DEFAULT))
-                    .orElseGet(() -> catalogClient.getCatalogService(serviceName, QueryParams.DEFAULT));
+            response = requestHedger.call(attempts, this::isCurrent);
+        } catch (final RequestHedger.RejectedResponseException e) {
+            // every endpoint is behind, the consul state may have been restored from a snapshot
+            highestConsulIndex = null;
+            throw e;
+        }
 
-            final Set<HostAndPort> readAddressList = response.getValue().stream()
-                    .map((service) -> {
-                        // use service address then fall back to address
-                        String host = service.getServiceAddress();
-                        if (Strings.isNullOrEmpty(host)) {
-                            host = service.getAddress();
-                        }
+        if (response.getConsulIndex() != null) {
+            highestConsulIndex = response.getConsulIndex();
+        }
 
-                        final int port = service.getServicePort();
+        return response.getValue();
+    }
 
-                        return HostAndPort.fromParts(host, port);
-                    }).collect(Collectors.toSet());
+    private Response<List<CatalogService>> lookup(final CatalogLookup catalogLookup) throws InterruptedException {
+        final Response<List<CatalogService>> response = lookup(catalogLookup, queryParams);
+        if (isTooStale(response)) {
+            LOGGER.debug("Stale response lagging {}ms behind the leader, reading from the leader instead",
+                    response.getConsulLastContact());
+            return lookup(catalogLookup, QueryParams.DEFAULT);
+        }
 
-            if (readAddressList.isEmpty()) {
-                LOGGER.warn("Successfully resolved services from consul, but the list was empty. Not updating server lists.");
+        return response;
+    }
 
-            } else if (!readAddressList.equals(knownServiceAddresses)) {
-                knownServiceAddresses = readAddressList;
+    private Response<List<CatalogService>> lookup(
+            final CatalogLookup catalogLookup,
+            final QueryParams queryParams
+    ) throws InterruptedException {
+        requestGovernor.acquire(ConsulRequestGovernor.Priority.LOW);
 
-                final List<EquivalentAddressGroup> servers = readAddressList.stream()
-                        .map((hostAndPort) -> {
-                            final SocketAddress address = new InetSocketAddress(
-                                    hostAndPort.getHostText(),
-                                    hostAndPort.getPort()
-                            );
+        return catalogLookup.lookup(queryParams);
+    }
 
-                            return new EquivalentAddressGroup(address);
-                        }).collect(Collectors.toList());
+    private boolean isTooStale(final Response<?> response) {
+        final Long lastContact = response.getConsulLastContact();
+        return queryParams.getConsistencyMode() == ConsistencyMode.STALE
+                && maxStalenessMillis > 0
+                && lastContact != null
+                && lastContact > maxStalenessMillis;
+    }
 
-                listener.onAddresses(servers, Attributes.EMPTY);
-            }
-        } catch (final Exception e) {
-            if (shutdown) {
+    /**
+     * @return False if the response comes from an endpoint that lost the
+     *         leader or that is behind the responses already accepted.
+     */
+    private boolean isCurrent(final Response<?> response) {
+        if (Boolean.FALSE.equals(response.isConsulKnownLeader())) {
+            return false;
+        }
+
+        final Long highest = highestConsulIndex;
+        final Long index = response.getConsulIndex();
+        return highest == null || index == null || index >= highest;
+    }
+
+    private ResolveSchedule.Outcome update(final List<CatalogService> services) {
+        if (services.isEmpty()) {
+            LOGGER.warn("Successfully resolved services from consul, but the list was empty. Not updating server lists.");
+            return ResolveSchedule.Outcome.UNCHANGED;
+        }
+
+        if (knownAddresses != null && knownAddresses.matches(services)) {
+            return ResolveSchedule.Outcome.UNCHANGED;
+        }
+
+        final AddressTable previousAddresses = knownAddresses;
+        knownAddresses = AddressTable.of(services);
+        if (previousAddresses != null && previousAddresses.hasSameAddresses(knownAddresses)) {
+            // only the duplicates changed
+            return ResolveSchedule.Outcome.UNCHANGED;
+        }
+
+        final List<EquivalentAddressGroup> servers = knownAddresses.toAddressGroups();
+        knownServers = servers;
+        if (clientMetrics != null) {
+            clientMetrics.updateAddresses(target, servers);
+        }
+        publish(servers);
+        return ResolveSchedule.Outcome.CHANGED;
+    }
+
+    private ResolveSchedule.Outcome fail(final Exception e) {
+        checkNotNull(listener, "resolver not started");
+
+        LOGGER.error("Encountered an exception when attempting to resolve services from consul", e);
+
+        // only report error if we have no list
+        if (knownAddresses == null) {
+            listener.onError(Status.UNAVAILABLE.withCause(e));
+        }
+
+        return ResolveSchedule.Outcome.FAILED;
+    }
+
+    /**
+     * Publish the last list of servers read from consul again, without going
+     * back to consul. Called whenever the set of addresses ejected by the
+     * {@link OutlierDetector} changes.
+     */
+    private void republish() {
+        serializingExecutor.execute(() -> {
+            if (state.get() == State.SHUTDOWN || knownServers == null) {
                 return;
             }
 
-            LOGGER.error("Encountered an exception when attempting to resolve services from consul", e);
+            publish(knownServers);
+        });
+    }
+
+    private void publish(final List<EquivalentAddressGroup> servers) {
+        checkNotNull(listener, "resolver not started");
 
-            // only report error if we have no list
-            if (knownServiceAddresses == null) {
-                listener.onError(Status.UNAVAILABLE.withCause(e));
-            }
+        final List<EquivalentAddressGroup> filtered = outlierDetector == null
+                ? servers
+                : outlierDetector.filter(servers);
+
+        if (!filtered.equals(publishedServers)) {
+            publishedServers = filtered;
+            listener.onAddresses(filtered, Attributes.EMPTY);
         }
     }
 
     @Override
-    public final synchronized void shutdown() {
-        if (shutdown) {
+    public final void shutdown() {
+        if (state.getAndSet(State.SHUTDOWN) == State.SHUTDOWN) {
             return;
         }
-        shutdown = true;
 
-        if (resolutionTask != null) {
-            resolutionTask.cancel(false);
-            resolutionTask = null;
+        if (outlierDetector != null) {
+            outlierDetector.removeListener(outlierListener);
+        }
+
+        final ScheduledFuture<?> task = resolutionTask.getAndSet(null);
+        if (task != null) {
+            task.cancel(false);
         }
 
         // intentionally not shutting down the timer service since it's a shared resource.
@@ -1,16 +1,32 @@
 package com.indeed.grpc.consul;
 
+import com.ecwid.consul.v1.ConsistencyMode;
 import com.ecwid.consul.v1.ConsulClient;
+import com.google.common.base.Splitter;
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.net.HostAndPort;
+import com.indeed.grpc.metrics.ClientMetrics;
+import com.indeed.grpc.netty.SharedResources;
 import io.grpc.Attributes;
 import io.grpc.NameResolverProvider;
 
 import javax.annotation.Nullable;
+import java.io.UnsupportedEncodingException;
 import java.net.URI;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
 import java.util.Optional;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -23,8 +39,38 @@ import static com.google.common.base.Preconditions.checkNotNull;
  *     <li>{@code "consul://localhost/MyServiceName"} (using specified host, default port)</li>
  *     <li>{@code "consul://localhost:8500/MyServiceName"} (using specified host and port)<li>
  *     <li>{@code "consul://localhost:8500/MyServiceName#grpc"} (using specified host, port, and tag)</li>
+ *     <li>{@code "consul://consul1:8500,consul2:8500/MyServiceName"} (using several endpoints, in order of preference)</li>
+ *     <li>{@code "consul:///MyServiceName?consistency=stale&max-stale=5s"} (using stale reads up to 5 seconds behind the leader)</li>
+ *     <li>{@code "consul:///MyServiceName?tag=grpc&tag=canary"} (using several tags)</li>
+ *     <li>{@code "consul:///MyServiceName?filter=Service.Meta.version%3D%3D%222%22"} (using a filter expression)</li>
+ *     <li>{@code "consul:///query/MyQueryName"} (using a prepared query)</li>
  * </ul>
  *
+ * By default, only the instances whose checks are all passing are resolved,
+ * through the health endpoint of consul, so that the instances a
+ * {@link ConsulServiceRegistrar} keeps out of rotation, warming up, draining or
+ * in maintenance, aren't resolved. See {@link Builder#setOnlyPassing(boolean)}
+ * to resolve every instance of the catalog instead.
+ *
+ * Tags, from both the fragment and the {@code tag} parameters, and the
+ * {@code filter} expression are applied by consul, so only matching instances
+ * are sent back. The filter expression is over {@code Service.Meta} or
+ * {@code Node.Meta} of the health endpoint, or over {@code ServiceMeta} or
+ * {@code NodeMeta} of the catalog. Filter expressions require consul 1.5 or
+ * later.
+ *
+ * Targets under {@code query/} resolve through the execution of the named
+ * prepared query, which implements the failover and the tag filtering within
+ * consul. They don't accept tags nor filters. The authority of their channels
+ * is the name of the query, like the name of the service of other targets.
+ *
+ * The {@code consistency} parameter is one of {@code default}, {@code stale}
+ * or {@code consistent}, and overrides the consistency mode of the provider,
+ * as does the {@code max-stale} parameter for the maximum staleness.
+ *
+ * With several endpoints, a resolution that takes longer than the hedge delay
+ * on the first endpoint is hedged by querying the next one.
+ *
  * Loosely based off of the io.grpc.internal.DnsNameResolverProvider.
  *
  * @author jpitz
@@ -33,10 +79,37 @@ public final class ConsulNameResolverProvider extends NameResolverProvider {
     private static final String SCHEME = "consul";
     private static final String DEFAULT_HOST = "localhost";
     private static final int DEFAULT_PORT = 8500;
+    private static final String PREPARED_QUERY_PREFIX = "query/";
+
+    private static final Splitter ENDPOINT_SPLITTER = Splitter.on(',').trimResults().omitEmptyStrings();
+    private static final Splitter QUERY_SPLITTER = Splitter.on('&').omitEmptyStrings();
+    private static final Splitter PARAMETER_SPLITTER = Splitter.on('=').limit(2);
+    private static final Pattern DURATION_PATTERN = Pattern.compile("(\\d+)(ms|s|m|h)");
+
+    private static final String CONSISTENCY_PARAMETER = "consistency";
+    private static final String MAX_STALE_PARAMETER = "max-stale";
+    private static final String TAG_PARAMETER = "tag";
+    private static final String FILTER_PARAMETER = "filter";
 
     private final ScheduledExecutorService timerService;
+    private final Executor ioExecutor;
     private final int resolveInterval;
     private final TimeUnit resolveIntervalTimeUnit;
+    private final long minResolveInterval;
+    private final TimeUnit minResolveIntervalTimeUnit;
+    private final double resolveIntervalJitter;
+    private final ConsistencyMode consistencyMode;
+    private final long maxStaleness;
+    private final TimeUnit maxStalenessTimeUnit;
+    private final long hedgeDelay;
+    private final TimeUnit hedgeDelayTimeUnit;
+    private final double hedgeQuantile;
+    private final ConsulRequestGovernor requestGovernor;
+    private final boolean onlyPassing;
+    @Nullable
+    private final OutlierDetector outlierDetector;
+    @Nullable
+    private final ClientMetrics clientMetrics;
 
     @Deprecated
     public ConsulNameResolverProvider() {
@@ -46,9 +119,28 @@ public final class ConsulNameResolverProvider extends NameResolverProvider {
     ConsulNameResolverProvider(
             final Builder builder
     ) {
-        this.timerService = builder.timerService;
+        // held for the lifetime of the provider, which is registered once per process
+        this.timerService = builder.timerService != null
+                ? builder.timerService
+                : SharedResources.get(SharedResources.SCHEDULER);
+        this.ioExecutor = builder.ioExecutor != null
+                ? builder.ioExecutor
+                : ConsulExecutors.getSharedBlockingIoExecutor();
         this.resolveInterval = builder.resolveInterval;
         this.resolveIntervalTimeUnit = builder.resolveIntervalTimeUnit;
+        this.minResolveInterval = builder.minResolveInterval;
+        this.minResolveIntervalTimeUnit = builder.minResolveIntervalTimeUnit;
+        this.resolveIntervalJitter = builder.resolveIntervalJitter;
+        this.consistencyMode = builder.consistencyMode;
+        this.maxStaleness = builder.maxStaleness;
+        this.maxStalenessTimeUnit = builder.maxStalenessTimeUnit;
+        this.hedgeDelay = builder.hedgeDelay;
+        this.hedgeDelayTimeUnit = builder.hedgeDelayTimeUnit;
+        this.hedgeQuantile = builder.hedgeQuantile;
+        this.requestGovernor = builder.requestGovernor;
+        this.onlyPassing = builder.onlyPassing;
+        this.outlierDetector = builder.outlierDetector;
+        this.clientMetrics = builder.clientMetrics;
     }
 
     @Nullable
@@ -64,31 +156,189 @@ public final class ConsulNameResolverProvider extends NameResolverProvider {
         final String serviceName = targetPath.substring(1);
         checkArgument(serviceName.length() > 0, "serviceName");
 
-        String consulHost = targetUri.getHost();
-        if (Strings.isNullOrEmpty(consulHost)) {
-            consulHost = DEFAULT_HOST;
-        }
+        final List<HostAndPort> endpoints = parseEndpoints(targetUri.getAuthority());
 
-        int consulPort = targetUri.getPort();
-        if (consulPort == -1) {
-            consulPort = DEFAULT_PORT;
+        final ListMultimap<String, String> parameters = parseQuery(targetUri.getRawQuery());
+
+        final List<String> tags = new ArrayList<>();
+        final String fragmentTag = Strings.emptyToNull(targetUri.getFragment());
+        if (fragmentTag != null) {
+            tags.add(fragmentTag);
         }
+        tags.addAll(parameters.get(TAG_PARAMETER));
+
+        final String filter = parameters.containsKey(FILTER_PARAMETER)
+                ? getLast(parameters, FILTER_PARAMETER)
+                : null;
 
-        final String tag = Strings.emptyToNull(targetUri.getFragment());
+        final ConsistencyMode targetConsistencyMode = parameters.containsKey(CONSISTENCY_PARAMETER)
+                ? parseConsistencyMode(getLast(parameters, CONSISTENCY_PARAMETER))
+                : consistencyMode;
+
+        final long maxStalenessMillis = parameters.containsKey(MAX_STALE_PARAMETER)
+                ? parseDurationMillis(getLast(parameters, MAX_STALE_PARAMETER))
+                : maxStalenessTimeUnit.toMillis(maxStaleness);
+
+        final List<CatalogLookup> catalogLookups;
+        final String authority;
+        if (serviceName.startsWith(PREPARED_QUERY_PREFIX)) {
+            final String queryName = serviceName.substring(PREPARED_QUERY_PREFIX.length());
+            checkArgument(queryName.length() > 0, "queryName");
+            checkArgument(tags.isEmpty() && filter == null, "prepared queries don't accept tags nor filters");
+
+            authority = queryName;
+            catalogLookups = endpoints.stream()
+                    .map((endpoint) -> CatalogLookup.preparedQuery(
+                            ConsulClientManager.getInstance(endpoint.getHostText(), endpoint.getPort()),
+                            queryName
+                    ))
+                    .collect(Collectors.toList());
+        } else {
+            authority = serviceName;
+            final boolean filtered = tags.size() > 1 || filter != null;
+            catalogLookups = endpoints.stream()
+                    .map((endpoint) -> filtered
+                            ? CatalogLookup.filtered(
+                                    ConsulClientManager.getRawInstance(endpoint.getHostText(), endpoint.getPort()),
+                                    serviceName, tags, filter, onlyPassing
+                            )
+                            : newLookup(
+                                    ConsulClientManager.getInstance(endpoint.getHostText(), endpoint.getPort()),
+                                    serviceName, tags.stream().findFirst()
+                            )
+                    ).collect(Collectors.toList());
+        }
 
-        final ConsulClient consulClient = ConsulClientManager.getInstance(consulHost, consulPort);
+        final HostAndPort preferredEndpoint = endpoints.get(0);
+        final ConsulClient consulClient = ConsulClientManager.getInstance(
+                preferredEndpoint.getHostText(),
+                preferredEndpoint.getPort()
+        );
 
         return new ConsulNameResolver(
-                consulClient /* CatalogClient */,
+                catalogLookups,
                 consulClient /* KeyValueClient */,
-                serviceName,
-                Optional.ofNullable(tag),
+                authority,
+                tags,
+                filter,
+                targetConsistencyMode,
+                maxStalenessMillis,
                 timerService,
-                resolveInterval,
-                resolveIntervalTimeUnit
+                ioExecutor,
+                newResolveSchedule(),
+                new RequestHedger(
+                        ioExecutor,
+                        hedgeDelayTimeUnit.toNanos(hedgeDelay),
+                        hedgeQuantile
+                ),
+                requestGovernor,
+                outlierDetector,
+                clientMetrics,
+                targetUri.toString()
         );
     }
 
+    private CatalogLookup newLookup(
+            final ConsulClient consulClient,
+            final String serviceName,
+            final Optional<String> tag
+    ) {
+        return onlyPassing
+                ? CatalogLookup.passing(consulClient, serviceName, tag)
+                : CatalogLookup.of(consulClient, serviceName, tag);
+    }
+
+    /**
+     * @param authority The authority of the target, a comma separated list of
+     *                  consul endpoints.
+     * @return The endpoints, with default host and port filled in.
+     */
+    static List<HostAndPort> parseEndpoints(@Nullable final String authority) {
+        final List<HostAndPort> endpoints = ENDPOINT_SPLITTER.splitToList(Strings.nullToEmpty(authority)).stream()
+                .map((endpoint) -> HostAndPort.fromString(endpoint).withDefaultPort(DEFAULT_PORT))
+                .collect(Collectors.toList());
+
+        if (endpoints.isEmpty()) {
+            return Collections.singletonList(HostAndPort.fromParts(DEFAULT_HOST, DEFAULT_PORT));
+        }
+        return endpoints;
+    }
+
+    /**
+     * @param rawQuery The raw query of the target.
+     * @return The decoded parameters of the query, in order.
+     */
+    static ListMultimap<String, String> parseQuery(@Nullable final String rawQuery) {
+        final ImmutableListMultimap.Builder<String, String> parameters = ImmutableListMultimap.builder();
+        for (final String parameter : QUERY_SPLITTER.split(Strings.nullToEmpty(rawQuery))) {
+            final List<String> keyAndValue = PARAMETER_SPLITTER.splitToList(parameter);
+            checkArgument(keyAndValue.size() == 2, "parameter without value: %s", parameter);
+            parameters.put(decode(keyAndValue.get(0)), decode(keyAndValue.get(1)));
+        }
+
+        final ImmutableListMultimap<String, String> parsed = parameters.build();
+        for (final String key : parsed.keySet()) {
+            checkArgument(CONSISTENCY_PARAMETER.equals(key)
+                            || MAX_STALE_PARAMETER.equals(key)
+                            || TAG_PARAMETER.equals(key)
+                            || FILTER_PARAMETER.equals(key),
+                    "unknown parameter: %s", key);
+        }
+        return parsed;
+    }
+
+    private static String decode(final String value) {
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        } catch (final UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String getLast(final ListMultimap<String, String> parameters, final String key) {
+        final List<String> values = parameters.get(key);
+        return values.get(values.size() - 1);
+    }
+
+    private static ConsistencyMode parseConsistencyMode(final String value) {
+        try {
+            return ConsistencyMode.valueOf(value.toUpperCase(Locale.ROOT));
+        } catch (final IllegalArgumentException e) {
+            throw new IllegalArgumentException("unknown consistency mode: " + value, e);
+        }
+    }
+
+    /**
+     * @param value A duration such as {@code 500ms}, {@code 5s}, {@code 1m} or
+     *              {@code 1h}.
+     * @return The duration in milliseconds.
+     */
+    static long parseDurationMillis(final String value) {
+        final Matcher matcher = DURATION_PATTERN.matcher(value);
+        checkArgument(matcher.matches(), "invalid duration: %s", value);
+
+        final long amount = Long.parseLong(matcher.group(1));
+        switch (matcher.group(2)) {
+            case "ms":
+                return amount;
+            case "s":
+                return TimeUnit.SECONDS.toMillis(amount);
+            case "m":
+                return TimeUnit.MINUTES.toMillis(amount);
+            default:
+                return TimeUnit.HOURS.toMillis(amount);
+        }
+    }
+
+    private ResolveSchedule newResolveSchedule() {
+        final long maxIntervalNanos = resolveIntervalTimeUnit.toNanos(resolveInterval);
+        final long minIntervalNanos = minResolveInterval > 0
+                ? Math.min(minResolveIntervalTimeUnit.toNanos(minResolveInterval), maxIntervalNanos)
+                : maxIntervalNanos;
+
+        return new ResolveSchedule(minIntervalNanos, maxIntervalNanos, resolveIntervalJitter);
+    }
+
     @Override
     public String getDefaultScheme() {
         return SCHEME;
@@ -109,18 +359,39 @@ public final class ConsulNameResolverProvider extends NameResolverProvider {
     }
 
     public static final class Builder {
-        private ScheduledExecutorService timerService = Executors.newSingleThreadScheduledExecutor();
+        private @Nullable ScheduledExecutorService timerService = null;
+        private @Nullable Executor ioExecutor = null;
         private int resolveInterval = 1;
         private TimeUnit resolveIntervalTimeUnit = TimeUnit.MINUTES;
+        private long minResolveInterval = 0;
+        private TimeUnit minResolveIntervalTimeUnit = TimeUnit.SECONDS;
+        private double resolveIntervalJitter = 0.1;
+        private ConsistencyMode consistencyMode = ConsistencyMode.DEFAULT;
+        private long maxStaleness = 0;
+        private TimeUnit maxStalenessTimeUnit = TimeUnit.SECONDS;
+        private long hedgeDelay = 100;
+        private TimeUnit hedgeDelayTimeUnit = TimeUnit.MILLISECONDS;
+        private double hedgeQuantile = 0.95;
+        private ConsulRequestGovernor requestGovernor = ConsulRequestGovernor.getShared();
+        private boolean onlyPassing = true;
+        @Nullable
+        private OutlierDetector outlierDetector = null;
+        @Nullable
+        private ClientMetrics clientMetrics = null;
 
         private Builder() {}
 
+        @Nullable
         public ScheduledExecutorService getTimerService() {
             return timerService;
         }
 
+        /**
+         * @param timerService Schedules the resolutions. Defaults to the
+         *                     {@link SharedResources#SCHEDULER}.
+         */
         public void setTimerService(final ScheduledExecutorService timerService) {
-            this.timerService = timerService;
+            this.timerService = checkNotNull(timerService, "timerService");
         }
 
         public Builder withTimerService(final ScheduledExecutorService timerService) {
@@ -128,6 +399,29 @@ public final class ConsulNameResolverProvider extends NameResolverProvider {
             return this;
         }
 
+        @Nullable
+        public Executor getIoExecutor() {
+            return ioExecutor;
+        }
+
+        /**
+         * @param ioExecutor The executor the blocking requests to consul are
+         *                   made on, hedged requests included, leaving the
+         *                   timer service for timing only. A resolution
+         *                   runs the hedged requests the executor hasn't
+         *                   started itself, but a bounded executor without
+         *                   threads to spare hedges late. Defaults to
+         *                   {@link ConsulExecutors#getSharedBlockingIoExecutor()}.
+         */
+        public void setIoExecutor(final Executor ioExecutor) {
+            this.ioExecutor = checkNotNull(ioExecutor, "ioExecutor");
+        }
+
+        public Builder withIoExecutor(final Executor ioExecutor) {
+            setIoExecutor(ioExecutor);
+            return this;
+        }
+
         public int getResolveInterval() {
             return resolveInterval;
         }
@@ -154,6 +448,237 @@ public final class ConsulNameResolverProvider extends NameResolverProvider {
             return this;
         }
 
+        public long getMinResolveInterval() {
+            return minResolveInterval;
+        }
+
+        public TimeUnit getMinResolveIntervalTimeUnit() {
+            return minResolveIntervalTimeUnit;
+        }
+
+        /**
+         * Enables the adaptive resolve interval. Resolvers poll consul after
+         * {@code minResolveInterval} right after the resolved addresses
+         * changed or a resolution failed, then back off exponentially to the
+         * resolve interval while the addresses remain stable. A value of zero
+         * disables the adaptive mode.
+         *
+         * @param minResolveInterval The shortest delay between two resolutions.
+         * @param minResolveIntervalTimeUnit The unit of the delay.
+         */
+        public void setMinResolveInterval(final long minResolveInterval, final TimeUnit minResolveIntervalTimeUnit) {
+            checkArgument(minResolveInterval >= 0, "minResolveInterval cannot be negative");
+            this.minResolveInterval = minResolveInterval;
+            this.minResolveIntervalTimeUnit = checkNotNull(minResolveIntervalTimeUnit, "minResolveIntervalTimeUnit");
+        }
+
+        public Builder withAdaptiveResolveInterval(final long minResolveInterval, final TimeUnit minResolveIntervalTimeUnit) {
+            setMinResolveInterval(minResolveInterval, minResolveIntervalTimeUnit);
+            return this;
+        }
+
+        public double getResolveIntervalJitter() {
+            return resolveIntervalJitter;
+        }
+
+        /**
+         * @param resolveIntervalJitter The fraction by which every delay
+         *                              between two resolutions is randomly
+         *                              spread in both directions, so that
+         *                              clients that started together don't
+         *                              poll consul in lockstep. Must be within
+         *                              [0, 1).
+         */
+        public void setResolveIntervalJitter(final double resolveIntervalJitter) {
+            checkArgument(resolveIntervalJitter >= 0 && resolveIntervalJitter < 1,
+                    "resolveIntervalJitter must be within [0, 1)");
+            this.resolveIntervalJitter = resolveIntervalJitter;
+        }
+
+        public Builder withResolveIntervalJitter(final double resolveIntervalJitter) {
+            setResolveIntervalJitter(resolveIntervalJitter);
+            return this;
+        }
+
+        public ConsistencyMode getConsistencyMode() {
+            return consistencyMode;
+        }
+
+        /**
+         * @param consistencyMode The consistency mode of the catalog reads of
+         *                        targets that don't set one. Defaults to
+         *                        {@link ConsistencyMode#DEFAULT}, where every
+         *                        read is answered by the leader.
+         */
+        public void setConsistencyMode(final ConsistencyMode consistencyMode) {
+            this.consistencyMode = checkNotNull(consistencyMode, "consistencyMode");
+        }
+
+        public Builder withConsistencyMode(final ConsistencyMode consistencyMode) {
+            setConsistencyMode(consistencyMode);
+            return this;
+        }
+
+        public long getMaxStaleness() {
+            return maxStaleness;
+        }
+
+        public TimeUnit getMaxStalenessTimeUnit() {
+            return maxStalenessTimeUnit;
+        }
+
+        /**
+         * Only used by {@link ConsistencyMode#STALE} reads.
+         *
+         * @param maxStaleness How far behind the leader the server answering
+         *                     a read can be before the read is retried in the
+         *                     default mode. Zero accepts any staleness.
+         * @param maxStalenessTimeUnit The unit of the staleness.
+         */
+        public void setMaxStaleness(final long maxStaleness, final TimeUnit maxStalenessTimeUnit) {
+            checkArgument(maxStaleness >= 0, "maxStaleness cannot be negative");
+            this.maxStaleness = maxStaleness;
+            this.maxStalenessTimeUnit = checkNotNull(maxStalenessTimeUnit, "maxStalenessTimeUnit");
+        }
+
+        public Builder withMaxStaleness(final long maxStaleness, final TimeUnit maxStalenessTimeUnit) {
+            setMaxStaleness(maxStaleness, maxStalenessTimeUnit);
+            return this;
+        }
+
+        public long getHedgeDelay() {
+            return hedgeDelay;
+        }
+
+        public TimeUnit getHedgeDelayTimeUnit() {
+            return hedgeDelayTimeUnit;
+        }
+
+        /**
+         * Only used by targets listing several consul endpoints.
+         *
+         * @param hedgeDelay How long to wait for an endpoint before also
+         *                   querying the next one, until enough resolutions
+         *                   were observed to use the hedge quantile instead.
+         * @param hedgeDelayTimeUnit The unit of the delay.
+         */
+        public void setHedgeDelay(final long hedgeDelay, final TimeUnit hedgeDelayTimeUnit) {
+            checkArgument(hedgeDelay >= 0, "hedgeDelay cannot be negative");
+            this.hedgeDelay = hedgeDelay;
+            this.hedgeDelayTimeUnit = checkNotNull(hedgeDelayTimeUnit, "hedgeDelayTimeUnit");
+        }
+
+        public Builder withHedgeDelay(final long hedgeDelay, final TimeUnit hedgeDelayTimeUnit) {
+            setHedgeDelay(hedgeDelay, hedgeDelayTimeUnit);
+            return this;
+        }
+
+        public double getHedgeQuantile() {
+            return hedgeQuantile;
+        }
+
+        /**
+         * @param hedgeQuantile The quantile of the recent resolution latencies
+         *                      of a target after which the next endpoint is
+         *                      queried, within [0, 1). Zero always waits for
+         *                      the hedge delay. Defaults to 0.95.
+         */
+        public void setHedgeQuantile(final double hedgeQuantile) {
+            checkArgument(hedgeQuantile >= 0 && hedgeQuantile < 1, "hedgeQuantile must be within [0, 1)");
+            this.hedgeQuantile = hedgeQuantile;
+        }
+
+        public Builder withHedgeQuantile(final double hedgeQuantile) {
+            setHedgeQuantile(hedgeQuantile);
+            return this;
+        }
+
+        public ConsulRequestGovernor getRequestGovernor() {
+            return requestGovernor;
+        }
+
+        /**
+         * @param requestGovernor The governor every resolution acquires a
+         *                        permit from before querying consul. Defaults
+         *                        to {@link ConsulRequestGovernor#getShared()}.
+         */
+        public void setRequestGovernor(final ConsulRequestGovernor requestGovernor) {
+            this.requestGovernor = checkNotNull(requestGovernor, "requestGovernor");
+        }
+
+        public Builder withRequestGovernor(final ConsulRequestGovernor requestGovernor) {
+            setRequestGovernor(requestGovernor);
+            return this;
+        }
+
+        public boolean isOnlyPassing() {
+            return onlyPassing;
+        }
+
+        /**
+         * @param onlyPassing True to only resolve the instances whose checks
+         *                    are all passing, false to resolve every
+         *                    instance registered in the catalog, whatever
+         *                    the status of its checks. Defaults to true.
+         *                    Prepared queries decide on their own.
+         */
+        public void setOnlyPassing(final boolean onlyPassing) {
+            this.onlyPassing = onlyPassing;
+        }
+
+        public Builder withOnlyPassing(final boolean onlyPassing) {
+            setOnlyPassing(onlyPassing);
+            return this;
+        }
+
+        @Nullable
+        public OutlierDetector getOutlierDetector() {
+            return outlierDetector;
+        }
+
+        /**
+         * @param outlierDetector The detector used to temporarily eject slow
+         *                        or failing addresses from resolution. Its
+         *                        {@link OutlierDetector#newClientInterceptor()}
+         *                        must be installed on the channels using the
+         *                        resolvers for it to have any effect, and
+         *                        the channels must balance with an
+         *                        {@link com.indeed.grpc.AddressTrackingLoadBalancerFactory}.
+         */
+        public void setOutlierDetector(final OutlierDetector outlierDetector) {
+            this.outlierDetector = checkNotNull(outlierDetector, "outlierDetector");
+        }
+
+        public Builder withOutlierDetector(final OutlierDetector outlierDetector) {
+            setOutlierDetector(outlierDetector);
+            return this;
+        }
+
+        @Nullable
+        public ClientMetrics getClientMetrics() {
+            return clientMetrics;
+        }
+
+        /**
+         * @param clientMetrics The metrics the resolvers publish the addresses
+         *                      of their targets to. Its
+         *                      {@link ClientMetrics#newClientInterceptor(String)}
+         *                      must be installed on the channels using the
+         *                      resolvers, with the target of the channel,
+         *                      for calls to be recorded, and the channels
+         *                      must balance with an
+         *                      {@link com.indeed.grpc.AddressTrackingLoadBalancerFactory}
+         *                      for calls to be recorded per address.
+         */
+        public void setClientMetrics(final ClientMetrics clientMetrics) {
+            this.clientMetrics = checkNotNull(clientMetrics, "clientMetrics");
+        }
+
+        public Builder withClientMetrics(final ClientMetrics clientMetrics) {
+            setClientMetrics(clientMetrics);
+            return this;
+        }
+
         public ConsulNameResolverProvider build() {
             return new ConsulNameResolverProvider(this);
         }
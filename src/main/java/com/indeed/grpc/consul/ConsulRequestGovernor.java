@@ -0,0 +1,250 @@
+package com.indeed.grpc.consul;
+
+import com.google.common.base.Ticker;
+import com.indeed.util.varexport.Export;
+import com.indeed.util.varexport.VarExporter;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Token bucket shared by every {@link ConsulNameResolver} and
+ * {@link ConsulServiceRegistrar} of a process, used to limit how many requests
+ * the process sends to consul.
+ *
+ * A process that creates a lot of channels at startup, combined with the
+ * registrar heartbeats, can easily flood the local agent which then throttles
+ * every process on the host. Every request to consul first acquires a permit
+ * from the governor. When permits run out, callers wait for the bucket to
+ * refill, and {@link Priority#HIGH} requests (registrations, heartbeats and
+ * deregistrations) are always let through before {@link Priority#LOW} ones
+ * (discovery refreshes).
+ *
+ * The time spent waiting for a permit is exposed per priority. The shared
+ * governor exports it, along with the queue lengths, in the
+ * {@code ConsulRequestGovernor} namespace. Other governors can be exported with
+ * {@code VarExporter.forNamespace(namespace).export(governor, "")}.
+ */
+@ThreadSafe
+public final class ConsulRequestGovernor {
+    private static final ConsulRequestGovernor SHARED = new ConsulRequestGovernor(50, 100);
+
+    static {
+        VarExporter.forNamespace("ConsulRequestGovernor").export(SHARED, "");
+    }
+
+    private static final long MIN_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition permitsChanged = lock.newCondition();
+
+    private final Ticker ticker = Ticker.systemTicker();
+    private final double permitsPerNano;
+    private final int burst;
+
+    // guarded by lock
+    private double availablePermits;
+    private long lastRefillNanos;
+    private final int[] waiting = new int[Priority.values().length];
+
+    private final LongAdder[] acquired = newAdders();
+    private final LongAdder[] queueingDelayNanos = newAdders();
+
+    /**
+     * @param permitsPerSecond How many requests are let through per second
+     *                         once the burst is used up.
+     * @param burst The maximum number of requests let through at once.
+     */
+    public ConsulRequestGovernor(final double permitsPerSecond, final int burst) {
+        checkArgument(permitsPerSecond > 0, "permitsPerSecond must be positive");
+        checkArgument(burst > 0, "burst must be positive");
+
+        this.permitsPerNano = permitsPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.burst = burst;
+        this.availablePermits = burst;
+        this.lastRefillNanos = ticker.read();
+    }
+
+    /**
+     * @return The governor shared by default by every resolver and registrar
+     *         of the process. It lets through 50 requests per second with
+     *         bursts of up to 100.
+     */
+    public static ConsulRequestGovernor getShared() {
+        return SHARED;
+    }
+
+    /**
+     * Block until a permit is available for a request of the given priority.
+     *
+     * @param priority The priority of the request about to be made.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public void acquire(final Priority priority) throws InterruptedException {
+        checkNotNull(priority, "priority");
+
+        final long startNanos = ticker.read();
+
+        lock.lockInterruptibly();
+        try {
+            waiting[priority.ordinal()]++;
+            try {
+                while (true) {
+                    refill(ticker.read());
+
+                    final boolean yielding = isHigherPriorityWaiting(priority);
+                    if (!yielding && availablePermits >= 1) {
+                        availablePermits -= 1;
+                        break;
+                    }
+
+                    if (yielding) {
+                        // woken up once the higher priority request got its permit
+                        permitsChanged.await();
+                    } else {
+                        final long nanosUntilPermit = (long) Math.ceil((1 - availablePermits) / permitsPerNano);
+                        permitsChanged.awaitNanos(Math.max(nanosUntilPermit, MIN_WAIT_NANOS));
+                    }
+                }
+            } finally {
+                waiting[priority.ordinal()]--;
+                permitsChanged.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        acquired[priority.ordinal()].increment();
+        queueingDelayNanos[priority.ordinal()].add(ticker.read() - startNanos);
+    }
+
+    /**
+     * Like {@link #acquire(Priority)}, but keeps waiting when interrupted. The
+     * interrupt flag is restored before returning.
+     *
+     * @param priority The priority of the request about to be made.
+     */
+    public void acquireUninterruptibly(final Priority priority) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    acquire(priority);
+                    return;
+                } catch (final InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void refill(final long nowNanos) {
+        final long elapsedNanos = nowNanos - lastRefillNanos;
+        if (elapsedNanos > 0) {
+            availablePermits = Math.min(burst, availablePermits + elapsedNanos * permitsPerNano);
+            lastRefillNanos = nowNanos;
+        }
+    }
+
+    private boolean isHigherPriorityWaiting(final Priority priority) {
+        for (int i = 0; i < priority.ordinal(); i++) {
+            if (waiting[i] > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param priority The priority to look up.
+     * @return How many requests of the given priority are currently waiting
+     *         for a permit.
+     */
+    public int getQueueLength(final Priority priority) {
+        lock.lock();
+        try {
+            return waiting[priority.ordinal()];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param priority The priority to look up.
+     * @return How many permits were handed out to requests of the given
+     *         priority.
+     */
+    public long getAcquiredCount(final Priority priority) {
+        return acquired[priority.ordinal()].sum();
+    }
+
+    /**
+     * @param priority The priority to look up.
+     * @return The total time, in nanoseconds, requests of the given priority
+     *         spent waiting for a permit.
+     */
+    public long getQueueingDelayNanos(final Priority priority) {
+        return queueingDelayNanos[priority.ordinal()].sum();
+    }
+
+    /**
+     * @param priority The priority to look up.
+     * @return The average time, in milliseconds, requests of the given
+     *         priority spent waiting for a permit.
+     */
+    public double getAverageQueueingDelayMillis(final Priority priority) {
+        final long count = getAcquiredCount(priority);
+        if (count == 0) {
+            return 0;
+        }
+        return (double) getQueueingDelayNanos(priority) / count / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    @Export(name = "high-priority-queue-length", doc = "Registrations and heartbeats waiting for a permit")
+    public int getHighPriorityQueueLength() {
+        return getQueueLength(Priority.HIGH);
+    }
+
+    @Export(name = "low-priority-queue-length", doc = "Discovery refreshes waiting for a permit")
+    public int getLowPriorityQueueLength() {
+        return getQueueLength(Priority.LOW);
+    }
+
+    @Export(name = "high-priority-queueing-delay-millis", doc = "Average wait for a permit of registrations and heartbeats")
+    public double getHighPriorityAverageQueueingDelayMillis() {
+        return getAverageQueueingDelayMillis(Priority.HIGH);
+    }
+
+    @Export(name = "low-priority-queueing-delay-millis", doc = "Average wait for a permit of discovery refreshes")
+    public double getLowPriorityAverageQueueingDelayMillis() {
+        return getAverageQueueingDelayMillis(Priority.LOW);
+    }
+
+    private static LongAdder[] newAdders() {
+        final LongAdder[] adders = new LongAdder[Priority.values().length];
+        for (int i = 0; i < adders.length; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    /**
+     * Priority of a request to consul. Declared from highest to lowest.
+     */
+    public enum Priority {
+        /** Registrations, heartbeats and deregistrations. */
+        HIGH,
+        /** Discovery refreshes and reconciliations with the agent. */
+        LOW
+    }
+}
@@ -1,8 +1,13 @@
 package com.indeed.grpc.consul;
 
+import com.ecwid.consul.SingleUrlParameters;
+import com.ecwid.consul.transport.RawResponse;
+import com.ecwid.consul.v1.ConsulRawClient;
+import com.ecwid.consul.v1.OperationException;
 import com.ecwid.consul.v1.agent.AgentClient;
 import com.ecwid.consul.v1.agent.model.NewService;
 import com.ecwid.consul.v1.agent.model.NewService.Check;
+import com.ecwid.consul.v1.agent.model.Service;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
 import com.google.common.base.Strings;
@@ -11,7 +16,10 @@ import com.google.common.collect.Sets;
 import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
+import com.indeed.grpc.LoadReporter;
+import com.indeed.grpc.ServerLoad;
 import com.indeed.grpc.ServiceRegistrar;
+import com.indeed.grpc.netty.SharedResources;
 import io.grpc.Server;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -20,17 +28,26 @@ import javax.annotation.Nullable;
 import java.io.Closeable;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.stream.Stream;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Strings.isNullOrEmpty;
 
@@ -41,6 +58,16 @@ import static com.google.common.base.Strings.isNullOrEmpty;
  * the local consul agent. It then enables a heartbeat by default to ensure the
  * service remains registered in consul.
  *
+ * With a readiness, see {@link Builder#withReadiness(CompletionStage)},
+ * services are registered out of rotation and only brought into rotation once
+ * the server is warm, optionally with a slow start weight ramping up in the
+ * output of their checks.
+ *
+ * The load and the slow start weight are only published, in the output of
+ * the TTL checks, for the balancers and dashboards reading consul. Nothing in
+ * this library reads them back: the {@link ConsulNameResolver} only takes the
+ * status of the checks into account.
+ *
  * Also see:
  * https://www.consul.io/api/agent/service.html#register-service
  * https://www.consul.io/api/agent/check.html#ttl-check-pass
@@ -52,9 +79,17 @@ public final class ConsulServiceRegistrar implements ServiceRegistrar, Closeable
 
     private final Map<String, ScheduledFuture> servicePingers = new ConcurrentHashMap<>();
     private final Set<String> servicesWithoutPingers = Sets.newConcurrentHashSet();
+    private final ConcurrentMap<ServiceRegistration.Key, ServiceRegistration> registrations = new ConcurrentHashMap<>();
+    private final Map<String, ServiceRegistration> registrationsById = new ConcurrentHashMap<>();
+    // the payload the agent last accepted for every id, until a request about the service fails
+    private final Map<String, String> confirmedPayloads = new ConcurrentHashMap<>();
 
     private final ScheduledExecutorService scheduledExecutorService;
+    private final boolean sharedScheduledExecutorService;
+    private final Executor ioExecutor;
     private final AgentClient agentClient;
+    @Nullable
+    private final ConsulRawClient consulRawClient;
     private final int heartbeatPeriod;
     private final TimeUnit heartbeatPeriodTimeUnit;
     private final List<String> tags;
@@ -62,26 +97,99 @@ public final class ConsulServiceRegistrar implements ServiceRegistrar, Closeable
     private final List<Check> checks;
     private final boolean usingTtlCheck;
     private final String consulToken;
+    private final ConsulRequestGovernor requestGovernor;
+    private final DrainMode drainMode;
+    private final int drainPeriod;
+    private final TimeUnit drainPeriodTimeUnit;
+    @Nullable
+    private final LoadReporter loadReporter;
+    private final double loadReportThreshold;
+    private final WarmUpStatus warmUpStatus;
+    private final double slowStartInitialWeight;
+    private final long slowStartPeriodNanos;
+    @Nullable
+    private final ScheduledFuture<?> reconciliation;
+
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private final ReentrantLock reconcileLock = new ReentrantLock();
+    // the ids this registrar deregistered, until the agent no longer has them
+    private final Set<String> deregisteredIds = Sets.newConcurrentHashSet();
+
+    private volatile boolean closing = false;
+
+    private volatile boolean draining = false;
+    // held for reading while bringing a service into rotation, and for writing to start draining
+    private final ReentrantReadWriteLock drainLock = new ReentrantReadWriteLock();
+
+    // the load last published in the check of every service, by id
+    private final Map<String, ServerLoad> publishedLoads = new ConcurrentHashMap<>();
+
+    // when the readiness completed, or -1 while warming up
+    private volatile long readySinceNanos = -1;
 
     private ConsulServiceRegistrar(
             final ScheduledExecutorService scheduledExecutorService,
+            final boolean sharedScheduledExecutorService,
+            final Executor ioExecutor,
             final AgentClient agentClient,
+            @Nullable final ConsulRawClient consulRawClient,
             final int heartbeatPeriod,
             final TimeUnit heartbeatPeriodTimeUnit,
             final List<String> tags,
             final Set<String> excludedServices,
             final List<Check> checks,
-            final String consulToken
+            final String consulToken,
+            final ConsulRequestGovernor requestGovernor,
+            final DrainMode drainMode,
+            final int drainPeriod,
+            final TimeUnit drainPeriodTimeUnit,
+            @Nullable final LoadReporter loadReporter,
+            final double loadReportThreshold,
+            @Nullable final CompletionStage<?> readiness,
+            final WarmUpStatus warmUpStatus,
+            final double slowStartInitialWeight,
+            final long slowStartPeriodNanos,
+            final long reconcilePeriodNanos
     ) {
         this.scheduledExecutorService = scheduledExecutorService;
+        this.sharedScheduledExecutorService = sharedScheduledExecutorService;
+        this.ioExecutor = ioExecutor;
         this.agentClient = agentClient;
+        this.consulRawClient = consulRawClient;
         this.heartbeatPeriod = heartbeatPeriod;
         this.heartbeatPeriodTimeUnit = heartbeatPeriodTimeUnit;
         this.tags = Lists.newArrayList(tags);
         this.excludedServices = Sets.newHashSet(excludedServices);
         this.checks = Lists.newArrayList(checks);
-        this.usingTtlCheck = checks.stream().anyMatch((check) -> !isNullOrEmpty(check.getTtl()));
+        this.usingTtlCheck = hasTtlCheck(checks);
         this.consulToken = consulToken;
+        this.requestGovernor = requestGovernor;
+        this.drainMode = drainMode;
+        this.drainPeriod = drainPeriod;
+        this.drainPeriodTimeUnit = drainPeriodTimeUnit;
+        this.loadReporter = loadReporter;
+        this.loadReportThreshold = loadReportThreshold;
+        this.warmUpStatus = warmUpStatus;
+        this.slowStartInitialWeight = slowStartInitialWeight;
+        this.slowStartPeriodNanos = slowStartPeriodNanos;
+        this.reconciliation = reconcilePeriodNanos > 0
+                ? scheduledExecutorService.scheduleWithFixedDelay(
+                        () -> ioExecutor.execute(this::reconcileQuietly),
+                        reconcilePeriodNanos, reconcilePeriodNanos, TimeUnit.NANOSECONDS
+                )
+                : null;
+
+        if (readiness == null) {
+            readySinceNanos = System.nanoTime();
+        } else {
+            readiness.whenComplete((result, e) -> {
+                if (e != null) {
+                    LOGGER.error("Readiness failed, services stay out of rotation", e);
+                } else {
+                    onReady();
+                }
+            });
+        }
     }
 
     /**
@@ -119,23 +227,40 @@ public final class ConsulServiceRegistrar implements ServiceRegistrar, Closeable
         checkNotNull(Strings.emptyToNull(advertiseAddress), "advertiseAddress");
         checkNotNull(Strings.emptyToNull(serviceName), "serviceName");
 
-        final String id = computeId(advertiseAddress, port, serviceName);
+        final ServiceRegistration registration = getRegistration(serviceName, advertiseAddress, port);
+        final String id = registration.getId();
 
-        final NewService newService = new NewService();
-        newService.setId(id);
-        newService.setName(serviceName);
-        newService.setTags(tags);
-        newService.setAddress(advertiseAddress);
-        newService.setPort(port);
-        newService.setChecks(checks);
+        if (isRegistered(registration)) {
+            LOGGER.debug("Service with id [{}] is already registered, skipping", id);
+            return;
+        }
 
-        agentClient.agentServiceRegister(newService, consulToken);
+        deregisteredIds.remove(id);
+        confirmedPayloads.remove(id);
+        requestGovernor.acquireUninterruptibly(ConsulRequestGovernor.Priority.HIGH);
+        agentClient.agentServiceRegister(registration.getNewService(), consulToken);
+        if (registration.isWarmingUp() && !usingTtlCheck) {
+            try {
+                requestGovernor.acquireUninterruptibly(ConsulRequestGovernor.Priority.HIGH);
+                setMaintenance(id, true, WARMING_UP_NOTE);
+            } catch (final RuntimeException e) {
+                // not tracked yet, it must not stay in the agent in rotation
+                try {
+                    deregisterService(id);
+                } catch (final RuntimeException deregistrationException) {
+                    e.addSuppressed(deregistrationException);
+                }
+                throw e;
+            }
+        }
+        registrationsById.put(id, registration);
 
         // only set up the heartbeat if we're using a TTL check
         final ScheduledFuture future;
         if (usingTtlCheck) {
+            final Runnable heartbeat = () -> heartbeat(registration);
             future = scheduledExecutorService.scheduleAtFixedRate(
-                    () -> heartbeat(id), heartbeatPeriod, heartbeatPeriod, heartbeatPeriodTimeUnit
+                    () -> ioExecutor.execute(heartbeat), heartbeatPeriod, heartbeatPeriod, heartbeatPeriodTimeUnit
             );
 
             final ScheduledFuture previous = servicePingers.put(id, future);
@@ -145,23 +270,235 @@ public final class ConsulServiceRegistrar implements ServiceRegistrar, Closeable
         } else {
             servicesWithoutPingers.add(id);
         }
+        confirmedPayloads.put(id, registration.getPayload());
+
+        // the readiness completed while registering
+        if (registration.isWarmingUp() && isReady()) {
+            ioExecutor.execute(() -> bringIntoRotation(id));
+        }
+    }
+
+    /**
+     * Registering a service is a write the agent syncs to the servers, and
+     * rescheduling its heartbeat delays it. Neither is needed when the agent
+     * was last sent the same payload for the id, which covers its tags,
+     * checks, address and port.
+     *
+     * A failed heartbeat or registration forgets the payload, since the agent
+     * may have lost the service, so the next registration is sent again.
+     *
+     * @return True if the registration was accepted by the agent, nothing
+     *         about it failed since, and its heartbeat, if any, is scheduled.
+     */
+    private boolean isRegistered(final ServiceRegistration registration) {
+        final String id = registration.getId();
+        if (!registration.getPayload().equals(confirmedPayloads.get(id))) {
+            return false;
+        }
+        return servicePingers.containsKey(id) || servicesWithoutPingers.contains(id);
     }
 
     /**
-     * Using the given id, force the agent to pass the check for the service.
+     * @return The registration for the given triplet, built on first use and
+     *         reused afterwards so re-registering a service is cheap.
+     */
+    @VisibleForTesting
+    ServiceRegistration getRegistration(final String serviceName, final String advertiseAddress, final int port) {
+        final boolean warmingUp = !isReady();
+        return registrations.compute(
+                new ServiceRegistration.Key(advertiseAddress, port, serviceName),
+                (key, existing) -> existing != null && existing.isWarmingUp() == warmingUp
+                        ? existing
+                        : ServiceRegistration.create(key, tags, checks, warmingUp ? warmUpStatus.checkStatus : null)
+        );
+    }
+
+    private boolean isReady() {
+        return readySinceNanos != -1;
+    }
+
+    /**
+     * Brings every service registered while warming up into rotation, right
+     * away rather than on the next heartbeat.
+     */
+    private void onReady() {
+        readySinceNanos = System.nanoTime();
+        LOGGER.info("Ready, bringing services into rotation");
+
+        for (final ServiceRegistration registration : registrationsById.values()) {
+            if (registration.isWarmingUp()) {
+                ioExecutor.execute(() -> bringIntoRotation(registration.getId()));
+            }
+        }
+    }
+
+    private void bringIntoRotation(final String id) {
+        final ServiceRegistration registration = registrationsById.get(id);
+        if (registration == null) {
+            return;
+        }
+
+        if (servicesWithoutPingers.contains(id)) {
+            try {
+                requestGovernor.acquireUninterruptibly(ConsulRequestGovernor.Priority.HIGH);
+                drainLock.readLock().lock();
+                try {
+                    if (!draining) {
+                        setMaintenance(id, false, null);
+                    }
+                } finally {
+                    drainLock.readLock().unlock();
+                }
+            } catch (final Throwable e) {
+                confirmedPayloads.remove(id);
+                LOGGER.error("Failed to bring service with id [" + id + "] into rotation", e);
+            }
+        } else {
+            heartbeat(registration);
+        }
+    }
+
+    /**
+     * The agent client of consul-api can't send the consul token along with
+     * maintenance requests, so those go through the raw client when there is
+     * a token.
+     */
+    private void setMaintenance(final String id, final boolean enable, @Nullable final String reason) {
+        if (consulToken == null) {
+            agentClient.agentServiceSetMaintenance(id, enable, reason);
+            return;
+        }
+
+        final RawResponse rawResponse = checkNotNull(consulRawClient, "consulRawClient").makePutRequest(
+                "/v1/agent/service/maintenance/" + id,
+                "",
+                new SingleUrlParameters("enable", Boolean.toString(enable)),
+                reason == null ? null : new SingleUrlParameters("reason", reason),
+                new SingleUrlParameters("token", consulToken)
+        );
+        if (rawResponse.getStatusCode() != 200) {
+            throw new OperationException(rawResponse);
+        }
+    }
+
+    private static boolean hasTtlCheck(final List<Check> checks) {
+        return checks.stream().anyMatch((check) -> !isNullOrEmpty(check.getTtl()));
+    }
+
+    /**
+     * Using the given registration, force the agent to pass the check for the service.
      * This will trigger the service TTL in consul. This bit of code was found
      * in the depths of the spring-cloud-consul source where they do the same
      * logic for the whole application using the lifecycle manager.
      *
-     * @param id The id of the service.
+     * When a {@link LoadReporter} is configured, the current load is sent as
+     * the output of the check. The output only changes when the load changed
+     * significantly, so the agent doesn't sync every heartbeat to the servers.
+     *
+     * Cancelling the pinger doesn't stop a heartbeat already running on the
+     * io executor, so {@link #drain()} waits for the heartbeats in flight
+     * before marking the services as draining, and the heartbeats check the
+     * drain again once they got their permit.
+     *
+     * @param registration The registration of the service.
      */
-    private void heartbeat(final String id) {
-        LOGGER.trace("Heartbeating service with id [" + id + "] in consul");
+    private void heartbeat(final ServiceRegistration registration) {
+        if (draining) {
+            return;
+        }
+
+        LOGGER.trace("Heartbeating service with id [{}] in consul", registration.getId());
         try {
-            agentClient.agentCheckPass("service:" + id, consulToken);
+            requestGovernor.acquire(ConsulRequestGovernor.Priority.HIGH);
+            drainLock.readLock().lock();
+            try {
+                if (!draining) {
+                    sendHeartbeat(registration);
+                }
+            } finally {
+                drainLock.readLock().unlock();
+            }
+        } catch (final InterruptedException e) {
+            // the heartbeat was cancelled while waiting for a permit
+            Thread.currentThread().interrupt();
         } catch (final Throwable e) {
-            LOGGER.error("Failed to register service with id [" + id + "] into consul", e);
+            confirmedPayloads.remove(registration.getId());
+            LOGGER.error("Failed to register service with id [" + registration.getId() + "] into consul", e);
+        }
+    }
+
+    private void sendHeartbeat(final ServiceRegistration registration) {
+        if (!isReady()) {
+            // keeps the TTL from expiring without bringing the service into rotation
+            if (warmUpStatus == WarmUpStatus.WARNING) {
+                agentClient.agentCheckWarn(registration.getCheckId(), WARMING_UP_NOTE, consulToken);
+            } else {
+                agentClient.agentCheckFail(registration.getCheckId(), WARMING_UP_NOTE, consulToken);
+            }
+            return;
+        }
+
+        final String output = checkOutput(registration.getId());
+        if (output == null) {
+            agentClient.agentCheckPass(registration.getCheckId(), consulToken);
+        } else {
+            agentClient.agentCheckPass(registration.getCheckId(), output, consulToken);
+        }
+    }
+
+    /**
+     * @return The output of a passing check: the current load and, while
+     *         slow starting, the weight. Null if there is nothing to publish.
+     */
+    @Nullable
+    private String checkOutput(final String id) {
+        final double weight = computeSlowStartWeight(
+                System.nanoTime() - readySinceNanos, slowStartPeriodNanos, slowStartInitialWeight
+        );
+        final String formattedWeight = weight < 1
+                ? String.format(Locale.US, "weight=%.2f", weight)
+                : null;
+
+        if (loadReporter == null) {
+            return formattedWeight;
         }
+        final String load = currentLoad(id).toString();
+        return formattedWeight == null ? load : load + " " + formattedWeight;
+    }
+
+    /**
+     * The weight ramps up linearly from the initial weight, in steps of a
+     * tenth so that the output of the check, which the agent syncs to the
+     * servers, only changes a handful of times.
+     *
+     * @return The weight within [initialWeight, 1] of a service that became
+     *         ready the given time ago.
+     */
+    @VisibleForTesting
+    static double computeSlowStartWeight(final long elapsedNanos, final long periodNanos, final double initialWeight) {
+        if (elapsedNanos >= periodNanos) {
+            return 1;
+        }
+
+        final double weight = initialWeight + (1 - initialWeight) * elapsedNanos / periodNanos;
+        return Math.max(initialWeight, Math.floor(weight * 10) / 10);
+    }
+
+    /**
+     * Every service keeps its own published load, since the heartbeats of
+     * the services run concurrently and their checks are updated apart.
+     *
+     * @return The load to publish for the service, which is only replaced by
+     *         a fresh sample when it differs significantly from the one it
+     *         published.
+     */
+    private ServerLoad currentLoad(final String id) {
+        checkNotNull(loadReporter, "loadReporter");
+
+        final ServerLoad sample = loadReporter.sample();
+        return publishedLoads.compute(id, (key, previous) ->
+                previous != null && !sample.differsSignificantly(previous, loadReportThreshold) ? previous : sample
+        );
     }
 
     /**
@@ -171,18 +508,262 @@ public final class ConsulServiceRegistrar implements ServiceRegistrar, Closeable
      */
     @VisibleForTesting
     void deregisterService(final String id) {
-        agentClient.agentServiceDeregister(id, consulToken);
+        // remembered first, so that a failed deregistration is retried by the reconciliation
+        deregisteredIds.add(id);
 
         final ScheduledFuture future = servicePingers.remove(id);
         if (future != null) {
             future.cancel(true);
         }
+        servicesWithoutPingers.remove(id);
+        registrationsById.remove(id);
+        confirmedPayloads.remove(id);
+        publishedLoads.remove(id);
+
+        requestGovernor.acquireUninterruptibly(ConsulRequestGovernor.Priority.HIGH);
+        agentClient.agentServiceDeregister(id, consulToken);
+    }
+
+    /**
+     * Take every registered service out of rotation without deregistering it.
+     * Heartbeats are stopped and, depending on the {@link DrainMode}, the TTL
+     * checks are marked as warning or critical, or the services are put into
+     * maintenance mode. Services registered without a TTL check are always
+     * put into maintenance mode.
+     *
+     * Clients stop resolving this instance once they next poll consul. The
+     * server should keep serving until then.
+     *
+     * @see #shutdownGracefully(Server, long, TimeUnit)
+     */
+    public void drain() {
+        // waits for the heartbeats in flight, none is sent afterwards
+        drainLock.writeLock().lock();
+        try {
+            draining = true;
+        } finally {
+            drainLock.writeLock().unlock();
+        }
+
+        servicePingers.forEach((id, future) -> {
+            future.cancel(true);
+            markDraining(id, drainMode);
+        });
+        servicesWithoutPingers.forEach((id) -> markDraining(id, DrainMode.MAINTENANCE));
+    }
+
+    private void markDraining(final String id, final DrainMode mode) {
+        LOGGER.info("Draining service with id [{}] in consul using {}", id, mode);
+        final ServiceRegistration registration = registrationsById.get(id);
+        final String checkId = registration == null ? "service:" + id : registration.getCheckId();
+        try {
+            requestGovernor.acquireUninterruptibly(ConsulRequestGovernor.Priority.HIGH);
+            switch (mode) {
+                case WARNING:
+                    agentClient.agentCheckWarn(checkId, DRAINING_NOTE, consulToken);
+                    break;
+                case CRITICAL:
+                    agentClient.agentCheckFail(checkId, DRAINING_NOTE, consulToken);
+                    break;
+                case MAINTENANCE:
+                    setMaintenance(id, true, DRAINING_NOTE);
+                    break;
+            }
+        } catch (final Throwable e) {
+            LOGGER.error("Failed to drain service with id [" + id + "] in consul", e);
+        }
+    }
+
+    /**
+     * Gracefully take the provided server out of rotation and shut it down:
+     *
+     * <ol>
+     *     <li>every registered service is {@link #drain() drained},</li>
+     *     <li>the server keeps serving for the drain period so that clients
+     *         have time to notice,</li>
+     *     <li>the server is shut down, letting in-flight calls finish for up to
+     *         the provided timeout,</li>
+     *     <li>every registered service is deregistered.</li>
+     * </ol>
+     *
+     * The drain period should be at least as long as the resolve interval of
+     * the clients.
+     *
+     * @param server The server to shut down.
+     * @param timeout How long to wait for in-flight calls to finish.
+     * @param unit The unit of the timeout.
+     * @return True if the server terminated within the timeout.
+     * @throws InterruptedException If interrupted while draining.
+     * @throws IOException If deregistration fails.
+     */
+    public boolean shutdownGracefully(
+            final Server server,
+            final long timeout,
+            final TimeUnit unit
+    ) throws InterruptedException, IOException {
+        drain();
+
+        drainPeriodTimeUnit.sleep(drainPeriod);
+
+        server.shutdown();
+        final boolean terminated = server.awaitTermination(timeout, unit);
+
+        close();
+        return terminated;
+    }
+
+    /**
+     * Converges the agent towards the services this registrar registered,
+     * from a single read of the services of the agent:
+     *
+     * <ul>
+     *     <li>registered services missing from the agent, or whose name, tags,
+     *     address or port differ, are registered again, then put back into
+     *     maintenance mode, warm-up status or drain as they were. This also
+     *     covers the leftovers of a crashed process on the same address and
+     *     port, which have the same id;</li>
+     *     <li>services this registrar deregistered but still in the agent,
+     *     after a failed deregistration, are deregistered again.</li>
+     * </ul>
+     *
+     * Services of the agent this registrar never owned are left alone, since
+     * they may belong to other live processes on the same host.
+     *
+     * Nothing is written when the agent already agrees, so that reconciling
+     * every few seconds is cheap. Nothing is done while draining or once
+     * closing.
+     *
+     * @return The number of services registered or deregistered.
+     */
+    @VisibleForTesting
+    int reconcile() {
+        reconcileLock.lock();
+        try {
+            return reconcileLocked();
+        } finally {
+            reconcileLock.unlock();
+        }
+    }
+
+    private int reconcileLocked() {
+        if (draining || closing) {
+            return 0;
+        }
+
+        requestGovernor.acquireUninterruptibly(ConsulRequestGovernor.Priority.LOW);
+        final Map<String, Service> agentServices = agentClient.getAgentServices().getValue();
+        if (agentServices == null) {
+            return 0;
+        }
+
+        int writes = 0;
+        for (final ServiceRegistration registration : registrationsById.values()) {
+            final NewService newService = registration.getNewService();
+            if (!matches(agentServices.get(registration.getId()), newService)) {
+                LOGGER.info("Service with id [{}] drifted in the agent, registering it again", registration.getId());
+                requestGovernor.acquireUninterruptibly(ConsulRequestGovernor.Priority.HIGH);
+                agentClient.agentServiceRegister(newService, consulToken);
+                restoreState(registration);
+                writes++;
+            }
+        }
+
+        for (final String id : deregisteredIds) {
+            if (registrationsById.containsKey(id)) {
+                continue;
+            }
+            if (!agentServices.containsKey(id)) {
+                deregisteredIds.remove(id);
+                continue;
+            }
+
+            LOGGER.info("Deregistering stale service with id [{}] from the agent", id);
+            requestGovernor.acquireUninterruptibly(ConsulRequestGovernor.Priority.HIGH);
+            agentClient.agentServiceDeregister(id, consulToken);
+            writes++;
+        }
+        return writes;
+    }
+
+    /**
+     * A service registered again starts over from the initial status of its
+     * checks, without maintenance mode. This puts it back in the state it
+     * was in: warming up, in rotation, or draining.
+     */
+    private void restoreState(final ServiceRegistration registration) {
+        final String id = registration.getId();
+        if (servicePingers.containsKey(id)) {
+            // sends the warm-up status until ready, and nothing once draining
+            heartbeat(registration);
+        } else if (!isReady()) {
+            requestGovernor.acquireUninterruptibly(ConsulRequestGovernor.Priority.HIGH);
+            drainLock.readLock().lock();
+            try {
+                if (!draining) {
+                    setMaintenance(id, true, WARMING_UP_NOTE);
+                }
+            } finally {
+                drainLock.readLock().unlock();
+            }
+
+            // the readiness completed while putting it into maintenance mode
+            if (isReady()) {
+                ioExecutor.execute(() -> bringIntoRotation(id));
+            }
+        }
+
+        // a drain started before the service was registered again only marked the previous one
+        if (draining) {
+            markDraining(id, servicePingers.containsKey(id) ? drainMode : DrainMode.MAINTENANCE);
+        }
+    }
+
+    private void reconcileQuietly() {
+        // a slow reconciliation is not overlapped by the next one
+        if (!reconcileLock.tryLock()) {
+            return;
+        }
+
+        try {
+            reconcileLocked();
+        } catch (final Throwable e) {
+            LOGGER.error("Failed to reconcile services with the consul agent", e);
+        } finally {
+            reconcileLock.unlock();
+        }
+    }
+
+    private static boolean matches(@Nullable final Service service, final NewService newService) {
+        return service != null
+                && Objects.equals(service.getService(), newService.getName())
+                && Objects.equals(service.getAddress(), newService.getAddress())
+                && Objects.equals(service.getPort(), newService.getPort())
+                && Objects.equals(
+                        new HashSet<>(nullToEmpty(service.getTags())),
+                        new HashSet<>(nullToEmpty(newService.getTags()))
+                );
+    }
+
+    private static List<String> nullToEmpty(@Nullable final List<String> tags) {
+        return tags == null ? Collections.emptyList() : tags;
     }
 
     @Override
     public void close() throws IOException {
+        closing = true;
+        if (reconciliation != null) {
+            reconciliation.cancel(false);
+        }
+        // waits for a reconciliation in progress, so that it can't register again what is deregistered below
+        reconcileLock.lock();
+        reconcileLock.unlock();
+
         servicePingers.keySet().forEach(this::deregisterService);
         servicesWithoutPingers.forEach(this::deregisterService);
+
+        if (sharedScheduledExecutorService && closed.compareAndSet(false, true)) {
+            SharedResources.release(SharedResources.SCHEDULER, scheduledExecutorService);
+        }
     }
 
 
@@ -223,6 +804,57 @@ public final class ConsulServiceRegistrar implements ServiceRegistrar, Closeable
     }
     private static final HashFunction SHA256 = Hashing.sha256();
 
+    private static final String DRAINING_NOTE = "draining";
+    private static final String WARMING_UP_NOTE = "warming up";
+
+    /**
+     * How services are taken out of rotation when {@link #drain() draining}.
+     */
+    public enum DrainMode {
+        /**
+         * Mark the TTL check as warning. Only clients that filter on passing
+         * checks, such as the {@link ConsulNameResolver} by default, stop
+         * resolving the service. Consul DNS still resolves it.
+         */
+        WARNING,
+        /**
+         * Mark the TTL check as critical. Clients reading the catalog rather
+         * than the health endpoint still resolve the service.
+         */
+        CRITICAL,
+        /**
+         * Put the service into maintenance mode. With a consul token, this
+         * requires the {@link Builder#setConsulRawClient(ConsulRawClient)}.
+         */
+        MAINTENANCE
+    }
+
+    /**
+     * The status of the TTL checks of the services registered before the
+     * readiness completed.
+     */
+    public enum WarmUpStatus {
+        /**
+         * Only clients that filter on passing checks, such as the
+         * {@link ConsulNameResolver} by default, don't resolve the service.
+         * Consul DNS resolves it.
+         */
+        WARNING("warning"),
+        /**
+         * Neither the clients filtering on passing checks nor consul DNS
+         * resolve the service. Clients reading the catalog rather than the
+         * health endpoint, such as a {@link ConsulNameResolver} that doesn't
+         * only resolve passing instances, still do.
+         */
+        CRITICAL("critical");
+
+        private final String checkStatus;
+
+        WarmUpStatus(final String checkStatus) {
+            this.checkStatus = checkStatus;
+        }
+    }
+
 
 
     /**
@@ -236,14 +868,29 @@ public final class ConsulServiceRegistrar implements ServiceRegistrar, Closeable
      * Builder object used to compose the {@link ConsulServiceRegistrar}.
      */
     public static final class Builder {
-        private ScheduledExecutorService scheduledExecutorService = Executors.newSingleThreadScheduledExecutor();
+        private @Nullable ScheduledExecutorService scheduledExecutorService = null;
+        private @Nullable Executor ioExecutor = null;
         private @Nullable AgentClient agentClient;
+        private @Nullable ConsulRawClient consulRawClient = null;
         private int heartbeatPeriod = 1;
         private TimeUnit heartbeatPeriodTimeUnit = TimeUnit.MINUTES;
         private List<String> tags = new ArrayList<>();
         private Set<String> excludedServices = new HashSet<>();
         private List<Check> checks = new ArrayList<>();
         private @Nullable String consulToken = null;
+        private ConsulRequestGovernor requestGovernor = ConsulRequestGovernor.getShared();
+        private DrainMode drainMode = DrainMode.CRITICAL;
+        private int drainPeriod = 1;
+        private TimeUnit drainPeriodTimeUnit = TimeUnit.MINUTES;
+        private @Nullable LoadReporter loadReporter = null;
+        private double loadReportThreshold = 0.2;
+        private @Nullable CompletionStage<?> readiness = null;
+        private WarmUpStatus warmUpStatus = WarmUpStatus.CRITICAL;
+        private double slowStartInitialWeight = 0.1;
+        private long slowStartPeriod = 0;
+        private TimeUnit slowStartPeriodTimeUnit = TimeUnit.SECONDS;
+        private long reconcilePeriod = 0;
+        private TimeUnit reconcilePeriodTimeUnit = TimeUnit.SECONDS;
 
         /**
          * @see #newBuilder()
@@ -252,10 +899,17 @@ public final class ConsulServiceRegistrar implements ServiceRegistrar, Closeable
 
         /* scheduledExecutorService */
 
+        @Nullable
         public ScheduledExecutorService getScheduledExecutorService() {
             return scheduledExecutorService;
         }
 
+        /**
+         * @param scheduledExecutorService Schedules the heartbeats, not shut
+         *                                 down by the registrar. Defaults to
+         *                                 the {@link SharedResources#SCHEDULER},
+         *                                 released on {@link #close()}.
+         */
         public void setScheduledExecutorService(final ScheduledExecutorService scheduledExecutorService) {
             this.scheduledExecutorService = checkNotNull(scheduledExecutorService, "scheduledExecutorService");
         }
@@ -265,6 +919,27 @@ public final class ConsulServiceRegistrar implements ServiceRegistrar, Closeable
             return this;
         }
 
+        /* ioExecutor */
+
+        @Nullable
+        public Executor getIoExecutor() {
+            return ioExecutor;
+        }
+
+        /**
+         * @param ioExecutor The executor heartbeats are sent on, leaving the
+         *                   scheduled executor for timing only. Defaults to
+         *                   {@link ConsulExecutors#getSharedBlockingIoExecutor()}.
+         */
+        public void setIoExecutor(final Executor ioExecutor) {
+            this.ioExecutor = checkNotNull(ioExecutor, "ioExecutor");
+        }
+
+        public Builder withIoExecutor(final Executor ioExecutor) {
+            setIoExecutor(ioExecutor);
+            return this;
+        }
+
         /* agentClient */
 
         @Nullable
@@ -371,6 +1046,33 @@ public final class ConsulServiceRegistrar implements ServiceRegistrar, Closeable
             return this;
         }
 
+        /* consulRawClient */
+
+        @Nullable
+        public ConsulRawClient getConsulRawClient() {
+            return consulRawClient;
+        }
+
+        /**
+         * @param consulRawClient A client of the same agent as the agent
+         *                        client, see
+         *                        {@link ConsulClientManager#getRawInstance(String, int)}.
+         *                        Puts services into maintenance mode with the
+         *                        consul token, which the agent client can't
+         *                        send. Required with a consul token when
+         *                        services may be put into maintenance mode:
+         *                        with the {@link DrainMode#MAINTENANCE}, or
+         *                        without a TTL check.
+         */
+        public void setConsulRawClient(final ConsulRawClient consulRawClient) {
+            this.consulRawClient = checkNotNull(consulRawClient, "consulRawClient");
+        }
+
+        public Builder withConsulRawClient(final ConsulRawClient consulRawClient) {
+            setConsulRawClient(consulRawClient);
+            return this;
+        }
+
         /* consul token */
         public void setConsulToken(final String consulToken) {
             this.consulToken = checkNotNull(consulToken, "consulToken");
@@ -381,18 +1083,265 @@ public final class ConsulServiceRegistrar implements ServiceRegistrar, Closeable
             return this;
         }
 
+        /* requestGovernor */
+
+        public ConsulRequestGovernor getRequestGovernor() {
+            return requestGovernor;
+        }
+
+        public void setRequestGovernor(final ConsulRequestGovernor requestGovernor) {
+            this.requestGovernor = checkNotNull(requestGovernor, "requestGovernor");
+        }
+
+        public Builder withRequestGovernor(final ConsulRequestGovernor requestGovernor) {
+            setRequestGovernor(requestGovernor);
+            return this;
+        }
+
+        /* drainMode */
+
+        public DrainMode getDrainMode() {
+            return drainMode;
+        }
+
+        /**
+         * @param drainMode How services are taken out of rotation when
+         *                  draining. Defaults to {@link DrainMode#CRITICAL}.
+         *                  The {@link DrainMode#MAINTENANCE} requires the
+         *                  consul raw client when there is a consul token.
+         */
+        public void setDrainMode(final DrainMode drainMode) {
+            this.drainMode = checkNotNull(drainMode, "drainMode");
+        }
+
+        public Builder withDrainMode(final DrainMode drainMode) {
+            setDrainMode(drainMode);
+            return this;
+        }
+
+        /* drainPeriod */
+
+        public int getDrainPeriod() {
+            return drainPeriod;
+        }
+
+        public void setDrainPeriod(final int drainPeriod) {
+            this.drainPeriod = drainPeriod;
+        }
+
+        public Builder withDrainPeriod(final int drainPeriod) {
+            setDrainPeriod(drainPeriod);
+            return this;
+        }
+
+        /* drainPeriodTimeUnit */
+
+        public TimeUnit getDrainPeriodTimeUnit() {
+            return drainPeriodTimeUnit;
+        }
+
+        public void setDrainPeriodTimeUnit(final TimeUnit drainPeriodTimeUnit) {
+            this.drainPeriodTimeUnit = checkNotNull(drainPeriodTimeUnit, "drainPeriodTimeUnit");
+        }
+
+        public Builder withDrainPeriodTimeUnit(final TimeUnit drainPeriodTimeUnit) {
+            setDrainPeriodTimeUnit(drainPeriodTimeUnit);
+            return this;
+        }
+
+        /* loadReporter */
+
+        @Nullable
+        public LoadReporter getLoadReporter() {
+            return loadReporter;
+        }
+
+        /**
+         * @param loadReporter Samples the load published in the output of the
+         *                     TTL checks on every heartbeat. The load is only
+         *                     published, for the balancers and dashboards
+         *                     reading consul.
+         */
+        public void setLoadReporter(final LoadReporter loadReporter) {
+            this.loadReporter = checkNotNull(loadReporter, "loadReporter");
+        }
+
+        public Builder withLoadReporter(final LoadReporter loadReporter) {
+            setLoadReporter(loadReporter);
+            return this;
+        }
+
+        /* loadReportThreshold */
+
+        public double getLoadReportThreshold() {
+            return loadReportThreshold;
+        }
+
+        /**
+         * @param loadReportThreshold The relative change in any load signal,
+         *                            within [0, 1], required before a new load
+         *                            is published.
+         */
+        public void setLoadReportThreshold(final double loadReportThreshold) {
+            checkArgument(loadReportThreshold >= 0 && loadReportThreshold <= 1,
+                    "loadReportThreshold must be within [0, 1]");
+            this.loadReportThreshold = loadReportThreshold;
+        }
+
+        public Builder withLoadReportThreshold(final double loadReportThreshold) {
+            setLoadReportThreshold(loadReportThreshold);
+            return this;
+        }
+
+        /* readiness */
+
+        @Nullable
+        public CompletionStage<?> getReadiness() {
+            return readiness;
+        }
+
+        /**
+         * @param readiness Completes once the server is warm, for example
+         *                  after running a warm-up workload. Until then,
+         *                  services are registered with their TTL checks in
+         *                  the {@link WarmUpStatus}, and services without a
+         *                  TTL check are put into maintenance mode. They are
+         *                  brought into rotation as soon as it completes, or
+         *                  never if it fails. A long warm-up must stay below
+         *                  the deregister-critical-service-after of the checks.
+         *                  Without a readiness, services are brought into
+         *                  rotation by the first heartbeat.
+         */
+        public void setReadiness(final CompletionStage<?> readiness) {
+            this.readiness = checkNotNull(readiness, "readiness");
+        }
+
+        public Builder withReadiness(final CompletionStage<?> readiness) {
+            setReadiness(readiness);
+            return this;
+        }
+
+        /* warmUpStatus */
+
+        public WarmUpStatus getWarmUpStatus() {
+            return warmUpStatus;
+        }
+
+        public void setWarmUpStatus(final WarmUpStatus warmUpStatus) {
+            this.warmUpStatus = checkNotNull(warmUpStatus, "warmUpStatus");
+        }
+
+        public Builder withWarmUpStatus(final WarmUpStatus warmUpStatus) {
+            setWarmUpStatus(warmUpStatus);
+            return this;
+        }
+
+        /* slowStart */
+
+        public double getSlowStartInitialWeight() {
+            return slowStartInitialWeight;
+        }
+
+        public long getSlowStartPeriod() {
+            return slowStartPeriod;
+        }
+
+        public TimeUnit getSlowStartPeriodTimeUnit() {
+            return slowStartPeriodTimeUnit;
+        }
+
+        /**
+         * Once ready, publish a weight ramping up from the initial weight to 1
+         * over the period in the output of the TTL checks, as
+         * {@code weight=0.40}, after the load if any. Disabled by default.
+         *
+         * consul-api doesn't support service meta, hence the check output.
+         * The weight is only published, for the balancers reading consul: the
+         * {@link ConsulNameResolver} brings the service fully into rotation
+         * as soon as its check passes.
+         *
+         * @param initialWeight Within (0, 1], the weight right after the
+         *                      readiness completed.
+         * @param period How long the ramp lasts.
+         * @param unit The unit of the period.
+         */
+        public void setSlowStart(final double initialWeight, final long period, final TimeUnit unit) {
+            checkArgument(initialWeight > 0 && initialWeight <= 1, "initialWeight must be within (0, 1]");
+            checkArgument(period >= 0, "period must not be negative");
+            this.slowStartInitialWeight = initialWeight;
+            this.slowStartPeriod = period;
+            this.slowStartPeriodTimeUnit = checkNotNull(unit, "unit");
+        }
+
+        public Builder withSlowStart(final double initialWeight, final long period, final TimeUnit unit) {
+            setSlowStart(initialWeight, period, unit);
+            return this;
+        }
+
+        /* reconcilePeriod */
+
+        public long getReconcilePeriod() {
+            return reconcilePeriod;
+        }
+
+        public TimeUnit getReconcilePeriodTimeUnit() {
+            return reconcilePeriodTimeUnit;
+        }
+
+        /**
+         * @param period How often the services of the agent are reconciled
+         *               with the registered ones, see
+         *               {@link ConsulServiceRegistrar#reconcile()}. A few
+         *               seconds is fine. Disabled by default, or when 0.
+         * @param unit The unit of the period.
+         */
+        public void setReconcilePeriod(final long period, final TimeUnit unit) {
+            checkArgument(period >= 0, "period must not be negative");
+            this.reconcilePeriod = period;
+            this.reconcilePeriodTimeUnit = checkNotNull(unit, "unit");
+        }
+
+        public Builder withReconcilePeriod(final long period, final TimeUnit unit) {
+            setReconcilePeriod(period, unit);
+            return this;
+        }
+
         /* build */
 
         public ConsulServiceRegistrar build() {
+            // services without a TTL check are drained, and warmed up, in maintenance mode
+            checkArgument(
+                    consulToken == null || consulRawClient != null
+                            || (hasTtlCheck(checks) && drainMode != DrainMode.MAINTENANCE),
+                    "consulRawClient is required to put services into maintenance mode with a consul token"
+            );
+
+            final boolean sharedScheduledExecutorService = scheduledExecutorService == null;
             return new ConsulServiceRegistrar(
-                    checkNotNull(scheduledExecutorService, "scheduledExecutorService"),
+                    sharedScheduledExecutorService
+                            ? SharedResources.get(SharedResources.SCHEDULER)
+                            : scheduledExecutorService,
+                    sharedScheduledExecutorService,
+                    ioExecutor != null ? ioExecutor : ConsulExecutors.getSharedBlockingIoExecutor(),
                     checkNotNull(agentClient, "agentClient"),
+                    consulRawClient,
                     heartbeatPeriod,
                     heartbeatPeriodTimeUnit,
                     checkNotNull(tags, "tags"),
                     checkNotNull(excludedServices, "excludedServices"),
                     checkNotNull(checks, "checks"),
-                    consulToken
+                    consulToken,
+                    checkNotNull(requestGovernor, "requestGovernor"),
+                    checkNotNull(drainMode, "drainMode"),
+                    drainPeriod,
+                    checkNotNull(drainPeriodTimeUnit, "drainPeriodTimeUnit"),
+                    loadReporter,
+                    loadReportThreshold,
+                    readiness,
+                    warmUpStatus,
+                    slowStartInitialWeight,
+                    slowStartPeriodTimeUnit.toNanos(slowStartPeriod),
+                    reconcilePeriodTimeUnit.toNanos(reconcilePeriod)
             );
         }
     }
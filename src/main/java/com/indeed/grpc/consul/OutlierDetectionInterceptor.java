@@ -0,0 +1,85 @@
+package com.indeed.grpc.consul;
+
+import com.google.common.base.Ticker;
+import com.indeed.grpc.AddressTrackingLoadBalancerFactory;
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptor;
+import io.grpc.ForwardingClientCall.SimpleForwardingClientCall;
+import io.grpc.EquivalentAddressGroup;
+import io.grpc.ForwardingClientCallListener.SimpleForwardingClientCallListener;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+
+import java.net.SocketAddress;
+
+/**
+ * Reports the outcome of every call to an {@link OutlierDetector}, keyed by
+ * the addresses of the subchannel the call was sent on. The subchannel is
+ * tracked by the {@link AddressTrackingLoadBalancerFactory} of the channel,
+ * calls on channels using another balancer are not reported.
+ *
+ * Only statuses that indicate a problem with the backend count as failures.
+ * Cancelled calls are not reported at all since the client gave up on them.
+ *
+ * @see OutlierDetector#newClientInterceptor()
+ */
+final class OutlierDetectionInterceptor implements ClientInterceptor {
+    private final OutlierDetector detector;
+    private final Ticker ticker;
+
+    OutlierDetectionInterceptor(
+            final OutlierDetector detector,
+            final Ticker ticker
+    ) {
+        this.detector = detector;
+        this.ticker = ticker;
+    }
+
+    @Override
+    public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(
+            final MethodDescriptor<ReqT, RespT> method,
+            final CallOptions callOptions,
+            final Channel next
+    ) {
+        final CallOptions trackedOptions = AddressTrackingLoadBalancerFactory.track(callOptions);
+
+        return new SimpleForwardingClientCall<ReqT, RespT>(next.newCall(method, trackedOptions)) {
+            @Override
+            public void start(final Listener<RespT> responseListener, final Metadata headers) {
+                final long startNanos = ticker.read();
+
+                super.start(new SimpleForwardingClientCallListener<RespT>(responseListener) {
+                    @Override
+                    public void onClose(final Status status, final Metadata trailers) {
+                        final EquivalentAddressGroup addresses = AddressTrackingLoadBalancerFactory.getPickedAddresses(trackedOptions);
+                        if (addresses != null && status.getCode() != Status.Code.CANCELLED) {
+                            final long latency = ticker.read() - startNanos;
+                            for (final SocketAddress address : addresses.getAddresses()) {
+                                detector.record(address, !isBackendFailure(status), latency);
+                            }
+                        }
+
+                        super.onClose(status, trailers);
+                    }
+                }, headers);
+            }
+        };
+    }
+
+    private static boolean isBackendFailure(final Status status) {
+        switch (status.getCode()) {
+            case UNAVAILABLE:
+            case INTERNAL:
+            case UNKNOWN:
+            case DEADLINE_EXCEEDED:
+            case RESOURCE_EXHAUSTED:
+            case DATA_LOSS:
+                return true;
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,566 @@
+package com.indeed.grpc.consul;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.indeed.grpc.netty.SharedResources;
+import io.grpc.ClientInterceptor;
+import io.grpc.EquivalentAddressGroup;
+import io.grpc.internal.LogExceptionRunnable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.Closeable;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Client-side outlier detection for addresses published by the
+ * {@link ConsulNameResolver}.
+ *
+ * Calls are observed through the {@link ClientInterceptor} returned by
+ * {@link #newClientInterceptor()}, which records the outcome and latency of
+ * every call against the address of the subchannel it was sent on, as tracked
+ * by an {@link com.indeed.grpc.AddressTrackingLoadBalancerFactory}. On every
+ * evaluation interval, addresses whose failure rate exceeds the configured
+ * threshold, or whose mean latency is a configured factor slower than the
+ * median address, are ejected for a period of time. Repeated ejections of the same address
+ * back off linearly up to a maximum ejection time.
+ *
+ * Resolvers that share this detector are notified whenever the set of ejected
+ * addresses changes and republish their last known address list without
+ * going back to consul. At most {@code maxEjectionPercent} of a resolver's
+ * addresses are ever ejected, and a list is never filtered down to nothing.
+ *
+ * Loosely based off of the outlier detection found in envoy.
+ *
+ * @see ConsulNameResolverProvider.Builder#withOutlierDetector(OutlierDetector)
+ */
+@ThreadSafe
+public final class OutlierDetector implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(OutlierDetector.class);
+
+    private final ConcurrentMap<SocketAddress, AddressStats> stats = new ConcurrentHashMap<>();
+    private final Set<Runnable> listeners = new CopyOnWriteArraySet<>();
+
+    private final Ticker ticker;
+    private final int minimumRequests;
+    private final double failureRateThreshold;
+    private final double latencyFactor;
+    private final long baseEjectionTimeNanos;
+    private final long maxEjectionTimeNanos;
+    private final int maxEjectionPercent;
+
+    private final ScheduledExecutorService timerService;
+    private final boolean sharedTimerService;
+    private final ScheduledFuture<?> evaluationTask;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    private volatile int ejectedCount = 0;
+
+    private OutlierDetector(
+            final ScheduledExecutorService timerService,
+            final boolean sharedTimerService,
+            final Ticker ticker,
+            final long interval,
+            final TimeUnit intervalTimeUnit,
+            final int minimumRequests,
+            final double failureRateThreshold,
+            final double latencyFactor,
+            final long baseEjectionTime,
+            final long maxEjectionTime,
+            final TimeUnit ejectionTimeUnit,
+            final int maxEjectionPercent
+    ) {
+        this.timerService = timerService;
+        this.sharedTimerService = sharedTimerService;
+        this.ticker = ticker;
+        this.minimumRequests = minimumRequests;
+        this.failureRateThreshold = failureRateThreshold;
+        this.latencyFactor = latencyFactor;
+        this.baseEjectionTimeNanos = ejectionTimeUnit.toNanos(baseEjectionTime);
+        this.maxEjectionTimeNanos = ejectionTimeUnit.toNanos(maxEjectionTime);
+        this.maxEjectionPercent = maxEjectionPercent;
+
+        this.evaluationTask = timerService.scheduleAtFixedRate(
+                new LogExceptionRunnable(this::evaluate),
+                interval, interval, intervalTimeUnit
+        );
+    }
+
+    /**
+     * @return A new interceptor that reports the outcome of every call to
+     *         this detector. It should be installed on every channel that
+     *         resolves through a resolver using this detector, and these
+     *         channels must balance with an
+     *         {@link com.indeed.grpc.AddressTrackingLoadBalancerFactory}.
+     */
+    public ClientInterceptor newClientInterceptor() {
+        return new OutlierDetectionInterceptor(this, ticker);
+    }
+
+    /**
+     * Record the outcome of a single call.
+     *
+     * @param address The remote address the call was sent to.
+     * @param success Whether the backend handled the call successfully.
+     * @param latencyNanos How long the call took.
+     */
+    void record(final SocketAddress address, final boolean success, final long latencyNanos) {
+        AddressStats addressStats = stats.get(address);
+        if (addressStats == null) {
+            addressStats = stats.computeIfAbsent(address, (key) -> new AddressStats());
+        }
+
+        if (success) {
+            addressStats.successes.increment();
+        } else {
+            addressStats.failures.increment();
+        }
+        addressStats.latencyNanos.add(latencyNanos);
+    }
+
+    /**
+     * @param address The remote address to check.
+     * @return True if the address is currently ejected.
+     */
+    public boolean isEjected(final SocketAddress address) {
+        final AddressStats addressStats = stats.get(address);
+        return addressStats != null && addressStats.ejected;
+    }
+
+    @VisibleForTesting
+    boolean isTracked(final SocketAddress address) {
+        return stats.containsKey(address);
+    }
+
+    /**
+     * Remove every currently ejected address from the provided list, up to
+     * {@code maxEjectionPercent} of the list. Groups are only removed when
+     * every one of their addresses is ejected.
+     *
+     * @param servers The full list of servers as known by consul.
+     * @return The list of servers that should receive traffic.
+     */
+    List<EquivalentAddressGroup> filter(final List<EquivalentAddressGroup> servers) {
+        if (ejectedCount == 0) {
+            return servers;
+        }
+
+        int remainingEjections = servers.size() * maxEjectionPercent / 100;
+        if (remainingEjections == 0) {
+            return servers;
+        }
+
+        final List<EquivalentAddressGroup> filtered = new ArrayList<>(servers.size());
+        for (final EquivalentAddressGroup server : servers) {
+            if (remainingEjections > 0 && isEjected(server)) {
+                remainingEjections--;
+            } else {
+                filtered.add(server);
+            }
+        }
+
+        if (filtered.isEmpty()) {
+            return servers;
+        }
+        return filtered;
+    }
+
+    private boolean isEjected(final EquivalentAddressGroup server) {
+        for (final SocketAddress address : server.getAddresses()) {
+            if (!isEjected(address)) {
+                return false;
+            }
+        }
+        return !server.getAddresses().isEmpty();
+    }
+
+    void addListener(final Runnable listener) {
+        listeners.add(checkNotNull(listener, "listener"));
+    }
+
+    void removeListener(final Runnable listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Evaluate the statistics gathered since the last evaluation, ejecting
+     * outliers and reinstating addresses whose ejection has expired.
+     */
+    @VisibleForTesting
+    void evaluate() {
+        final long now = ticker.read();
+
+        final List<AddressSample> samples = new ArrayList<>(stats.size());
+        for (final Map.Entry<SocketAddress, AddressStats> entry : stats.entrySet()) {
+            final AddressStats addressStats = entry.getValue();
+            final long successes = addressStats.successes.sumThenReset();
+            final long failures = addressStats.failures.sumThenReset();
+            final long latencyNanos = addressStats.latencyNanos.sumThenReset();
+            samples.add(new AddressSample(entry.getKey(), addressStats, successes, failures, latencyNanos));
+        }
+
+        final double medianLatencyNanos = medianLatencyNanos(samples);
+
+        boolean changed = false;
+        int ejected = 0;
+        for (final AddressSample sample : samples) {
+            final AddressStats addressStats = sample.addressStats;
+
+            if (addressStats.ejected) {
+                if (now - addressStats.ejectedUntilNanos >= 0) {
+                    LOGGER.info("Reinstating address [{}] after outlier ejection", sample.address);
+                    addressStats.ejected = false;
+                    changed = true;
+                } else {
+                    ejected++;
+                }
+
+            } else if (isOutlier(sample, medianLatencyNanos)) {
+                addressStats.ejectionCount++;
+                final long ejectionTimeNanos = Math.min(
+                        baseEjectionTimeNanos * addressStats.ejectionCount,
+                        maxEjectionTimeNanos
+                );
+
+                LOGGER.warn("Ejecting outlier address [{}] for {}ms", sample.address,
+                        TimeUnit.NANOSECONDS.toMillis(ejectionTimeNanos));
+
+                addressStats.ejectedUntilNanos = now + ejectionTimeNanos;
+                addressStats.ejected = true;
+                changed = true;
+                ejected++;
+
+            } else if (addressStats.ejectionCount > 0) {
+                // an idle address decays too, or one that left resolution after an ejection would be tracked forever
+                if (sample.requests() == 0 || sample.requests() >= minimumRequests) {
+                    addressStats.ejectionCount--;
+                }
+
+            } else if (sample.requests() == 0) {
+                // nothing was sent to this address for a whole interval, stop tracking it
+                stats.remove(sample.address, addressStats);
+            }
+        }
+
+        ejectedCount = ejected;
+
+        if (changed) {
+            for (final Runnable listener : listeners) {
+                listener.run();
+            }
+        }
+    }
+
+    private boolean isOutlier(final AddressSample sample, final double medianLatencyNanos) {
+        final long requests = sample.requests();
+        if (requests < minimumRequests) {
+            return false;
+        }
+
+        if (sample.failures > requests * failureRateThreshold) {
+            return true;
+        }
+
+        return latencyFactor > 0
+                && medianLatencyNanos > 0
+                && sample.meanLatencyNanos() > medianLatencyNanos * latencyFactor;
+    }
+
+    private double medianLatencyNanos(final List<AddressSample> samples) {
+        final double[] latencies = new double[samples.size()];
+        int count = 0;
+        for (final AddressSample sample : samples) {
+            if (!sample.addressStats.ejected && sample.requests() >= minimumRequests) {
+                latencies[count++] = sample.meanLatencyNanos();
+            }
+        }
+
+        // a median of fewer than three addresses can't single out a slow one
+        if (count < 3) {
+            return 0;
+        }
+
+        Arrays.sort(latencies, 0, count);
+        return latencies[count / 2];
+    }
+
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+
+        evaluationTask.cancel(false);
+        listeners.clear();
+
+        // a timer service set on the builder is not shut down since it may be shared with other components
+        if (sharedTimerService) {
+            SharedResources.release(SharedResources.SCHEDULER, timerService);
+        }
+    }
+
+    private static final class AddressStats {
+        private final LongAdder successes = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder latencyNanos = new LongAdder();
+
+        // only modified by the evaluation task
+        private volatile boolean ejected = false;
+        private long ejectedUntilNanos = 0;
+        private int ejectionCount = 0;
+    }
+
+    private static final class AddressSample {
+        private final SocketAddress address;
+        private final AddressStats addressStats;
+        private final long successes;
+        private final long failures;
+        private final long latencyNanos;
+
+        private AddressSample(
+                final SocketAddress address,
+                final AddressStats addressStats,
+                final long successes,
+                final long failures,
+                final long latencyNanos
+        ) {
+            this.address = address;
+            this.addressStats = addressStats;
+            this.successes = successes;
+            this.failures = failures;
+            this.latencyNanos = latencyNanos;
+        }
+
+        private long requests() {
+            return successes + failures;
+        }
+
+        private double meanLatencyNanos() {
+            final long requests = requests();
+            return requests == 0 ? 0 : (double) latencyNanos / requests;
+        }
+    }
+
+    /**
+     * @return A new builder used to compose and tune an outlier detector.
+     */
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    /**
+     * Builder object used to compose the {@link OutlierDetector}.
+     */
+    public static final class Builder {
+        private @Nullable ScheduledExecutorService timerService = null;
+        private Ticker ticker = Ticker.systemTicker();
+        private long interval = 10;
+        private TimeUnit intervalTimeUnit = TimeUnit.SECONDS;
+        private int minimumRequests = 20;
+        private double failureRateThreshold = 0.5;
+        private double latencyFactor = 3.0;
+        private long baseEjectionTime = 30;
+        private long maxEjectionTime = 5 * 60;
+        private TimeUnit ejectionTimeUnit = TimeUnit.SECONDS;
+        private int maxEjectionPercent = 20;
+
+        /**
+         * @see #newBuilder()
+         */
+        private Builder() {}
+
+        /* timerService */
+
+        @Nullable
+        public ScheduledExecutorService getTimerService() {
+            return timerService;
+        }
+
+        /**
+         * @param timerService Runs the periodic evaluation, not shut down by
+         *                     the detector. Defaults to the
+         *                     {@link SharedResources#SCHEDULER}, released on
+         *                     {@link OutlierDetector#close()}.
+         */
+        public void setTimerService(final ScheduledExecutorService timerService) {
+            this.timerService = checkNotNull(timerService, "timerService");
+        }
+
+        public Builder withTimerService(final ScheduledExecutorService timerService) {
+            setTimerService(timerService);
+            return this;
+        }
+
+        /* ticker */
+
+        public Ticker getTicker() {
+            return ticker;
+        }
+
+        public void setTicker(final Ticker ticker) {
+            this.ticker = checkNotNull(ticker, "ticker");
+        }
+
+        public Builder withTicker(final Ticker ticker) {
+            setTicker(ticker);
+            return this;
+        }
+
+        /* interval */
+
+        public long getInterval() {
+            return interval;
+        }
+
+        public TimeUnit getIntervalTimeUnit() {
+            return intervalTimeUnit;
+        }
+
+        public void setInterval(final long interval, final TimeUnit intervalTimeUnit) {
+            checkArgument(interval > 0, "interval must be positive");
+            this.interval = interval;
+            this.intervalTimeUnit = checkNotNull(intervalTimeUnit, "intervalTimeUnit");
+        }
+
+        public Builder withInterval(final long interval, final TimeUnit intervalTimeUnit) {
+            setInterval(interval, intervalTimeUnit);
+            return this;
+        }
+
+        /* minimumRequests */
+
+        public int getMinimumRequests() {
+            return minimumRequests;
+        }
+
+        public void setMinimumRequests(final int minimumRequests) {
+            checkArgument(minimumRequests > 0, "minimumRequests must be positive");
+            this.minimumRequests = minimumRequests;
+        }
+
+        public Builder withMinimumRequests(final int minimumRequests) {
+            setMinimumRequests(minimumRequests);
+            return this;
+        }
+
+        /* failureRateThreshold */
+
+        public double getFailureRateThreshold() {
+            return failureRateThreshold;
+        }
+
+        public void setFailureRateThreshold(final double failureRateThreshold) {
+            checkArgument(failureRateThreshold >= 0 && failureRateThreshold <= 1,
+                    "failureRateThreshold must be within [0, 1]");
+            this.failureRateThreshold = failureRateThreshold;
+        }
+
+        public Builder withFailureRateThreshold(final double failureRateThreshold) {
+            setFailureRateThreshold(failureRateThreshold);
+            return this;
+        }
+
+        /* latencyFactor */
+
+        public double getLatencyFactor() {
+            return latencyFactor;
+        }
+
+        /**
+         * @param latencyFactor How many times slower than the median address
+         *                      an address has to be to get ejected. Zero
+         *                      disables latency based ejection.
+         */
+        public void setLatencyFactor(final double latencyFactor) {
+            checkArgument(latencyFactor == 0 || latencyFactor > 1, "latencyFactor must be zero or greater than one");
+            this.latencyFactor = latencyFactor;
+        }
+
+        public Builder withLatencyFactor(final double latencyFactor) {
+            setLatencyFactor(latencyFactor);
+            return this;
+        }
+
+        /* ejectionTime */
+
+        public long getBaseEjectionTime() {
+            return baseEjectionTime;
+        }
+
+        public long getMaxEjectionTime() {
+            return maxEjectionTime;
+        }
+
+        public TimeUnit getEjectionTimeUnit() {
+            return ejectionTimeUnit;
+        }
+
+        public void setEjectionTime(final long baseEjectionTime, final long maxEjectionTime, final TimeUnit ejectionTimeUnit) {
+            checkArgument(baseEjectionTime > 0, "baseEjectionTime must be positive");
+            checkArgument(maxEjectionTime >= baseEjectionTime, "maxEjectionTime must be at least baseEjectionTime");
+            this.baseEjectionTime = baseEjectionTime;
+            this.maxEjectionTime = maxEjectionTime;
+            this.ejectionTimeUnit = checkNotNull(ejectionTimeUnit, "ejectionTimeUnit");
+        }
+
+        public Builder withEjectionTime(final long baseEjectionTime, final long maxEjectionTime, final TimeUnit ejectionTimeUnit) {
+            setEjectionTime(baseEjectionTime, maxEjectionTime, ejectionTimeUnit);
+            return this;
+        }
+
+        /* maxEjectionPercent */
+
+        public int getMaxEjectionPercent() {
+            return maxEjectionPercent;
+        }
+
+        public void setMaxEjectionPercent(final int maxEjectionPercent) {
+            checkArgument(maxEjectionPercent >= 0 && maxEjectionPercent <= 100,
+                    "maxEjectionPercent must be within [0, 100]");
+            this.maxEjectionPercent = maxEjectionPercent;
+        }
+
+        public Builder withMaxEjectionPercent(final int maxEjectionPercent) {
+            setMaxEjectionPercent(maxEjectionPercent);
+            return this;
+        }
+
+        /* build */
+
+        public OutlierDetector build() {
+            final boolean shared = timerService == null;
+            return new OutlierDetector(
+                    shared ? SharedResources.get(SharedResources.SCHEDULER) : timerService,
+                    shared,
+                    ticker,
+                    interval,
+                    intervalTimeUnit,
+                    minimumRequests,
+                    failureRateThreshold,
+                    latencyFactor,
+                    baseEjectionTime,
+                    maxEjectionTime,
+                    ejectionTimeUnit,
+                    maxEjectionPercent
+            );
+        }
+    }
+}
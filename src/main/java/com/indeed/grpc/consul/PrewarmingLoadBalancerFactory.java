@@ -0,0 +1,382 @@
+package com.indeed.grpc.consul;
+
+import io.grpc.Attributes;
+import io.grpc.ConnectivityState;
+import io.grpc.ConnectivityStateInfo;
+import io.grpc.EquivalentAddressGroup;
+import io.grpc.LoadBalancer;
+import io.grpc.ManagedChannel;
+import io.grpc.NameResolver;
+import io.grpc.Status;
+import io.grpc.util.RoundRobinLoadBalancerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+import javax.annotation.concurrent.ThreadSafe;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A {@link LoadBalancer.Factory} connecting to the addresses published by the
+ * {@link ConsulNameResolver} before the channel reports itself ready.
+ *
+ * The addresses of every resolution are handed to the delegate balancer in
+ * waves: at most {@code maxConcurrentConnections} addresses are connecting
+ * for the first time at once, and the next address is handed over as soon as
+ * one of them is connected or failed. Calls are only sent to connected
+ * addresses meanwhile, and the handshakes of a large service aren't all paid
+ * at once by the first calls after startup or a deploy.
+ *
+ * The channel stays {@link ConnectivityState#CONNECTING} until
+ * {@code readyFraction} of the addresses are connected, or every address was
+ * tried, so that {@link #awaitReady(ManagedChannel, long, TimeUnit)} can gate
+ * the startup of a client on a warm channel.
+ *
+ * <pre>
+ * final ManagedChannel channel = NettyChannelBuilder.forTarget("consul:///MyServiceName")
+ *         .nameResolverFactory(consulNameResolverProvider)
+ *         .loadBalancerFactory(PrewarmingLoadBalancerFactory.newBuilder().build())
+ *         .build();
+ * PrewarmingLoadBalancerFactory.awaitReady(channel, 10, TimeUnit.SECONDS);
+ * </pre>
+ */
+@ThreadSafe
+public final class PrewarmingLoadBalancerFactory extends LoadBalancer.Factory {
+    private final LoadBalancer.Factory delegate;
+    private final int maxConcurrentConnections;
+    private final double readyFraction;
+
+    private PrewarmingLoadBalancerFactory(
+            final LoadBalancer.Factory delegate,
+            final int maxConcurrentConnections,
+            final double readyFraction
+    ) {
+        this.delegate = delegate;
+        this.maxConcurrentConnections = maxConcurrentConnections;
+        this.readyFraction = readyFraction;
+    }
+
+    @Override
+    public LoadBalancer newLoadBalancer(final LoadBalancer.Helper helper) {
+        return new PrewarmingLoadBalancer(helper, delegate, maxConcurrentConnections, readyFraction);
+    }
+
+    /**
+     * Starts the name resolution and the connections of an idle channel, and
+     * waits for it to be ready.
+     *
+     * @param channel The channel to warm up.
+     * @param timeout How long to wait at most.
+     * @param unit The unit of the timeout.
+     * @return True if the channel is ready, false if the timeout elapsed or
+     *         the channel was shut down first.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public static boolean awaitReady(
+            final ManagedChannel channel,
+            final long timeout,
+            final TimeUnit unit
+    ) throws InterruptedException {
+        final long deadlineNanos = System.nanoTime() + unit.toNanos(timeout);
+
+        ConnectivityState state = channel.getState(true);
+        while (state != ConnectivityState.READY) {
+            if (state == ConnectivityState.SHUTDOWN) {
+                return false;
+            }
+
+            final CountDownLatch changed = new CountDownLatch(1);
+            channel.notifyWhenStateChanged(state, changed::countDown);
+            if (!changed.await(deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+            // reconnects if the channel went idle meanwhile
+            state = channel.getState(true);
+        }
+        return true;
+    }
+
+    /**
+     * All the methods of a balancer are called from the channel executor,
+     * one at a time.
+     */
+    @NotThreadSafe
+    static final class PrewarmingLoadBalancer extends LoadBalancer {
+        private final LoadBalancer.Helper helper;
+        private final LoadBalancer delegate;
+        private final int maxConcurrentConnections;
+        private final double readyFraction;
+
+        private List<EquivalentAddressGroup> resolved = Collections.emptyList();
+        private Attributes resolvedAttributes = Attributes.EMPTY;
+        private Set<List<SocketAddress>> resolvedKeys = Collections.emptySet();
+
+        // the addresses handed to the delegate
+        private final Set<List<SocketAddress>> admitted = new HashSet<>();
+        // the admitted addresses whose first connection is in progress
+        private final Set<List<SocketAddress>> connecting = new HashSet<>();
+        // the admitted addresses whose first connection succeeded
+        private final Set<List<SocketAddress>> connected = new HashSet<>();
+
+        private boolean ready = false;
+        @Nullable
+        private SubchannelPicker heldPicker = null;
+
+        PrewarmingLoadBalancer(
+                final LoadBalancer.Helper helper,
+                final LoadBalancer.Factory delegateFactory,
+                final int maxConcurrentConnections,
+                final double readyFraction
+        ) {
+            this.helper = helper;
+            this.delegate = delegateFactory.newLoadBalancer(new HoldingHelper());
+            this.maxConcurrentConnections = maxConcurrentConnections;
+            this.readyFraction = readyFraction;
+        }
+
+        @Override
+        public void handleResolvedAddressGroups(
+                final List<EquivalentAddressGroup> servers,
+                final Attributes attributes
+        ) {
+            final Set<List<SocketAddress>> keys = new HashSet<>();
+            for (final EquivalentAddressGroup server : servers) {
+                keys.add(server.getAddresses());
+            }
+
+            resolved = servers;
+            resolvedAttributes = attributes;
+            resolvedKeys = keys;
+            admitted.retainAll(keys);
+            connecting.retainAll(keys);
+            connected.retainAll(keys);
+
+            admit();
+        }
+
+        @Override
+        public void handleNameResolutionError(final Status error) {
+            delegate.handleNameResolutionError(error);
+        }
+
+        @Override
+        public void handleSubchannelState(final Subchannel subchannel, final ConnectivityStateInfo stateInfo) {
+            delegate.handleSubchannelState(subchannel, stateInfo);
+
+            final List<SocketAddress> key = subchannel.getAddresses().getAddresses();
+            if (!connecting.contains(key)) {
+                return;
+            }
+
+            switch (stateInfo.getState()) {
+                case READY:
+                    connected.add(key);
+                    break;
+                case TRANSIENT_FAILURE:
+                case SHUTDOWN:
+                    break;
+                default:
+                    // still connecting
+                    return;
+            }
+
+            connecting.remove(key);
+            admit();
+        }
+
+        @Override
+        public void shutdown() {
+            delegate.shutdown();
+        }
+
+        /**
+         * Hands the admitted addresses, and as many new ones as connections
+         * may be started, to the delegate.
+         */
+        private void admit() {
+            final List<EquivalentAddressGroup> servers = new ArrayList<>(resolved.size());
+            for (final EquivalentAddressGroup server : resolved) {
+                final List<SocketAddress> key = server.getAddresses();
+                if (!admitted.contains(key) && connecting.size() < maxConcurrentConnections) {
+                    admitted.add(key);
+                    connecting.add(key);
+                }
+                if (admitted.contains(key)) {
+                    servers.add(server);
+                }
+            }
+
+            delegate.handleResolvedAddressGroups(servers, resolvedAttributes);
+            updateReadiness();
+        }
+
+        private void updateReadiness() {
+            if (ready) {
+                return;
+            }
+
+            final boolean allTried = connecting.isEmpty() && admitted.size() == resolvedKeys.size();
+            if (connected.size() < Math.ceil(readyFraction * resolvedKeys.size()) && !allTried) {
+                return;
+            }
+
+            ready = true;
+            if (heldPicker != null) {
+                helper.updateBalancingState(ConnectivityState.READY, heldPicker);
+                heldPicker = null;
+            }
+        }
+
+        /**
+         * Reports the channel as connecting while not warm yet. The picker is
+         * installed nonetheless, so that calls are sent to the addresses
+         * already connected.
+         */
+        private final class HoldingHelper extends LoadBalancer.Helper {
+            @Override
+            public Subchannel createSubchannel(final EquivalentAddressGroup addrs, final Attributes attrs) {
+                return helper.createSubchannel(addrs, attrs);
+            }
+
+            @Override
+            public void updateSubchannelAddresses(final Subchannel subchannel, final EquivalentAddressGroup addrs) {
+                helper.updateSubchannelAddresses(subchannel, addrs);
+            }
+
+            @Override
+            public ManagedChannel createOobChannel(final EquivalentAddressGroup eag, final String authority) {
+                return helper.createOobChannel(eag, authority);
+            }
+
+            @Override
+            public void updateOobChannelAddresses(final ManagedChannel channel, final EquivalentAddressGroup eag) {
+                helper.updateOobChannelAddresses(channel, eag);
+            }
+
+            @Override
+            public void updateBalancingState(final ConnectivityState newState, final SubchannelPicker newPicker) {
+                if (!ready && newState == ConnectivityState.READY) {
+                    heldPicker = newPicker;
+                    helper.updateBalancingState(ConnectivityState.CONNECTING, newPicker);
+                    return;
+                }
+
+                heldPicker = null;
+                helper.updateBalancingState(newState, newPicker);
+            }
+
+            @Override
+            public void runSerialized(final Runnable task) {
+                helper.runSerialized(task);
+            }
+
+            @Override
+            public NameResolver.Factory getNameResolverFactory() {
+                return helper.getNameResolverFactory();
+            }
+
+            @Override
+            public String getAuthority() {
+                return helper.getAuthority();
+            }
+        }
+    }
+
+    /**
+     * @return A new builder used to compose a factory.
+     */
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    /**
+     * Builder object used to compose the {@link PrewarmingLoadBalancerFactory}.
+     */
+    public static final class Builder {
+        private LoadBalancer.Factory delegate = RoundRobinLoadBalancerFactory.getInstance();
+        private int maxConcurrentConnections = 8;
+        private double readyFraction = 0.75;
+
+        /**
+         * @see #newBuilder()
+         */
+        private Builder() {}
+
+        /* delegate */
+
+        public LoadBalancer.Factory getDelegate() {
+            return delegate;
+        }
+
+        /**
+         * @param delegate The balancer the warm addresses are handed to.
+         *                 Defaults to round robin, which connects to every
+         *                 address it's given.
+         */
+        public void setDelegate(final LoadBalancer.Factory delegate) {
+            this.delegate = checkNotNull(delegate, "delegate");
+        }
+
+        public Builder withDelegate(final LoadBalancer.Factory delegate) {
+            setDelegate(delegate);
+            return this;
+        }
+
+        /* maxConcurrentConnections */
+
+        public int getMaxConcurrentConnections() {
+            return maxConcurrentConnections;
+        }
+
+        /**
+         * @param maxConcurrentConnections How many addresses may be connecting
+         *                                 for the first time at once.
+         *                                 Defaults to 8.
+         */
+        public void setMaxConcurrentConnections(final int maxConcurrentConnections) {
+            checkArgument(maxConcurrentConnections > 0, "maxConcurrentConnections must be positive");
+            this.maxConcurrentConnections = maxConcurrentConnections;
+        }
+
+        public Builder withMaxConcurrentConnections(final int maxConcurrentConnections) {
+            setMaxConcurrentConnections(maxConcurrentConnections);
+            return this;
+        }
+
+        /* readyFraction */
+
+        public double getReadyFraction() {
+            return readyFraction;
+        }
+
+        /**
+         * @param readyFraction Within [0, 1], the fraction of the addresses
+         *                      that must be connected before the channel is
+         *                      reported ready. Defaults to 0.75.
+         */
+        public void setReadyFraction(final double readyFraction) {
+            checkArgument(readyFraction >= 0 && readyFraction <= 1, "readyFraction must be within [0, 1]");
+            this.readyFraction = readyFraction;
+        }
+
+        public Builder withReadyFraction(final double readyFraction) {
+            setReadyFraction(readyFraction);
+            return this;
+        }
+
+        /* build */
+
+        public PrewarmingLoadBalancerFactory build() {
+            return new PrewarmingLoadBalancerFactory(delegate, maxConcurrentConnections, readyFraction);
+        }
+    }
+}
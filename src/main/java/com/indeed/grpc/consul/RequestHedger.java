@@ -0,0 +1,233 @@
+package com.indeed.grpc.consul;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Sends the same request to several equivalent endpoints, one after the
+ * other, and keeps the first acceptable response.
+ *
+ * The first attempt is sent right away. When it hasn't completed after the
+ * hedge delay, the next attempt is sent without cancelling the first one, and
+ * so on until an attempt returns an acceptable response or every attempt
+ * completed. The remaining attempts are then cancelled.
+ *
+ * Once every attempt was sent, the calling thread runs the attempts the
+ * executor hasn't started yet rather than waiting on them. The executor can
+ * therefore be the one the caller runs on, even a bounded one.
+ *
+ * Once enough attempts completed, the hedge delay is the configured quantile
+ * of the recent attempt latencies, so only the slowest requests get hedged.
+ * Until then, the configured delay is used.
+ */
+@ThreadSafe
+final class RequestHedger {
+    private static final int MAX_SAMPLES = 64;
+    private static final int MIN_SAMPLES = 16;
+    private static final long MIN_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final Executor executor;
+    private final long delayNanos;
+    private final double quantile;
+
+    @GuardedBy("latencySamples")
+    private final long[] latencySamples = new long[MAX_SAMPLES];
+    @GuardedBy("latencySamples")
+    private int sampleCount = 0;
+    @GuardedBy("latencySamples")
+    private int nextSample = 0;
+
+    private final LongAdder hedgedCount = new LongAdder();
+
+    /**
+     * @param executor The executor attempts run on when there is more than
+     *                 one. Attempts it can't run are run by the caller.
+     * @param delayNanos The hedge delay used until enough latencies were
+     *                   observed.
+     * @param quantile The quantile of the observed latencies used as the
+     *                 hedge delay, within (0, 1). Zero always uses the
+     *                 configured delay.
+     */
+    RequestHedger(
+            final Executor executor,
+            final long delayNanos,
+            final double quantile
+    ) {
+        checkArgument(delayNanos >= 0, "delayNanos cannot be negative");
+        checkArgument(quantile >= 0 && quantile < 1, "quantile must be within [0, 1)");
+
+        this.executor = executor;
+        this.delayNanos = delayNanos;
+        this.quantile = quantile;
+    }
+
+    /**
+     * Run the attempts until one of them returns an acceptable response. A
+     * single attempt runs on the calling thread.
+     *
+     * @param attempts The equivalent attempts, in the order they are sent.
+     * @param acceptable Whether a response can be returned. Rejected
+     *                   responses are treated like failed attempts.
+     * @return The first acceptable response.
+     * @throws InterruptedException If interrupted while waiting.
+     * @throws Exception The failure of the last attempt when none of them
+     *                   returned an acceptable response.
+     */
+    <T> T call(
+            final List<? extends Callable<T>> attempts,
+            final Predicate<? super T> acceptable
+    ) throws Exception {
+        checkArgument(!attempts.isEmpty(), "attempts cannot be empty");
+
+        if (attempts.size() == 1) {
+            final T response = timed(attempts.get(0)).call();
+            if (!acceptable.test(response)) {
+                throw new RejectedResponseException();
+            }
+            return response;
+        }
+
+        final BlockingQueue<Future<T>> completions = new LinkedBlockingQueue<>();
+        final List<FutureTask<T>> futures = new ArrayList<>(attempts.size());
+        try {
+            submit(attempts.get(0), futures, completions);
+
+            Exception lastFailure = null;
+            int completed = 0;
+            int helped = 0;
+            while (completed < attempts.size()) {
+                Future<T> future;
+                if (futures.size() < attempts.size()) {
+                    future = completions.poll(getHedgeDelayNanos(), TimeUnit.NANOSECONDS);
+                    if (future == null) {
+                        hedgedCount.increment();
+                        submit(attempts.get(futures.size()), futures, completions);
+                        continue;
+                    }
+                } else {
+                    future = completions.poll();
+                    if (future == null && helped < futures.size()) {
+                        // the executor may be busy with the caller itself, run what it hasn't started yet
+                        futures.get(helped++).run();
+                        continue;
+                    }
+                    if (future == null) {
+                        future = completions.take();
+                    }
+                }
+
+                completed++;
+                try {
+                    final T response = future.get();
+                    if (acceptable.test(response)) {
+                        return response;
+                    }
+                    lastFailure = new RejectedResponseException();
+                } catch (final ExecutionException e) {
+                    lastFailure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+
+                // don't wait for the hedge delay once an attempt failed
+                if (futures.size() < attempts.size()) {
+                    submit(attempts.get(futures.size()), futures, completions);
+                }
+            }
+
+            throw lastFailure;
+        } finally {
+            futures.forEach((future) -> future.cancel(true));
+        }
+    }
+
+    private <T> void submit(
+            final Callable<T> attempt,
+            final List<FutureTask<T>> futures,
+            final BlockingQueue<Future<T>> completions
+    ) {
+        final FutureTask<T> future = new FutureTask<T>(timed(attempt)) {
+            @Override
+            protected void done() {
+                completions.add(this);
+            }
+        };
+        futures.add(future);
+
+        try {
+            executor.execute(future);
+        } catch (final RejectedExecutionException e) {
+            // left for the calling thread to run once it has nothing else to wait on
+        }
+    }
+
+    private <T> Callable<T> timed(final Callable<T> attempt) {
+        return () -> {
+            final long startNanos = System.nanoTime();
+            final T response = attempt.call();
+            recordLatency(System.nanoTime() - startNanos);
+            return response;
+        };
+    }
+
+    private void recordLatency(final long latencyNanos) {
+        synchronized (latencySamples) {
+            latencySamples[nextSample] = latencyNanos;
+            nextSample = (nextSample + 1) % MAX_SAMPLES;
+            sampleCount = Math.min(sampleCount + 1, MAX_SAMPLES);
+        }
+    }
+
+    /**
+     * @return The delay after which the next attempt is sent.
+     */
+    long getHedgeDelayNanos() {
+        if (quantile == 0) {
+            return delayNanos;
+        }
+
+        final long[] samples;
+        synchronized (latencySamples) {
+            if (sampleCount < MIN_SAMPLES) {
+                return delayNanos;
+            }
+            samples = Arrays.copyOf(latencySamples, sampleCount);
+        }
+
+        Arrays.sort(samples);
+        final int index = Math.min(samples.length - 1, (int) Math.ceil(quantile * samples.length) - 1);
+        return Math.max(MIN_DELAY_NANOS, samples[Math.max(0, index)]);
+    }
+
+    /**
+     * @return How many attempts were sent because an earlier one was slow.
+     */
+    long getHedgedCount() {
+        return hedgedCount.sum();
+    }
+
+    /**
+     * Thrown when no attempt returned an acceptable response.
+     */
+    static final class RejectedResponseException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        RejectedResponseException() {
+            super("no acceptable response");
+        }
+    }
+}
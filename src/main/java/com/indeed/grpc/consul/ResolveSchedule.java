@@ -0,0 +1,94 @@
+package com.indeed.grpc.consul;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Computes the delay between two resolutions of a {@link ConsulNameResolver}.
+ *
+ * Every delay is spread uniformly by {@code jitter} in both directions so
+ * that a fleet of clients that started at the same time does not keep polling
+ * consul in lockstep.
+ *
+ * When the minimum interval is lower than the interval, the schedule is
+ * adaptive: after the resolved addresses change, or after a failed
+ * resolution, the next resolution happens after the minimum interval. Every
+ * resolution that doesn't observe a change doubles the delay until it reaches
+ * the interval again.
+ *
+ * Each resolver owns its own schedule.
+ */
+@NotThreadSafe
+final class ResolveSchedule {
+    private final long minIntervalNanos;
+    private final long maxIntervalNanos;
+    private final double jitter;
+
+    private long currentIntervalNanos;
+
+    ResolveSchedule(
+            final long minIntervalNanos,
+            final long maxIntervalNanos,
+            final double jitter
+    ) {
+        checkArgument(minIntervalNanos > 0, "minIntervalNanos must be positive");
+        checkArgument(maxIntervalNanos >= minIntervalNanos, "maxIntervalNanos must be at least minIntervalNanos");
+        checkArgument(jitter >= 0 && jitter < 1, "jitter must be within [0, 1)");
+
+        this.minIntervalNanos = minIntervalNanos;
+        this.maxIntervalNanos = maxIntervalNanos;
+        this.jitter = jitter;
+        this.currentIntervalNanos = maxIntervalNanos;
+    }
+
+    /**
+     * @return A schedule that always waits {@code interval} between two
+     *         resolutions.
+     */
+    static ResolveSchedule fixed(final long interval, final TimeUnit intervalTimeUnit) {
+        final long intervalNanos = intervalTimeUnit.toNanos(interval);
+        return new ResolveSchedule(intervalNanos, intervalNanos, 0);
+    }
+
+    /**
+     * @param outcome The outcome of the resolution that just finished.
+     * @return The delay, in nanoseconds, until the next resolution.
+     */
+    long nextDelayNanos(final Outcome outcome) {
+        if (outcome == Outcome.UNCHANGED) {
+            currentIntervalNanos = Math.min(currentIntervalNanos * 2, maxIntervalNanos);
+        } else {
+            currentIntervalNanos = minIntervalNanos;
+        }
+
+        return jitter(currentIntervalNanos);
+    }
+
+    @VisibleForTesting
+    long getCurrentIntervalNanos() {
+        return currentIntervalNanos;
+    }
+
+    private long jitter(final long intervalNanos) {
+        if (jitter == 0) {
+            return intervalNanos;
+        }
+
+        final double spread = intervalNanos * jitter;
+        return (long) (intervalNanos + ThreadLocalRandom.current().nextDouble(-spread, spread));
+    }
+
+    enum Outcome {
+        /** The resolved addresses differ from the previous resolution. */
+        CHANGED,
+        /** The resolved addresses are the same as the previous resolution. */
+        UNCHANGED,
+        /** The resolution failed. */
+        FAILED
+    }
+}
@@ -0,0 +1,168 @@
+package com.indeed.grpc.consul;
+
+import com.ecwid.consul.json.GsonFactory;
+import com.ecwid.consul.v1.agent.model.NewService;
+import com.ecwid.consul.v1.agent.model.NewService.Check;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import java.util.List;
+import java.util.Objects;
+
+import static com.google.common.base.Strings.isNullOrEmpty;
+
+/**
+ * Everything the {@link ConsulServiceRegistrar} needs to register, heartbeat
+ * and deregister a single service, computed once per
+ * {@code advertiseAddress} / {@code port} / {@code serviceName} triplet.
+ *
+ * The {@link NewService} must not be modified once the registration is built.
+ */
+@Immutable
+final class ServiceRegistration {
+    private final String id;
+    private final String checkId;
+    private final List<String> tags;
+    private final NewService newService;
+    private final String payload;
+    private final boolean warmingUp;
+
+    private ServiceRegistration(
+            final String id,
+            final List<String> tags,
+            final NewService newService,
+            final boolean warmingUp
+    ) {
+        this.id = id;
+        this.checkId = "service:" + id;
+        this.tags = tags;
+        this.newService = newService;
+        this.payload = GsonFactory.getGson().toJson(newService);
+        this.warmingUp = warmingUp;
+    }
+
+    /**
+     * @param warmUpStatus The initial status of the TTL checks while the
+     *                     server warms up, or null once it's ready.
+     */
+    static ServiceRegistration create(
+            final Key key,
+            final List<String> tags,
+            final List<Check> checks,
+            @Nullable final String warmUpStatus
+    ) {
+        final String id = ConsulServiceRegistrar.computeId(key.advertiseAddress, key.port, key.serviceName);
+        final List<String> immutableTags = ImmutableList.copyOf(tags);
+
+        final NewService newService = new NewService();
+        newService.setId(id);
+        newService.setName(key.serviceName);
+        newService.setTags(immutableTags);
+        newService.setAddress(key.advertiseAddress);
+        newService.setPort(key.port);
+        newService.setChecks(warmUpStatus == null
+                ? ImmutableList.copyOf(checks)
+                : ImmutableList.copyOf(Lists.transform(checks, (check) -> withStatus(check, warmUpStatus))));
+
+        return new ServiceRegistration(id, immutableTags, newService, warmUpStatus != null);
+    }
+
+    /**
+     * @return A copy of a TTL check with the given initial status, the other
+     *         checks as is since consul runs them itself.
+     */
+    private static Check withStatus(final Check check, final String status) {
+        if (isNullOrEmpty(check.getTtl())) {
+            return check;
+        }
+
+        final Check copy = new Check();
+        copy.setScript(check.getScript());
+        copy.setInterval(check.getInterval());
+        copy.setTtl(check.getTtl());
+        copy.setHttp(check.getHttp());
+        copy.setTcp(check.getTcp());
+        copy.setTimeout(check.getTimeout());
+        copy.setDeregisterCriticalServiceAfter(check.getDeregisterCriticalServiceAfter());
+        copy.setTlsSkipVerify(check.getTlsSkipVerify());
+        copy.setStatus(status);
+        return copy;
+    }
+
+    /**
+     * @return The id of the service.
+     */
+    String getId() {
+        return id;
+    }
+
+    /**
+     * @return The id of the check consul creates for the service's first check.
+     */
+    String getCheckId() {
+        return checkId;
+    }
+
+    List<String> getTags() {
+        return tags;
+    }
+
+    NewService getNewService() {
+        return newService;
+    }
+
+    /**
+     * @return True if the TTL checks were registered in their warm-up status.
+     */
+    boolean isWarmingUp() {
+        return warmingUp;
+    }
+
+    /**
+     * @return The json form of the {@link NewService}, as sent to the agent.
+     */
+    String getPayload() {
+        return payload;
+    }
+
+    /**
+     * Key of a registration.
+     */
+    @Immutable
+    static final class Key {
+        private final String advertiseAddress;
+        private final int port;
+        private final String serviceName;
+
+        Key(
+                final String advertiseAddress,
+                final int port,
+                final String serviceName
+        ) {
+            this.advertiseAddress = advertiseAddress;
+            this.port = port;
+            this.serviceName = serviceName;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            final Key key = (Key) o;
+            return port == key.port &&
+                    Objects.equals(advertiseAddress, key.advertiseAddress) &&
+                    Objects.equals(serviceName, key.serviceName);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(advertiseAddress, port, serviceName);
+        }
+    }
+}
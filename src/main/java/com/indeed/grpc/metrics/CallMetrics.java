@@ -0,0 +1,65 @@
+package com.indeed.grpc.metrics;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The metrics of the calls made by a client, to a target or to one of its
+ * addresses.
+ *
+ * The counters are {@link LongAdder}s, striped so that concurrent calls
+ * don't contend on a single counter.
+ *
+ * @see ClientMetrics
+ */
+@ThreadSafe
+public final class CallMetrics {
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+
+    void record(final long latencyNanos, final boolean ok, final long sent, final long received) {
+        latency.record(latencyNanos);
+        calls.increment();
+        if (!ok) {
+            failures.increment();
+        }
+        bytesSent.add(sent);
+        bytesReceived.add(received);
+    }
+
+    /**
+     * @return The latencies of the completed calls, from their start to
+     *         their close.
+     */
+    public LatencyHistogram.Snapshot getLatency() {
+        return latency.snapshot();
+    }
+
+    public long getCallCount() {
+        return calls.sum();
+    }
+
+    /**
+     * @return The number of calls closed with a status other than OK.
+     */
+    public long getFailureCount() {
+        return failures.sum();
+    }
+
+    /**
+     * @return The number of bytes sent on the wire, headers excluded.
+     */
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    /**
+     * @return The number of bytes received on the wire, headers excluded.
+     */
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+}
@@ -0,0 +1,97 @@
+package com.indeed.grpc.metrics;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import io.grpc.ClientInterceptor;
+import io.grpc.EquivalentAddressGroup;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Client-side metrics of the calls made to every target, and to every address
+ * of those targets.
+ *
+ * Calls are observed through the {@link ClientInterceptor} returned by
+ * {@link #newClientInterceptor(String)}, which records the latency, the
+ * outcome and the bytes on the wire of every call against the target of the
+ * channel and the addresses of the subchannel the call was sent on. Calls are
+ * only recorded per address on channels balancing with an
+ * {@link com.indeed.grpc.AddressTrackingLoadBalancerFactory}.
+ *
+ * Targets are kept apart by their full URI rather than by the authority of
+ * the channel, which is only the service name: channels to the same service
+ * with different tags or filters resolve different addresses.
+ *
+ * Resolvers sharing these metrics publish the addresses of their target
+ * through {@link #updateAddresses(String, List)}, so that the addresses are
+ * tracked as soon as they are resolved and dropped once they are gone.
+ *
+ * @see com.indeed.grpc.consul.ConsulNameResolverProvider.Builder#withClientMetrics(ClientMetrics)
+ */
+@ThreadSafe
+public final class ClientMetrics {
+    private final ConcurrentMap<String, TargetMetrics> targets = new ConcurrentHashMap<>();
+    private final Ticker ticker;
+
+    public ClientMetrics() {
+        this(Ticker.systemTicker());
+    }
+
+    @VisibleForTesting
+    ClientMetrics(final Ticker ticker) {
+        this.ticker = ticker;
+    }
+
+    /**
+     * @param target The target of the channel the interceptor is installed
+     *               on, as given to the channel builder, such as
+     *               {@code consul:///MyServiceName?tag=a}.
+     * @return An interceptor recording the calls of the channel. The
+     *         channel should balance with an
+     *         {@link com.indeed.grpc.AddressTrackingLoadBalancerFactory} for
+     *         calls to be recorded per address.
+     */
+    public ClientInterceptor newClientInterceptor(final String target) {
+        return new ClientMetricsInterceptor(getOrCreateTargetMetrics(target), ticker);
+    }
+
+    /**
+     * @param target The target, as given to the channel builder.
+     * @param servers The addresses of the target, as published by its
+     *                resolver.
+     */
+    public void updateAddresses(final String target, final List<EquivalentAddressGroup> servers) {
+        getOrCreateTargetMetrics(target).updateAddresses(servers);
+    }
+
+    TargetMetrics getOrCreateTargetMetrics(final String target) {
+        final TargetMetrics targetMetrics = targets.get(target);
+        if (targetMetrics != null) {
+            return targetMetrics;
+        }
+        return targets.computeIfAbsent(target, TargetMetrics::new);
+    }
+
+    /**
+     * @return The metrics of every target, by target.
+     */
+    public Map<String, TargetMetrics> getTargetMetrics() {
+        return Collections.unmodifiableMap(targets);
+    }
+
+    /**
+     * @param target The target, as given to the channel builder.
+     * @return The metrics of the target, or null if no call was made to it
+     *         and no address was published for it.
+     */
+    @Nullable
+    public TargetMetrics getTargetMetrics(final String target) {
+        return targets.get(target);
+    }
+}
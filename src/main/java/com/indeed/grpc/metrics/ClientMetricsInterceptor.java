@@ -0,0 +1,101 @@
+package com.indeed.grpc.metrics;
+
+import com.google.common.base.Ticker;
+import com.indeed.grpc.AddressTrackingLoadBalancerFactory;
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptor;
+import io.grpc.ClientStreamTracer;
+import io.grpc.ForwardingClientCall.SimpleForwardingClientCall;
+import io.grpc.ForwardingClientCallListener.SimpleForwardingClientCallListener;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records every call in the {@link TargetMetrics} of the channel, keyed by
+ * the addresses of the subchannel the call was sent on. The subchannel is
+ * tracked by the {@link AddressTrackingLoadBalancerFactory} of the channel,
+ * calls on channels using another balancer only count towards the total.
+ *
+ * The bytes on the wire are counted by a {@link ClientStreamTracer} added to
+ * the options of every call.
+ *
+ * @see ClientMetrics#newClientInterceptor(String)
+ */
+final class ClientMetricsInterceptor implements ClientInterceptor {
+    private final TargetMetrics targetMetrics;
+    private final Ticker ticker;
+
+    ClientMetricsInterceptor(
+            final TargetMetrics targetMetrics,
+            final Ticker ticker
+    ) {
+        this.targetMetrics = targetMetrics;
+        this.ticker = ticker;
+    }
+
+    @Override
+    public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(
+            final MethodDescriptor<ReqT, RespT> method,
+            final CallOptions callOptions,
+            final Channel next
+    ) {
+        final WireSizeTracer tracer = new WireSizeTracer();
+        final CallOptions trackedOptions = AddressTrackingLoadBalancerFactory.track(callOptions)
+                .withStreamTracerFactory(tracer.factory());
+        final ClientCall<ReqT, RespT> call = next.newCall(method, trackedOptions);
+
+        return new SimpleForwardingClientCall<ReqT, RespT>(call) {
+            @Override
+            public void start(final Listener<RespT> responseListener, final Metadata headers) {
+                final long startNanos = ticker.read();
+
+                super.start(new SimpleForwardingClientCallListener<RespT>(responseListener) {
+                    @Override
+                    public void onClose(final Status status, final Metadata trailers) {
+                        targetMetrics.record(
+                                AddressTrackingLoadBalancerFactory.getPickedAddresses(trackedOptions),
+                                ticker.read() - startNanos,
+                                status.isOk(),
+                                tracer.bytesSent.get(),
+                                tracer.bytesReceived.get()
+                        );
+
+                        super.onClose(status, trailers);
+                    }
+                }, headers);
+            }
+        };
+    }
+
+    /**
+     * Counts the bytes on the wire of every stream of a call.
+     */
+    private static final class WireSizeTracer extends ClientStreamTracer {
+        private final AtomicLong bytesSent = new AtomicLong();
+        private final AtomicLong bytesReceived = new AtomicLong();
+
+        private ClientStreamTracer.Factory factory() {
+            return new ClientStreamTracer.Factory() {
+                @Override
+                public ClientStreamTracer newClientStreamTracer(final CallOptions callOptions, final Metadata headers) {
+                    return WireSizeTracer.this;
+                }
+            };
+        }
+
+        @Override
+        public void outboundWireSize(final long bytes) {
+            bytesSent.addAndGet(bytes);
+        }
+
+        @Override
+        public void inboundWireSize(final long bytes) {
+            bytesReceived.addAndGet(bytes);
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.indeed.grpc.metrics;
+
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A histogram of latencies, in nanoseconds, with log-linear buckets in the
+ * style of HdrHistogram.
+ *
+ * Every power of two is split into {@value #SUB_BUCKET_COUNT} buckets, so
+ * that a recorded latency is known within about 6%. Latencies above about
+ * 4.9 hours are counted in the last bucket.
+ *
+ * Recording only increments atomic counters: it neither locks nor allocates.
+ * Snapshots copy the counters and are not atomic with respect to concurrent
+ * recordings.
+ */
+@ThreadSafe
+public final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 43;
+    private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+    private static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder sumNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+    /**
+     * @param latencyNanos The latency to record, negative latencies are
+     *                     recorded as zero.
+     */
+    public void record(final long latencyNanos) {
+        final long value = Math.max(0, latencyNanos);
+        buckets.incrementAndGet(bucketIndex(value));
+        sumNanos.add(value);
+        maxNanos.accumulate(value);
+    }
+
+    /**
+     * @return The counts recorded so far.
+     */
+    public Snapshot snapshot() {
+        final long[] counts = new long[BUCKET_COUNT];
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = buckets.get(i);
+            count += counts[i];
+        }
+        return new Snapshot(counts, count, sumNanos.sum(), maxNanos.get());
+    }
+
+    static int bucketIndex(final long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+
+        final long capped = Math.min(value, MAX_VALUE);
+        final int exponent = 63 - Long.numberOfLeadingZeros(capped);
+        final int shift = exponent - SUB_BUCKET_BITS;
+        final int subBucket = (int) (capped >>> shift) & (SUB_BUCKET_COUNT - 1);
+        return (shift + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    /**
+     * @return The highest value counted in the bucket.
+     */
+    static long bucketUpperBound(final int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+
+        final int shift = index / SUB_BUCKET_COUNT - 1;
+        final long subBucket = index % SUB_BUCKET_COUNT;
+        return ((SUB_BUCKET_COUNT + subBucket + 1) << shift) - 1;
+    }
+
+    /**
+     * The counts of a histogram at some point in time.
+     */
+    @Immutable
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sumNanos;
+        private final long maxNanos;
+
+        private Snapshot(final long[] counts, final long count, final long sumNanos, final long maxNanos) {
+            this.counts = counts;
+            this.count = count;
+            this.sumNanos = sumNanos;
+            this.maxNanos = maxNanos;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+
+        public long getMeanNanos() {
+            return count == 0 ? 0 : sumNanos / count;
+        }
+
+        /**
+         * @param quantile Within [0, 1], for example 0.99 for the p99.
+         * @return The latency the given fraction of the recorded latencies
+         *         are lower than or equal to, rounded up to the bucket it
+         *         falls in. Zero if nothing was recorded.
+         */
+        public long getValueAtQuantile(final double quantile) {
+            checkArgument(quantile >= 0 && quantile <= 1, "quantile must be within [0, 1]");
+            if (count == 0) {
+                return 0;
+            }
+
+            final long rank = Math.max(1, (long) Math.ceil(quantile * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(bucketUpperBound(i), maxNanos);
+                }
+            }
+            return maxNanos;
+        }
+
+        /**
+         * @param quantile Within [0, 1], for example 0.99 for the p99.
+         * @param unit The unit of the returned latency.
+         * @return The latency at the quantile, in the given unit.
+         */
+        public long getValueAtQuantile(final double quantile, final TimeUnit unit) {
+            return unit.convert(getValueAtQuantile(quantile), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public String toString() {
+            return "Snapshot{" +
+                    "count=" + count +
+                    ", meanNanos=" + getMeanNanos() +
+                    ", p50Nanos=" + getValueAtQuantile(0.5) +
+                    ", p99Nanos=" + getValueAtQuantile(0.99) +
+                    ", maxNanos=" + maxNanos +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.indeed.grpc.metrics;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The metrics of the calls to a single method of a server.
+ *
+ * @see MethodMetricsInterceptor
+ */
+@ThreadSafe
+public final class MethodMetrics {
+    private final String fullMethodName;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong failed = new AtomicLong();
+
+    MethodMetrics(final String fullMethodName) {
+        this.fullMethodName = fullMethodName;
+    }
+
+    void start() {
+        inFlight.incrementAndGet();
+    }
+
+    void complete(final long latencyNanos, final boolean ok) {
+        inFlight.decrementAndGet();
+        latency.record(latencyNanos);
+        if (!ok) {
+            failed.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return The full name of the method, such as {@code package.Service/Method}.
+     */
+    public String getFullMethodName() {
+        return fullMethodName;
+    }
+
+    /**
+     * @return The latencies of the completed calls, from the start of the
+     *         call to its status being sent or to its cancellation.
+     */
+    public LatencyHistogram.Snapshot getLatency() {
+        return latency.snapshot();
+    }
+
+    /**
+     * @return The number of calls started but not completed yet.
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return The number of calls completed with a status other than OK, or
+     *         cancelled.
+     */
+    public long getFailedCount() {
+        return failed.get();
+    }
+}
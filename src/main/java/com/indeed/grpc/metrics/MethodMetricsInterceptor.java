@@ -0,0 +1,155 @@
+package com.indeed.grpc.metrics;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableMap;
+import io.grpc.ForwardingServerCall.SimpleForwardingServerCall;
+import io.grpc.ForwardingServerCallListener.SimpleForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.ServerMethodDefinition;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.Status;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * A {@link ServerInterceptor} recording the latency, the calls in flight and
+ * the failures of every method of a server.
+ *
+ * The metrics of every method are allocated up front from the services of
+ * the server, the same list the
+ * {@link com.indeed.grpc.consul.ConsulServiceRegistrar} registers in consul, so
+ * that recording a call only looks the method up and updates atomic counters.
+ * Calls to methods unknown at construction, such as those of a fallback
+ * registry, are not recorded.
+ *
+ * <pre>
+ * final MethodMetricsInterceptor metrics = new MethodMetricsInterceptor(services);
+ * for (final ServerServiceDefinition service : services) {
+ *     serverBuilder.addService(ServerInterceptors.intercept(service, metrics));
+ * }
+ * </pre>
+ *
+ * The metrics are pulled through {@link #getMethodMetrics()}.
+ */
+@ThreadSafe
+public final class MethodMetricsInterceptor implements ServerInterceptor {
+    private final Map<String, MethodMetrics> methodMetrics;
+    private final Ticker ticker;
+
+    /**
+     * @param services The services of the server, see
+     *                 {@link io.grpc.Server#getImmutableServices()}.
+     */
+    public MethodMetricsInterceptor(final Collection<ServerServiceDefinition> services) {
+        this(services, Ticker.systemTicker());
+    }
+
+    @VisibleForTesting
+    MethodMetricsInterceptor(
+            final Collection<ServerServiceDefinition> services,
+            final Ticker ticker
+    ) {
+        final ImmutableMap.Builder<String, MethodMetrics> builder = ImmutableMap.builder();
+        for (final ServerServiceDefinition service : services) {
+            for (final ServerMethodDefinition<?, ?> method : service.getMethods()) {
+                final String fullMethodName = method.getMethodDescriptor().getFullMethodName();
+                builder.put(fullMethodName, new MethodMetrics(fullMethodName));
+            }
+        }
+
+        this.methodMetrics = builder.build();
+        this.ticker = ticker;
+    }
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(
+            final ServerCall<ReqT, RespT> call,
+            final Metadata headers,
+            final ServerCallHandler<ReqT, RespT> next
+    ) {
+        final MethodMetrics metrics = methodMetrics.get(call.getMethodDescriptor().getFullMethodName());
+        if (metrics == null) {
+            return next.startCall(call, headers);
+        }
+
+        final RecordingCall<ReqT, RespT> recordingCall = new RecordingCall<>(call, metrics, ticker);
+        metrics.start();
+
+        final ServerCall.Listener<ReqT> listener;
+        try {
+            listener = next.startCall(recordingCall, headers);
+        } catch (final RuntimeException e) {
+            recordingCall.complete(false);
+            throw e;
+        }
+
+        return new SimpleForwardingServerCallListener<ReqT>(listener) {
+            @Override
+            public void onCancel() {
+                recordingCall.complete(false);
+                super.onCancel();
+            }
+        };
+    }
+
+    /**
+     * @return The metrics of every method of the server, by full method name.
+     */
+    public Map<String, MethodMetrics> getMethodMetrics() {
+        return methodMetrics;
+    }
+
+    /**
+     * @param fullMethodName The full name of a method, such as
+     *                       {@code package.Service/Method}.
+     * @return The metrics of the method, or null if the server has no such
+     *         method.
+     */
+    @Nullable
+    public MethodMetrics getMethodMetrics(final String fullMethodName) {
+        return methodMetrics.get(fullMethodName);
+    }
+
+    /**
+     * Completes the call when its status is sent, or when it's cancelled,
+     * whichever comes first.
+     */
+    private static final class RecordingCall<ReqT, RespT> extends SimpleForwardingServerCall<ReqT, RespT> {
+        @SuppressWarnings("rawtypes")
+        private static final AtomicIntegerFieldUpdater<RecordingCall> COMPLETED =
+                AtomicIntegerFieldUpdater.newUpdater(RecordingCall.class, "completed");
+
+        private final MethodMetrics metrics;
+        private final Ticker ticker;
+        private final long startNanos;
+
+        private volatile int completed = 0;
+
+        private RecordingCall(final ServerCall<ReqT, RespT> call, final MethodMetrics metrics, final Ticker ticker) {
+            super(call);
+            this.metrics = metrics;
+            this.ticker = ticker;
+            this.startNanos = ticker.read();
+        }
+
+        @Override
+        public void close(final Status status, final Metadata trailers) {
+            complete(status.isOk());
+            super.close(status, trailers);
+        }
+
+        private void complete(final boolean ok) {
+            if (COMPLETED.compareAndSet(this, 0, 1)) {
+                metrics.complete(ticker.read() - startNanos, ok);
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.indeed.grpc.metrics;
+
+import io.grpc.EquivalentAddressGroup;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.net.SocketAddress;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The metrics of the calls made by a client to a target, in total and for
+ * every address of the target.
+ *
+ * Once a resolver published the addresses of the target, see
+ * {@link ClientMetrics#updateAddresses(String, List)}, only the calls to
+ * those addresses are tracked per address, and the metrics of the addresses
+ * no longer published are dropped. Until then, every address a call was sent
+ * to is tracked.
+ */
+@ThreadSafe
+public final class TargetMetrics {
+    private final String target;
+    private final CallMetrics total = new CallMetrics();
+    private final ConcurrentMap<SocketAddress, CallMetrics> addresses = new ConcurrentHashMap<>();
+
+    private volatile boolean resolved = false;
+
+    TargetMetrics(final String target) {
+        this.target = target;
+    }
+
+    void record(
+            @Nullable final EquivalentAddressGroup server,
+            final long latencyNanos,
+            final boolean ok,
+            final long sent,
+            final long received
+    ) {
+        total.record(latencyNanos, ok, sent, received);
+        if (server == null) {
+            return;
+        }
+
+        for (final SocketAddress address : server.getAddresses()) {
+            CallMetrics addressMetrics = addresses.get(address);
+            if (addressMetrics == null) {
+                if (resolved) {
+                    // no longer published, the call was still in flight
+                    continue;
+                }
+                addressMetrics = addresses.computeIfAbsent(address, (key) -> new CallMetrics());
+            }
+            addressMetrics.record(latencyNanos, ok, sent, received);
+        }
+    }
+
+    synchronized void updateAddresses(final List<EquivalentAddressGroup> servers) {
+        final Set<SocketAddress> published = new HashSet<>();
+        for (final EquivalentAddressGroup server : servers) {
+            published.addAll(server.getAddresses());
+        }
+
+        addresses.keySet().retainAll(published);
+        for (final SocketAddress address : published) {
+            addresses.computeIfAbsent(address, (key) -> new CallMetrics());
+        }
+        resolved = true;
+    }
+
+    /**
+     * @return The target, as given to the channel builder.
+     */
+    public String getTarget() {
+        return target;
+    }
+
+    /**
+     * @return The metrics of every call made to the target.
+     */
+    public CallMetrics getTotal() {
+        return total;
+    }
+
+    /**
+     * @return The metrics of the calls made to every tracked address.
+     */
+    public Map<SocketAddress, CallMetrics> getAddressMetrics() {
+        return Collections.unmodifiableMap(addresses);
+    }
+
+    /**
+     * @return The metrics of the calls made to the address, or null if the
+     *         address isn't tracked.
+     */
+    @Nullable
+    public CallMetrics getAddressMetrics(final SocketAddress address) {
+        return addresses.get(address);
+    }
+}
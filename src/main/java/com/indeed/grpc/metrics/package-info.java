@@ -0,0 +1,12 @@
+/**
+ *
+ */
+@FieldsAreNonnullByDefault
+@ParametersAreNonnullByDefault
+@ReturnValuesAreNonnullByDefault
+package com.indeed.grpc.metrics;
+
+import com.indeed.util.core.nullsafety.FieldsAreNonnullByDefault;
+import com.indeed.util.core.nullsafety.ReturnValuesAreNonnullByDefault;
+
+import javax.annotation.ParametersAreNonnullByDefault;
\ No newline at end of file
@@ -0,0 +1,442 @@
+package com.indeed.grpc.netty;
+
+import com.google.common.annotations.VisibleForTesting;
+import io.grpc.netty.NegotiationType;
+import io.grpc.netty.NettyChannelBuilder;
+import io.grpc.netty.NettyServerBuilder;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.Closeable;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Builds {@link NettyChannelBuilder}s and {@link NettyServerBuilder}s with
+ * tuned transport defaults, so that the fast configuration is also the
+ * default one:
+ * <ul>
+ *     <li>the native epoll transport when it's on the classpath and
+ *     available, NIO otherwise;</li>
+ *     <li>the {@link SharedResources#EVENT_LOOP_GROUP}, shared by every
+ *     channel and server, with one thread per core;</li>
+ *     <li>the default pooled allocator of netty;</li>
+ *     <li>larger HTTP/2 flow control windows, keepalive pings from the
+ *     servers, and servers accepting them from clients;</li>
+ *     <li>TLS with the reloadable contexts of a client and a server
+ *     {@link SslContextReloader} when provided, plaintext otherwise.</li>
+ * </ul>
+ *
+ * <pre>
+ * final NettyTransportFactory factory = NettyTransportFactory.newBuilder()
+ *         .withClientSslContextReloader(clientReloader)
+ *         .withServerSslContextReloader(serverReloader)
+ *         .build();
+ * final ManagedChannel channel = factory.newChannelBuilder("consul:///MyServiceName")
+ *         .nameResolverFactory(consulNameResolverProvider)
+ *         .build();
+ * </pre>
+ *
+ * The builders returned can be tuned further before being built. The factory
+ * is closed once its channels and servers are terminated, releasing the
+ * shared event loop group.
+ */
+@ThreadSafe
+public final class NettyTransportFactory implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(NettyTransportFactory.class);
+
+    private final EventLoopGroup eventLoopGroup;
+    private final boolean sharedEventLoopGroup;
+    private final Transport transport;
+    private final int flowControlWindow;
+    private final long keepAliveTimeNanos;
+    private final long keepAliveTimeoutNanos;
+    private final boolean clientKeepAlive;
+    @Nullable
+    private final SslContextReloader clientSslContextReloader;
+    @Nullable
+    private final SslContextReloader serverSslContextReloader;
+
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    private NettyTransportFactory(
+            final EventLoopGroup eventLoopGroup,
+            final boolean sharedEventLoopGroup,
+            final Transport transport,
+            final int flowControlWindow,
+            final long keepAliveTimeNanos,
+            final long keepAliveTimeoutNanos,
+            final boolean clientKeepAlive,
+            @Nullable final SslContextReloader clientSslContextReloader,
+            @Nullable final SslContextReloader serverSslContextReloader
+    ) {
+        this.eventLoopGroup = eventLoopGroup;
+        this.sharedEventLoopGroup = sharedEventLoopGroup;
+        this.transport = transport;
+        this.flowControlWindow = flowControlWindow;
+        this.keepAliveTimeNanos = keepAliveTimeNanos;
+        this.keepAliveTimeoutNanos = keepAliveTimeoutNanos;
+        this.clientKeepAlive = clientKeepAlive;
+        this.clientSslContextReloader = clientSslContextReloader;
+        this.serverSslContextReloader = serverSslContextReloader;
+    }
+
+    /**
+     * @param target The target of the channel, such as
+     *               {@code consul:///MyServiceName}.
+     * @return A channel builder with the transport defaults applied.
+     */
+    public NettyChannelBuilder newChannelBuilder(final String target) {
+        final NettyChannelBuilder builder = NettyChannelBuilder.forTarget(target)
+                .eventLoopGroup(eventLoopGroup)
+                .channelType(transport.channelType)
+                .withOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                .withOption(ChannelOption.TCP_NODELAY, true)
+                .flowControlWindow(flowControlWindow);
+
+        if (clientKeepAlive) {
+            builder.keepAliveTime(keepAliveTimeNanos, TimeUnit.NANOSECONDS)
+                    .keepAliveTimeout(keepAliveTimeoutNanos, TimeUnit.NANOSECONDS);
+        }
+
+        if (clientSslContextReloader == null) {
+            return builder.negotiationType(NegotiationType.PLAINTEXT);
+        }
+        return builder.negotiationType(NegotiationType.TLS).sslContext(clientSslContextReloader.get());
+    }
+
+    /**
+     * Servers accept keepalive pings from clients of this factory, even
+     * when the clients don't send any.
+     *
+     * @param port The port the server listens on.
+     * @return A server builder with the transport defaults applied.
+     */
+    public NettyServerBuilder newServerBuilder(final int port) {
+        final NettyServerBuilder builder = NettyServerBuilder.forPort(port)
+                .bossEventLoopGroup(eventLoopGroup)
+                .workerEventLoopGroup(eventLoopGroup)
+                .channelType(transport.serverChannelType)
+                .withChildOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                .withChildOption(ChannelOption.TCP_NODELAY, true)
+                .flowControlWindow(flowControlWindow)
+                .keepAliveTime(keepAliveTimeNanos, TimeUnit.NANOSECONDS)
+                .keepAliveTimeout(keepAliveTimeoutNanos, TimeUnit.NANOSECONDS)
+                .permitKeepAliveTime(keepAliveTimeNanos / 2, TimeUnit.NANOSECONDS);
+
+        if (serverSslContextReloader != null) {
+            builder.sslContext(serverSslContextReloader.get());
+        }
+        return builder;
+    }
+
+    /**
+     * Stops using the shared event loop group, which is shut down once no
+     * factory uses it. Must be called once the channels and servers created
+     * by the factory are terminated. A group set on the builder is left
+     * untouched.
+     */
+    @Override
+    public void close() {
+        if (sharedEventLoopGroup && closed.compareAndSet(false, true)) {
+            SharedResources.release(SharedResources.EVENT_LOOP_GROUP, eventLoopGroup);
+        }
+    }
+
+    public EventLoopGroup getEventLoopGroup() {
+        return eventLoopGroup;
+    }
+
+    /**
+     * @return True if the channels and servers use the native epoll
+     *         transport.
+     */
+    public boolean isEpoll() {
+        return transport.epoll;
+    }
+
+    /**
+     * The channel types matching the kind of event loop group, and how to
+     * create such a group.
+     */
+    @VisibleForTesting
+    static final class Transport {
+        private static final String EPOLL_PACKAGE = "io.netty.channel.epoll.";
+
+        private final boolean epoll;
+        private final Class<? extends Channel> channelType;
+        private final Class<? extends ServerChannel> serverChannelType;
+
+        private Transport(
+                final boolean epoll,
+                final Class<? extends Channel> channelType,
+                final Class<? extends ServerChannel> serverChannelType
+        ) {
+            this.epoll = epoll;
+            this.channelType = channelType;
+            this.serverChannelType = serverChannelType;
+        }
+
+        static final Transport NIO = new Transport(false, NioSocketChannel.class, NioServerSocketChannel.class);
+
+        /**
+         * @return The epoll transport if netty-transport-native-epoll is on
+         *         the classpath and works on this host, NIO otherwise.
+         */
+        static Transport detect() {
+            try {
+                final Class<?> epoll = Class.forName(EPOLL_PACKAGE + "Epoll");
+                if (!(Boolean) epoll.getMethod("isAvailable").invoke(null)) {
+                    LOGGER.debug("Native epoll transport unavailable, using NIO", (Throwable) epoll.getMethod("unavailabilityCause").invoke(null));
+                    return NIO;
+                }
+
+                return new Transport(
+                        true,
+                        Class.forName(EPOLL_PACKAGE + "EpollSocketChannel").asSubclass(Channel.class),
+                        Class.forName(EPOLL_PACKAGE + "EpollServerSocketChannel").asSubclass(ServerChannel.class)
+                );
+            } catch (final ClassNotFoundException e) {
+                return NIO;
+            } catch (final ReflectiveOperationException | RuntimeException e) {
+                LOGGER.warn("Failed to load the native epoll transport, using NIO", e);
+                return NIO;
+            }
+        }
+
+        EventLoopGroup newEventLoopGroup(final int threads, final ThreadFactory threadFactory) {
+            if (!epoll) {
+                return new NioEventLoopGroup(threads, threadFactory);
+            }
+
+            try {
+                return (EventLoopGroup) Class.forName(EPOLL_PACKAGE + "EpollEventLoopGroup")
+                        .getConstructor(int.class, ThreadFactory.class)
+                        .newInstance(threads, threadFactory);
+            } catch (final ReflectiveOperationException e) {
+                throw new IllegalStateException("Failed to create an epoll event loop group", e);
+            }
+        }
+
+        static Transport of(final EventLoopGroup eventLoopGroup) {
+            final Transport detected = detect();
+            return detected.epoll && detected.isSupportedBy(eventLoopGroup) ? detected : NIO;
+        }
+
+        private boolean isSupportedBy(final EventLoopGroup eventLoopGroup) {
+            return !epoll || eventLoopGroup.getClass().getName().startsWith(EPOLL_PACKAGE);
+        }
+    }
+
+    /**
+     * @return A new builder used to compose a factory.
+     */
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    /**
+     * Builder object used to compose the {@link NettyTransportFactory}.
+     */
+    public static final class Builder {
+        private @Nullable EventLoopGroup eventLoopGroup = null;
+        private int flowControlWindow = 4 * 1024 * 1024;
+        private long keepAliveTime = 30;
+        private long keepAliveTimeout = 10;
+        private TimeUnit keepAliveTimeUnit = TimeUnit.SECONDS;
+        private boolean clientKeepAlive = false;
+        private @Nullable SslContextReloader clientSslContextReloader = null;
+        private @Nullable SslContextReloader serverSslContextReloader = null;
+
+        /**
+         * @see #newBuilder()
+         */
+        private Builder() {}
+
+        /* eventLoopGroup */
+
+        @Nullable
+        public EventLoopGroup getEventLoopGroup() {
+            return eventLoopGroup;
+        }
+
+        /**
+         * @param eventLoopGroup The event loop group of the channels and
+         *                       servers, not shut down by the factory.
+         *                       Defaults to
+         *                       {@link SharedResources#EVENT_LOOP_GROUP}.
+         */
+        public void setEventLoopGroup(final EventLoopGroup eventLoopGroup) {
+            this.eventLoopGroup = checkNotNull(eventLoopGroup, "eventLoopGroup");
+        }
+
+        public Builder withEventLoopGroup(final EventLoopGroup eventLoopGroup) {
+            setEventLoopGroup(eventLoopGroup);
+            return this;
+        }
+
+        /* flowControlWindow */
+
+        public int getFlowControlWindow() {
+            return flowControlWindow;
+        }
+
+        /**
+         * @param flowControlWindow The HTTP/2 flow control window of every
+         *                          stream, in bytes. Defaults to 4MiB, four
+         *                          times the grpc default, so that large
+         *                          responses aren't throttled on high latency
+         *                          links.
+         */
+        public void setFlowControlWindow(final int flowControlWindow) {
+            checkArgument(flowControlWindow > 0, "flowControlWindow must be positive");
+            this.flowControlWindow = flowControlWindow;
+        }
+
+        public Builder withFlowControlWindow(final int flowControlWindow) {
+            setFlowControlWindow(flowControlWindow);
+            return this;
+        }
+
+        /* keepAlive */
+
+        public long getKeepAliveTime() {
+            return keepAliveTime;
+        }
+
+        public long getKeepAliveTimeout() {
+            return keepAliveTimeout;
+        }
+
+        public TimeUnit getKeepAliveTimeUnit() {
+            return keepAliveTimeUnit;
+        }
+
+        /**
+         * @param keepAliveTime How long a connection stays without reads
+         *                      before a keepalive ping is sent, by the
+         *                      servers and, when enabled, by the clients.
+         *                      Defaults to 30 seconds, servers accept pings
+         *                      twice as frequent.
+         * @param keepAliveTimeout How long to wait for the ack of a ping
+         *                         before closing the connection. Defaults to
+         *                         10 seconds.
+         * @param keepAliveTimeUnit The unit of the durations.
+         */
+        public void setKeepAlive(final long keepAliveTime, final long keepAliveTimeout, final TimeUnit keepAliveTimeUnit) {
+            checkArgument(keepAliveTime > 0, "keepAliveTime must be positive");
+            checkArgument(keepAliveTimeout > 0, "keepAliveTimeout must be positive");
+            this.keepAliveTime = keepAliveTime;
+            this.keepAliveTimeout = keepAliveTimeout;
+            this.keepAliveTimeUnit = checkNotNull(keepAliveTimeUnit, "keepAliveTimeUnit");
+        }
+
+        public Builder withKeepAlive(final long keepAliveTime, final long keepAliveTimeout, final TimeUnit keepAliveTimeUnit) {
+            setKeepAlive(keepAliveTime, keepAliveTimeout, keepAliveTimeUnit);
+            return this;
+        }
+
+        /* clientKeepAlive */
+
+        public boolean isClientKeepAlive() {
+            return clientKeepAlive;
+        }
+
+        /**
+         * @param clientKeepAlive Whether the channels send keepalive pings.
+         *                        Off by default: servers not built by a
+         *                        factory only accept a ping every 5 minutes
+         *                        by default, and close the connections of
+         *                        clients pinging more often. Only enable it
+         *                        when every server accepts the keepalive
+         *                        time.
+         */
+        public void setClientKeepAlive(final boolean clientKeepAlive) {
+            this.clientKeepAlive = clientKeepAlive;
+        }
+
+        public Builder withClientKeepAlive(final boolean clientKeepAlive) {
+            setClientKeepAlive(clientKeepAlive);
+            return this;
+        }
+
+        /* clientSslContextReloader */
+
+        @Nullable
+        public SslContextReloader getClientSslContextReloader() {
+            return clientSslContextReloader;
+        }
+
+        /**
+         * @param clientSslContextReloader The reloader of the client context
+         *                                 of the channels, which then use TLS.
+         *                                 It must be loaded before builders
+         *                                 are created. Without one, the
+         *                                 channels use plaintext.
+         */
+        public void setClientSslContextReloader(final SslContextReloader clientSslContextReloader) {
+            this.clientSslContextReloader = checkNotNull(clientSslContextReloader, "clientSslContextReloader");
+        }
+
+        public Builder withClientSslContextReloader(final SslContextReloader clientSslContextReloader) {
+            setClientSslContextReloader(clientSslContextReloader);
+            return this;
+        }
+
+        /* serverSslContextReloader */
+
+        @Nullable
+        public SslContextReloader getServerSslContextReloader() {
+            return serverSslContextReloader;
+        }
+
+        /**
+         * @param serverSslContextReloader The reloader of the server context
+         *                                 of the servers, which then use TLS.
+         *                                 It must be loaded before builders
+         *                                 are created. Without one, the
+         *                                 servers use plaintext.
+         */
+        public void setServerSslContextReloader(final SslContextReloader serverSslContextReloader) {
+            this.serverSslContextReloader = checkNotNull(serverSslContextReloader, "serverSslContextReloader");
+        }
+
+        public Builder withServerSslContextReloader(final SslContextReloader serverSslContextReloader) {
+            setServerSslContextReloader(serverSslContextReloader);
+            return this;
+        }
+
+        /* build */
+
+        public NettyTransportFactory build() {
+            final boolean shared = eventLoopGroup == null;
+            final EventLoopGroup group = shared ? SharedResources.get(SharedResources.EVENT_LOOP_GROUP) : eventLoopGroup;
+
+            return new NettyTransportFactory(
+                    group,
+                    shared,
+                    Transport.of(group),
+                    flowControlWindow,
+                    keepAliveTimeUnit.toNanos(keepAliveTime),
+                    keepAliveTimeUnit.toNanos(keepAliveTimeout),
+                    clientKeepAlive,
+                    clientSslContextReloader,
+                    serverSslContextReloader
+            );
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package com.indeed.grpc.netty;
+
+import io.grpc.CallOptions;
+import io.grpc.ClientCall;
+import io.grpc.ConnectivityState;
+import io.grpc.ManagedChannel;
+import io.grpc.MethodDescriptor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Client side counterpart of the {@link RotationAwareProtocolNegotiator}.
+ *
+ * Once the {@link SslContextReloader} of the client rotated its certificate,
+ * the channel is replaced by a new one, built from the same factory, at a
+ * random time within the spread window. New calls go to the new channel and
+ * thus to new connections using the new certificate, while the old channel is
+ * shut down, letting its in-flight calls finish.
+ *
+ * The factory must build channels using {@link SslContextReloader#get()}.
+ */
+@ThreadSafe
+public final class RotatingManagedChannel extends ManagedChannel {
+    private static final Logger LOGGER = LoggerFactory.getLogger(RotatingManagedChannel.class);
+
+    private final Supplier<ManagedChannel> channelFactory;
+    private final SslContextReloader reloader;
+    private final ScheduledExecutorService timerService;
+    private final long spreadWindowNanos;
+    private final Runnable rotationListener = this::scheduleRotation;
+
+    @GuardedBy("this")
+    private ManagedChannel channel;
+    @GuardedBy("this")
+    private final List<ManagedChannel> retiredChannels = new ArrayList<>();
+    @GuardedBy("this")
+    private boolean shutdown = false;
+
+    /**
+     * @param channelFactory Builds the channels.
+     * @param reloader The reloader of the client certificate.
+     * @param timerService Used to delay the rotations. Not shut down with the
+     *                     channel.
+     * @param spreadWindow The window within which the channel is replaced
+     *                     after a rotation.
+     * @param spreadWindowTimeUnit The unit of the window.
+     */
+    public RotatingManagedChannel(
+            final Supplier<ManagedChannel> channelFactory,
+            final SslContextReloader reloader,
+            final ScheduledExecutorService timerService,
+            final long spreadWindow,
+            final TimeUnit spreadWindowTimeUnit
+    ) {
+        checkArgument(spreadWindow >= 0, "spreadWindow cannot be negative");
+
+        this.channelFactory = channelFactory;
+        this.reloader = reloader;
+        this.timerService = timerService;
+        this.spreadWindowNanos = spreadWindowTimeUnit.toNanos(spreadWindow);
+        this.channel = channelFactory.get();
+
+        reloader.addRotationListener(rotationListener);
+    }
+
+    private void scheduleRotation() {
+        final long delayNanos = spreadWindowNanos == 0 ? 0 : ThreadLocalRandom.current().nextLong(spreadWindowNanos);
+        timerService.schedule(this::rotate, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Replace the current channel by a new one and shut the current one down.
+     */
+    synchronized void rotate() {
+        if (shutdown) {
+            return;
+        }
+
+        LOGGER.info("Replacing channel to {} after an SslContext rotation", channel.authority());
+
+        final ManagedChannel previous = channel;
+        channel = channelFactory.get();
+
+        retiredChannels.removeIf(ManagedChannel::isTerminated);
+        retiredChannels.add(previous);
+        previous.shutdown();
+    }
+
+    private synchronized ManagedChannel current() {
+        return channel;
+    }
+
+    @Override
+    public <RequestT, ResponseT> ClientCall<RequestT, ResponseT> newCall(
+            final MethodDescriptor<RequestT, ResponseT> methodDescriptor,
+            final CallOptions callOptions
+    ) {
+        return current().newCall(methodDescriptor, callOptions);
+    }
+
+    @Override
+    public String authority() {
+        return current().authority();
+    }
+
+    @Override
+    public ConnectivityState getState(final boolean requestConnection) {
+        return current().getState(requestConnection);
+    }
+
+    @Override
+    public void notifyWhenStateChanged(final ConnectivityState source, final Runnable callback) {
+        current().notifyWhenStateChanged(source, callback);
+    }
+
+    @Override
+    public void resetConnectBackoff() {
+        current().resetConnectBackoff();
+    }
+
+    @Override
+    public synchronized ManagedChannel shutdown() {
+        shutdown = true;
+        reloader.removeRotationListener(rotationListener);
+
+        channel.shutdown();
+        retiredChannels.forEach(ManagedChannel::shutdown);
+        return this;
+    }
+
+    @Override
+    public synchronized ManagedChannel shutdownNow() {
+        shutdown = true;
+        reloader.removeRotationListener(rotationListener);
+
+        channel.shutdownNow();
+        retiredChannels.forEach(ManagedChannel::shutdownNow);
+        return this;
+    }
+
+    @Override
+    public synchronized boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public synchronized boolean isTerminated() {
+        return shutdown && channel.isTerminated() && retiredChannels.stream().allMatch(ManagedChannel::isTerminated);
+    }
+
+    @Override
+    public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+        final long deadlineNanos = System.nanoTime() + unit.toNanos(timeout);
+
+        final List<ManagedChannel> channels;
+        synchronized (this) {
+            channels = new ArrayList<>(retiredChannels);
+            channels.add(channel);
+        }
+
+        for (final ManagedChannel managedChannel : channels) {
+            final long remainingNanos = deadlineNanos - System.nanoTime();
+            if (!managedChannel.awaitTermination(Math.max(0, remainingNanos), TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
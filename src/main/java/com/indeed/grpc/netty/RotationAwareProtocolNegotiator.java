@@ -0,0 +1,137 @@
+package com.indeed.grpc.netty;
+
+import io.grpc.netty.GrpcHttp2ConnectionHandler;
+import io.grpc.netty.ProtocolNegotiator;
+import io.grpc.netty.ProtocolNegotiators;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerAdapter;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.util.AsciiString;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Server side {@link ProtocolNegotiator} keeping track of the connections it
+ * negotiated, so that they can be retired once the {@link SslContextReloader}
+ * they were negotiated with rotated its certificate.
+ *
+ * Retiring closes every connection open at the time of the rotation, which
+ * makes the server send a GOAWAY and lets the in-flight calls finish. The
+ * connections are closed at random times over the spread window so that the
+ * clients don't all reconnect at the same instant.
+ *
+ * <pre>
+ * NettyServerBuilder.forPort(port)
+ *         .protocolNegotiator(RotationAwareProtocolNegotiator.serverTls(reloader, 10, TimeUnit.MINUTES))
+ * </pre>
+ *
+ * @see RotatingManagedChannel
+ */
+@ThreadSafe
+public final class RotationAwareProtocolNegotiator implements ProtocolNegotiator {
+    private static final Logger LOGGER = LoggerFactory.getLogger(RotationAwareProtocolNegotiator.class);
+
+    private final ProtocolNegotiator delegate;
+    private final long spreadWindowNanos;
+
+    private final ChannelGroup channels = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
+
+    /**
+     * @param delegate The negotiator actually negotiating the connections.
+     * @param spreadWindow The window over which connections are retired.
+     * @param spreadWindowTimeUnit The unit of the window.
+     */
+    public RotationAwareProtocolNegotiator(
+            final ProtocolNegotiator delegate,
+            final long spreadWindow,
+            final TimeUnit spreadWindowTimeUnit
+    ) {
+        checkArgument(spreadWindow >= 0, "spreadWindow cannot be negative");
+
+        this.delegate = delegate;
+        this.spreadWindowNanos = spreadWindowTimeUnit.toNanos(spreadWindow);
+    }
+
+    /**
+     * @param reloader The reloader of the server certificate.
+     * @param spreadWindow The window over which connections are retired
+     *                     after every rotation.
+     * @param spreadWindowTimeUnit The unit of the window.
+     * @return A TLS negotiator retiring its connections whenever the
+     *         reloader rotates the certificate.
+     */
+    public static RotationAwareProtocolNegotiator serverTls(
+            final SslContextReloader reloader,
+            final long spreadWindow,
+            final TimeUnit spreadWindowTimeUnit
+    ) {
+        final RotationAwareProtocolNegotiator negotiator = new RotationAwareProtocolNegotiator(
+                ProtocolNegotiators.serverTls(reloader.get()),
+                spreadWindow,
+                spreadWindowTimeUnit
+        );
+        reloader.addRotationListener(negotiator::retireConnections);
+        return negotiator;
+    }
+
+    @Override
+    public Handler newHandler(final GrpcHttp2ConnectionHandler grpcHandler) {
+        final Handler handler = delegate.newHandler(grpcHandler);
+        return new TrackingHandler(handler);
+    }
+
+    /**
+     * Gracefully close every connection currently open, each at a random time
+     * within the spread window.
+     */
+    public void retireConnections() {
+        final List<Channel> retiring = new ArrayList<>(channels);
+        LOGGER.info("Retiring {} connections over {}ms", retiring.size(), TimeUnit.NANOSECONDS.toMillis(spreadWindowNanos));
+
+        for (final Channel channel : retiring) {
+            final long delayNanos = spreadWindowNanos == 0 ? 0 : ThreadLocalRandom.current().nextLong(spreadWindowNanos);
+            channel.eventLoop().schedule((Runnable) channel::close, delayNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * @return The number of connections currently open.
+     */
+    public int getConnectionCount() {
+        return channels.size();
+    }
+
+    /**
+     * Records the channel once added to its pipeline, then replaces itself
+     * with the handler of the delegate.
+     */
+    private final class TrackingHandler extends ChannelHandlerAdapter implements Handler {
+        private final Handler handler;
+
+        private TrackingHandler(final Handler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void handlerAdded(final ChannelHandlerContext ctx) {
+            channels.add(ctx.channel());
+            ctx.pipeline().replace(this, null, handler);
+        }
+
+        @Override
+        public AsciiString scheme() {
+            return handler.scheme();
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package com.indeed.grpc.netty;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.indeed.util.core.threads.NamedThreadFactory;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.lang.reflect.Method;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * A process-wide registry of the threads shared by channels, servers, name
+ * resolvers and registrars, in the style of grpc's own
+ * {@code SharedResourceHolder}.
+ *
+ * Every {@link #get(Resource)} must be paired with a
+ * {@link #release(Resource, Object)} of the same instance. The instance is
+ * created by the first get, and closed by the release of the last user, so
+ * that a process uses a single event loop group, a single blocking I/O
+ * executor and a single scheduler however many channels and services it has,
+ * and doesn't keep their threads once none uses them.
+ *
+ * <pre>
+ * final ScheduledExecutorService timerService = SharedResources.get(SharedResources.SCHEDULER);
+ * try {
+ *     ...
+ * } finally {
+ *     SharedResources.release(SharedResources.SCHEDULER, timerService);
+ * }
+ * </pre>
+ */
+@ThreadSafe
+public final class SharedResources {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SharedResources.class);
+
+    /**
+     * Creates and closes the instances of a shared resource.
+     */
+    public interface Resource<T> {
+        T create();
+
+        void close(T instance);
+    }
+
+    /**
+     * An event loop group with one thread per core, using the native epoll
+     * transport when available.
+     *
+     * @see NettyTransportFactory
+     */
+    public static final Resource<EventLoopGroup> EVENT_LOOP_GROUP = new Resource<EventLoopGroup>() {
+        @Override
+        public EventLoopGroup create() {
+            return NettyTransportFactory.Transport.detect().newEventLoopGroup(
+                    Runtime.getRuntime().availableProcessors(),
+                    new DefaultThreadFactory("grpc-shared-event-loop", true)
+            );
+        }
+
+        @Override
+        public void close(final EventLoopGroup instance) {
+            instance.shutdownGracefully(0, 5, TimeUnit.SECONDS);
+        }
+
+        @Override
+        public String toString() {
+            return "EVENT_LOOP_GROUP";
+        }
+    };
+
+    /**
+     * An executor for blocking requests, see
+     * {@link #newBlockingIoExecutor(String)}.
+     */
+    public static final Resource<ExecutorService> BLOCKING_IO_EXECUTOR = new Resource<ExecutorService>() {
+        @Override
+        public ExecutorService create() {
+            return newBlockingIoExecutor("grpc-shared-io");
+        }
+
+        @Override
+        public void close(final ExecutorService instance) {
+            instance.shutdown();
+        }
+
+        @Override
+        public String toString() {
+            return "BLOCKING_IO_EXECUTOR";
+        }
+    };
+
+    /**
+     * A scheduler for timing only, with up to four daemon threads. Cancelled
+     * tasks are removed from its queue right away, as resolvers cancel and
+     * reschedule their resolutions often. Blocking work must be handed to
+     * another executor, such as {@link #BLOCKING_IO_EXECUTOR}.
+     */
+    public static final Resource<ScheduledExecutorService> SCHEDULER = new Resource<ScheduledExecutorService>() {
+        @Override
+        public ScheduledExecutorService create() {
+            final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(
+                    Math.min(4, Runtime.getRuntime().availableProcessors()),
+                    new NamedThreadFactory("grpc-shared-scheduler", true)
+            );
+            executor.setRemoveOnCancelPolicy(true);
+            return executor;
+        }
+
+        @Override
+        public void close(final ScheduledExecutorService instance) {
+            instance.shutdown();
+        }
+
+        @Override
+        public String toString() {
+            return "SCHEDULER";
+        }
+    };
+
+    @GuardedBy("SharedResources.class")
+    private static final Map<Resource<?>, Instance> INSTANCES = new IdentityHashMap<>();
+
+    private SharedResources() {}
+
+    /**
+     * @param resource The resource to use.
+     * @return The shared instance of the resource, created if it's not in use.
+     */
+    @SuppressWarnings("unchecked")
+    public static synchronized <T> T get(final Resource<T> resource) {
+        Instance instance = INSTANCES.get(resource);
+        if (instance == null) {
+            instance = new Instance(resource.create());
+            INSTANCES.put(resource, instance);
+        }
+
+        instance.references++;
+        return (T) instance.value;
+    }
+
+    /**
+     * Stops using the instance of the resource, closing it if it was its last
+     * user.
+     *
+     * @param resource The resource used.
+     * @param value The instance returned by {@link #get(Resource)}.
+     */
+    public static synchronized <T> void release(final Resource<T> resource, final T value) {
+        final Instance instance = INSTANCES.get(resource);
+        checkState(instance != null, "No shared instance of %s", resource);
+        checkArgument(instance.value == value, "Releasing the wrong instance of %s", resource);
+
+        if (--instance.references == 0) {
+            INSTANCES.remove(resource);
+            resource.close(value);
+        }
+    }
+
+    /**
+     * @return The number of users of the shared instance of the resource.
+     */
+    @VisibleForTesting
+    static synchronized int getReferenceCount(final Resource<?> resource) {
+        final Instance instance = INSTANCES.get(resource);
+        return instance == null ? 0 : instance.references;
+    }
+
+    /**
+     * On runtimes supporting virtual threads, every task runs on its own
+     * virtual thread, making thousands of concurrent blocking requests cheap.
+     * On older runtimes, tasks run on a cached pool of daemon threads.
+     *
+     * @param threadName The name of the platform threads, when virtual threads
+     *                   are not supported.
+     * @return A new executor for blocking requests.
+     */
+    public static ExecutorService newBlockingIoExecutor(final String threadName) {
+        final ExecutorService virtualThreadExecutor = newVirtualThreadPerTaskExecutor();
+        if (virtualThreadExecutor != null) {
+            return virtualThreadExecutor;
+        }
+
+        return Executors.newCachedThreadPool(new NamedThreadFactory(threadName, true));
+    }
+
+    /**
+     * @return True if {@link #newBlockingIoExecutor(String)} runs tasks on
+     *         virtual threads.
+     */
+    public static boolean isVirtualThreadSupported() {
+        return VIRTUAL_THREAD_FACTORY != null;
+    }
+
+    @Nullable
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        if (VIRTUAL_THREAD_FACTORY == null) {
+            return null;
+        }
+
+        try {
+            return (ExecutorService) VIRTUAL_THREAD_FACTORY.invoke(null);
+        } catch (final ReflectiveOperationException | RuntimeException e) {
+            LOGGER.warn("Failed to create a virtual thread executor, falling back to platform threads", e);
+            return null;
+        }
+    }
+
+    // looked up reflectively so the library still runs on java 8
+    @Nullable
+    private static final Method VIRTUAL_THREAD_FACTORY = findVirtualThreadFactory();
+
+    @Nullable
+    private static Method findVirtualThreadFactory() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (final NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private static final class Instance {
+        private final Object value;
+        private int references = 0;
+
+        private Instance(final Object value) {
+            this.value = value;
+        }
+    }
+}
@@ -1,13 +1,26 @@
 package com.indeed.grpc.netty;
 
 import com.google.common.base.Strings;
+import com.google.common.annotations.VisibleForTesting;
 import com.indeed.util.core.DataLoadingRunnable;
+import com.indeed.util.varexport.Export;
 import io.netty.handler.ssl.SslContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Supplier;
 
@@ -17,6 +30,34 @@ import java.util.function.Supplier;
  * After a quick code read in grpc-java, the use of the {@link SslContext}
  * supports the swap of the underlying SslContext.
  *
+ * Every new context is validated before being swapped in, see
+ * {@link SslContextValidator}: a context must complete an in-memory handshake
+ * and present a certificate valid at the time of the load, unless it is a
+ * client context without a certificate. A context
+ * failing validation is discarded and the previous one stays in use.
+ *
+ * When built with an executor, the contexts are built and validated on that
+ * executor, see {@link #loadAsync()}, and the constructor doesn't block.
+ * {@link #run()} is final in {@link DataLoadingRunnable} and always loads on
+ * the calling thread, so schedule {@link #loadAsync()} rather than the
+ * reloader itself to keep loads on the executor.
+ *
+ * The expiry of the certificate presented by the context is exported, on
+ * the client side too when the context has a key manager.
+ * {@link #scheduleReloads(ScheduledExecutorService, long, long, TimeUnit)}
+ * polls rarely while the certificate is far from expiring, and more and more
+ * often as it nears expiry.
+ *
+ * A swap only affects connections established afterwards. Rotation listeners
+ * are notified when the swapped in context presents another certificate, so
+ * that existing connections can be retired. The loaders usually build a new
+ * context on every load, which is still swapped in, for example to pick up
+ * new trust roots, but doesn't retire any connection while the certificate is
+ * unchanged.
+ *
+ * @see RotationAwareProtocolNegotiator
+ * @see RotatingManagedChannel
+ *
  * @author jpitz
  */
 public class SslContextReloader extends DataLoadingRunnable implements Supplier<SslContext> {
@@ -26,6 +67,30 @@ public class SslContextReloader extends DataLoadingRunnable implements Supplier<
     private final SslContextReference sslContext = new SslContextReference(reference);
 
     private final ExceptionalSupplier<SslContext> loader;
+    @Nullable
+    private final Executor loadExecutor;
+
+    private final Object loadLock = new Object();
+
+    @GuardedBy("loadLock")
+    @Nullable
+    private byte[] encodedCertificate = null;
+
+    @GuardedBy("this")
+    @Nullable
+    private CompletableFuture<Boolean> pendingLoad = null;
+
+    private volatile long certificateNotAfterMillis = 0;
+
+    @GuardedBy("this")
+    @Nullable
+    private ScheduledFuture<?> scheduledReload = null;
+
+    @GuardedBy("this")
+    @Nullable
+    private ScheduledExecutorService sharedTimerService = null;
+
+    private final List<Runnable> rotationListeners = new CopyOnWriteArrayList<>();
 
     public SslContextReloader(
             final ExceptionalSupplier<SslContext> loader
@@ -40,10 +105,32 @@ public class SslContextReloader extends DataLoadingRunnable implements Supplier<
         super(computeNamespace(suffix));
 
         this.loader = loader;
+        this.loadExecutor = null;
 
         load(); // force the load of the data for the first time
     }
 
+    /**
+     * The first load is started on the executor, wait for
+     * {@link #loadAsync()} to complete before using the context.
+     *
+     * @param suffix The suffix of the namespace of the exported variables.
+     * @param loader Builds the context.
+     * @param loadExecutor The executor contexts are built and validated on.
+     */
+    public SslContextReloader(
+            @Nullable final String suffix,
+            final ExceptionalSupplier<SslContext> loader,
+            final Executor loadExecutor
+    ) {
+        super(computeNamespace(suffix));
+
+        this.loader = loader;
+        this.loadExecutor = loadExecutor;
+
+        loadAsync(); // start the load of the data for the first time
+    }
+
     private static String computeNamespace(@Nullable final String suffix) {
         if (Strings.isNullOrEmpty(suffix)) {
             return "SslContextReloader";
@@ -52,8 +139,34 @@ public class SslContextReloader extends DataLoadingRunnable implements Supplier<
         }
     }
 
+    /**
+     * Build and validate a new context on the executor of the reloader, or
+     * on the calling thread if it has none, then swap it in. Concurrent calls
+     * share the load in progress.
+     *
+     * @return A future completed with true if a new context was swapped in.
+     */
+    public synchronized CompletableFuture<Boolean> loadAsync() {
+        if (pendingLoad != null && !pendingLoad.isDone()) {
+            return pendingLoad;
+        }
+
+        final CompletableFuture<Boolean> future = loadExecutor == null
+                ? CompletableFuture.completedFuture(load())
+                : CompletableFuture.supplyAsync(this::load, loadExecutor);
+
+        pendingLoad = future;
+        return future;
+    }
+
     @Override
     public boolean load() {
+        synchronized (loadLock) {
+            return loadAndSwap();
+        }
+    }
+
+    private boolean loadAndSwap() {
         final SslContext previous = reference.get();
         try {
             final SslContext context = loader.get();
@@ -65,7 +178,17 @@ public class SslContextReloader extends DataLoadingRunnable implements Supplier<
                 return finishLoadWithReloadState(ReloadState.NO_CHANGE, null);
             }
 
+            final X509Certificate certificate = SslContextValidator.validate(context, new Date());
+
+            final byte[] encoded = certificate == null ? null : certificate.getEncoded();
+            final boolean rotated = !Arrays.equals(encodedCertificate, encoded);
+
             reference.set(context);
+            encodedCertificate = encoded;
+            certificateNotAfterMillis = certificate == null ? 0 : certificate.getNotAfter().getTime();
+            if (previous != null && rotated) {
+                notifyRotationListeners();
+            }
             return finishLoadWithReloadState(ReloadState.RELOADED, null);
         } catch (final Exception e) {
             LOGGER.error("Failed to load SslContext.", e);
@@ -74,6 +197,144 @@ public class SslContextReloader extends DataLoadingRunnable implements Supplier<
         return finishLoadWithReloadState(ReloadState.FAILED, null);
     }
 
+    /**
+     * Reload periodically. The delay between two reloads is a quarter of the
+     * time left until the certificate expires, within the given bounds, so
+     * that a rotated certificate is picked up well before the current one
+     * expires while reloads remain rare otherwise. Without a known expiry,
+     * the maximum interval is used.
+     *
+     * @param timerService Used to schedule the reloads.
+     * @param minInterval The shortest delay between two reloads, used once
+     *                    the certificate is about to expire or expired.
+     * @param maxInterval The longest delay between two reloads.
+     * @param unit The unit of the intervals.
+     */
+    public synchronized void scheduleReloads(
+            final ScheduledExecutorService timerService,
+            final long minInterval,
+            final long maxInterval,
+            final TimeUnit unit
+    ) {
+        cancelScheduledReloads();
+        scheduleReload(timerService, unit.toMillis(minInterval), unit.toMillis(maxInterval));
+    }
+
+    /**
+     * Reload periodically on the {@link SharedResources#SCHEDULER}, held
+     * until {@link #cancelScheduledReloads()}.
+     *
+     * @see #scheduleReloads(ScheduledExecutorService, long, long, TimeUnit)
+     */
+    public synchronized void scheduleReloads(
+            final long minInterval,
+            final long maxInterval,
+            final TimeUnit unit
+    ) {
+        cancelScheduledReloads();
+        sharedTimerService = SharedResources.get(SharedResources.SCHEDULER);
+        scheduleReload(sharedTimerService, unit.toMillis(minInterval), unit.toMillis(maxInterval));
+    }
+
+    private synchronized void scheduleReload(
+            final ScheduledExecutorService timerService,
+            final long minIntervalMillis,
+            final long maxIntervalMillis
+    ) {
+        final long delayMillis = computeReloadDelayMillis(
+                System.currentTimeMillis(), certificateNotAfterMillis, minIntervalMillis, maxIntervalMillis
+        );
+
+        final ScheduledFuture<?>[] self = new ScheduledFuture<?>[1];
+        self[0] = timerService.schedule(
+                () -> loadAsync().whenComplete((reloaded, e) -> {
+                    synchronized (this) {
+                        // not rescheduled once cancelled or replaced
+                        if (scheduledReload == self[0]) {
+                            scheduleReload(timerService, minIntervalMillis, maxIntervalMillis);
+                        }
+                    }
+                }),
+                delayMillis, TimeUnit.MILLISECONDS
+        );
+        scheduledReload = self[0];
+    }
+
+    /**
+     * Stop the reloads scheduled by
+     * {@link #scheduleReloads(ScheduledExecutorService, long, long, TimeUnit)}
+     * or {@link #scheduleReloads(long, long, TimeUnit)}.
+     */
+    public synchronized void cancelScheduledReloads() {
+        if (scheduledReload != null) {
+            scheduledReload.cancel(false);
+            scheduledReload = null;
+        }
+        if (sharedTimerService != null) {
+            SharedResources.release(SharedResources.SCHEDULER, sharedTimerService);
+            sharedTimerService = null;
+        }
+    }
+
+    @VisibleForTesting
+    static long computeReloadDelayMillis(
+            final long nowMillis,
+            final long notAfterMillis,
+            final long minIntervalMillis,
+            final long maxIntervalMillis
+    ) {
+        if (notAfterMillis == 0) {
+            return maxIntervalMillis;
+        }
+
+        final long remainingMillis = notAfterMillis - nowMillis;
+        return Math.max(minIntervalMillis, Math.min(maxIntervalMillis, remainingMillis / 4));
+    }
+
+    /**
+     * @return When the certificate presented by the current context expires,
+     *         in milliseconds since the epoch, or 0 if unknown.
+     */
+    @Export(name = "certificate-not-after", doc = "Expiry of the current certificate, in milliseconds since the epoch")
+    public long getCertificateNotAfterMillis() {
+        return certificateNotAfterMillis;
+    }
+
+    /**
+     * @return How long until the certificate presented by the current
+     *         context expires, in milliseconds, or -1 if unknown.
+     */
+    @Export(name = "certificate-expires-in-millis", doc = "Time left until the current certificate expires")
+    public long getMillisUntilCertificateExpiry() {
+        final long notAfterMillis = certificateNotAfterMillis;
+        if (notAfterMillis == 0) {
+            return -1;
+        }
+        return notAfterMillis - System.currentTimeMillis();
+    }
+
+    private void notifyRotationListeners() {
+        for (final Runnable listener : rotationListeners) {
+            try {
+                listener.run();
+            } catch (final RuntimeException e) {
+                LOGGER.error("SslContext rotation listener failed.", e);
+            }
+        }
+    }
+
+    /**
+     * @param listener Called after the SslContext was replaced by a new one.
+     *                 Not called for the first load.
+     */
+    public void addRotationListener(final Runnable listener) {
+        rotationListeners.add(listener);
+    }
+
+    public void removeRotationListener(final Runnable listener) {
+        rotationListeners.remove(listener);
+    }
+
     @Override
     public SslContext get() {
         return sslContext;
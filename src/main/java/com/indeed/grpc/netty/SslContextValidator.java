@@ -0,0 +1,210 @@
+package com.indeed.grpc.netty;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.ssl.JdkSslContext;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.util.ReferenceCountUtil;
+
+import javax.annotation.Nullable;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLHandshakeException;
+import java.nio.ByteBuffer;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+
+/**
+ * Checks that a freshly built {@link SslContext} works before it is swapped
+ * in by the {@link SslContextReloader}.
+ *
+ * A server context must complete a handshake, in memory, with a client that
+ * trusts any certificate. Completing the handshake proves that the private key
+ * matches the certificate, and the certificate presented must be valid at the
+ * time of the check.
+ *
+ * Netty doesn't expose the key manager of a client context. The JDK key
+ * managers serve either side though, so the key and certificate of a JDK
+ * client context are checked the same way, by a handshake of its
+ * {@link SSLContext} on the server side. A client context without a key
+ * manager, or not backed by the JDK, must be able to start a handshake.
+ */
+final class SslContextValidator {
+    private static final int MAX_HANDSHAKE_STEPS = 100;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private SslContextValidator() {}
+
+    /**
+     * @param context The context to validate.
+     * @param now The time the certificate must be valid at.
+     * @return The certificate presented by the context, or null for a client
+     *         context without a key manager.
+     * @throws SSLException If the handshake fails.
+     * @throws CertificateException If the certificate is not valid now.
+     */
+    @Nullable
+    static X509Certificate validate(final SslContext context, final Date now) throws SSLException, CertificateException {
+        final X509Certificate certificate;
+        if (context.isClient()) {
+            certificate = validateClient(context);
+            if (certificate == null) {
+                return null;
+            }
+        } else {
+            certificate = validateServer(context.newEngine(ByteBufAllocator.DEFAULT));
+        }
+
+        certificate.checkValidity(now);
+        return certificate;
+    }
+
+    @Nullable
+    private static X509Certificate validateClient(final SslContext context) throws SSLException {
+        if (context instanceof JdkSslContext) {
+            final SSLEngine server = ((JdkSslContext) context).context().createSSLEngine();
+            server.setUseClientMode(false);
+            try {
+                return validateServer(server);
+            } catch (final ServerHandshakeException e) {
+                // nothing to present, as a client either
+            }
+        }
+
+        startHandshake(context);
+        return null;
+    }
+
+    private static void startHandshake(final SslContext context) throws SSLException {
+        final SSLEngine client = context.newEngine(ByteBufAllocator.DEFAULT, "localhost", 0);
+        try {
+            client.beginHandshake();
+            final ByteBuffer clientHello = ByteBuffer.allocate(client.getSession().getPacketBufferSize());
+            client.wrap(EMPTY, clientHello);
+            runDelegatedTasks(client);
+
+            if (clientHello.position() == 0) {
+                throw new SSLHandshakeException("client did not produce a ClientHello");
+            }
+        } finally {
+            ReferenceCountUtil.release(client);
+        }
+    }
+
+    private static X509Certificate validateServer(final SSLEngine server) throws SSLException {
+        final SSLEngine client = ClientHolder.CONTEXT.newEngine(ByteBufAllocator.DEFAULT, "localhost", 0);
+        try {
+            // the loopback client has no certificate to present
+            server.setNeedClientAuth(false);
+
+            handshake(client, server);
+
+            final Certificate[] chain = client.getSession().getPeerCertificates();
+            if (chain.length == 0 || !(chain[0] instanceof X509Certificate)) {
+                throw new SSLHandshakeException("server did not present an X.509 certificate");
+            }
+            return (X509Certificate) chain[0];
+        } finally {
+            ReferenceCountUtil.release(client);
+            ReferenceCountUtil.release(server);
+        }
+    }
+
+    private static void handshake(final SSLEngine client, final SSLEngine server) throws SSLException {
+        final int packetBufferSize = 4 * Math.max(
+                client.getSession().getPacketBufferSize(),
+                server.getSession().getPacketBufferSize()
+        );
+        final int applicationBufferSize = 4 * Math.max(
+                client.getSession().getApplicationBufferSize(),
+                server.getSession().getApplicationBufferSize()
+        );
+
+        final ByteBuffer clientToServer = ByteBuffer.allocate(packetBufferSize);
+        final ByteBuffer serverToClient = ByteBuffer.allocate(packetBufferSize);
+        final ByteBuffer clientApplication = ByteBuffer.allocate(applicationBufferSize);
+        final ByteBuffer serverApplication = ByteBuffer.allocate(applicationBufferSize);
+
+        client.beginHandshake();
+        server.beginHandshake();
+
+        for (int step = 0; step < MAX_HANDSHAKE_STEPS; step++) {
+            if (isHandshakeDone(client) && isHandshakeDone(server)) {
+                return;
+            }
+
+            client.wrap(EMPTY, clientToServer);
+            runDelegatedTasks(client);
+            try {
+                server.wrap(EMPTY, serverToClient);
+                runDelegatedTasks(server);
+            } catch (final SSLException e) {
+                throw new ServerHandshakeException(e);
+            }
+
+            clientToServer.flip();
+            serverToClient.flip();
+
+            client.unwrap(serverToClient, clientApplication);
+            runDelegatedTasks(client);
+            try {
+                server.unwrap(clientToServer, serverApplication);
+                runDelegatedTasks(server);
+            } catch (final SSLException e) {
+                throw new ServerHandshakeException(e);
+            }
+
+            clientToServer.compact();
+            serverToClient.compact();
+            clientApplication.clear();
+            serverApplication.clear();
+        }
+
+        throw new SSLHandshakeException("loopback handshake did not complete");
+    }
+
+    private static boolean isHandshakeDone(final SSLEngine engine) {
+        final HandshakeStatus status = engine.getHandshakeStatus();
+        return status == HandshakeStatus.NOT_HANDSHAKING || status == HandshakeStatus.FINISHED;
+    }
+
+    private static void runDelegatedTasks(final SSLEngine engine) {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * The server side failed first, for example because it has no
+     * certificate to present. The client side failing first means that the
+     * server presented a certificate it doesn't have the key of.
+     */
+    private static final class ServerHandshakeException extends SSLHandshakeException {
+        private static final long serialVersionUID = 1L;
+
+        private ServerHandshakeException(final SSLException cause) {
+            super(cause.getMessage());
+            initCause(cause);
+        }
+    }
+
+    private static final class ClientHolder {
+        private static final SslContext CONTEXT = newClientContext();
+
+        private static SslContext newClientContext() {
+            try {
+                return SslContextBuilder.forClient()
+                        .trustManager(InsecureTrustManagerFactory.INSTANCE)
+                        .build();
+            } catch (final SSLException e) {
+                throw new IllegalStateException("Failed to build the loopback client context", e);
+            }
+        }
+    }
+}
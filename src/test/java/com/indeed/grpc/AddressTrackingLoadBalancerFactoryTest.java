@@ -0,0 +1,73 @@
+package com.indeed.grpc;
+
+import io.grpc.CallOptions;
+import io.grpc.EquivalentAddressGroup;
+import io.grpc.LoadBalancer;
+import io.grpc.MethodDescriptor;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ *
+ */
+public class AddressTrackingLoadBalancerFactoryTest {
+    private static final MethodDescriptor.Marshaller<String> MARSHALLER = new MethodDescriptor.Marshaller<String>() {
+        @Override
+        public InputStream stream(final String value) {
+            return new ByteArrayInputStream(value.getBytes());
+        }
+
+        @Override
+        public String parse(final InputStream stream) {
+            return "";
+        }
+    };
+
+    private static final MethodDescriptor<String, String> METHOD = MethodDescriptor.<String, String>newBuilder()
+            .setType(MethodDescriptor.MethodType.UNARY)
+            .setFullMethodName(MethodDescriptor.generateFullMethodName("test.MyService", "MyMethod"))
+            .setRequestMarshaller(MARSHALLER)
+            .setResponseMarshaller(MARSHALLER)
+            .build();
+
+    private static final EquivalentAddressGroup ADDRESSES = new EquivalentAddressGroup(
+            new InetSocketAddress("127.0.0.1", 8080)
+    );
+
+    @Test
+    public void testPickedAddresses() {
+        final LoadBalancer.SubchannelPicker picker = UtilsForTesting.newTrackingPicker(ADDRESSES);
+
+        final CallOptions tracked = AddressTrackingLoadBalancerFactory.track(CallOptions.DEFAULT);
+        assertNull(AddressTrackingLoadBalancerFactory.getPickedAddresses(tracked));
+
+        final LoadBalancer.PickResult result = UtilsForTesting.pick(picker, METHOD, tracked);
+        assertSame(ADDRESSES, result.getSubchannel().getAddresses());
+        assertSame(ADDRESSES, AddressTrackingLoadBalancerFactory.getPickedAddresses(tracked));
+    }
+
+    @Test
+    public void testUntrackedCalls() {
+        final LoadBalancer.SubchannelPicker picker = UtilsForTesting.newTrackingPicker(ADDRESSES);
+
+        // calls without a holder are picked as usual
+        final LoadBalancer.PickResult result = UtilsForTesting.pick(picker, METHOD, CallOptions.DEFAULT);
+        assertSame(ADDRESSES, result.getSubchannel().getAddresses());
+        assertNull(AddressTrackingLoadBalancerFactory.getPickedAddresses(CallOptions.DEFAULT));
+    }
+
+    @Test
+    public void testInterceptorsShareTheHolder() {
+        final CallOptions tracked = AddressTrackingLoadBalancerFactory.track(CallOptions.DEFAULT);
+        final CallOptions retracked = AddressTrackingLoadBalancerFactory.track(tracked.withAuthority("MyServiceName"));
+
+        UtilsForTesting.pick(UtilsForTesting.newTrackingPicker(ADDRESSES), METHOD, retracked);
+        assertSame(ADDRESSES, AddressTrackingLoadBalancerFactory.getPickedAddresses(tracked));
+    }
+}
@@ -0,0 +1,46 @@
+package com.indeed.grpc;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ */
+public class ServerLoadTest {
+    @Test
+    public void testFormatAndParse() {
+        final ServerLoad load = new ServerLoad(12, 3, 0.421);
+        assertEquals("inflight=12 queue=3 cpu=0.42", load.toString());
+
+        final ServerLoad parsed = ServerLoad.parse(load.toString());
+        assertEquals(load, parsed);
+        assertEquals(12, parsed.getInFlightRpcs());
+        assertEquals(3, parsed.getQueueDepth());
+        assertEquals(0.42, parsed.getCpuUtilization(), 0.0001);
+
+        assertNull(ServerLoad.parse(null));
+        assertNull(ServerLoad.parse("draining"));
+        assertNull(ServerLoad.parse("inflight=1 queue=2"));
+        assertNull(ServerLoad.parse("inflight=a queue=2 cpu=0.1"));
+    }
+
+    @Test
+    public void testDiffersSignificantly() {
+        final ServerLoad previous = new ServerLoad(100, 10, 0.5);
+
+        assertFalse(new ServerLoad(100, 10, 0.5).differsSignificantly(previous, 0.2));
+        assertFalse(new ServerLoad(110, 11, 0.55).differsSignificantly(previous, 0.2));
+        assertTrue(new ServerLoad(130, 10, 0.5).differsSignificantly(previous, 0.2));
+        assertTrue(new ServerLoad(100, 20, 0.5).differsSignificantly(previous, 0.2));
+        assertTrue(new ServerLoad(100, 10, 0.8).differsSignificantly(previous, 0.2));
+
+        // small absolute changes on an idle server are never significant
+        final ServerLoad idle = new ServerLoad(0, 0, 0.01);
+        assertFalse(new ServerLoad(1, 1, 0.02).differsSignificantly(idle, 0.2));
+        assertTrue(new ServerLoad(5, 0, 0.01).differsSignificantly(idle, 0.2));
+    }
+}
@@ -1,5 +1,20 @@
 package com.indeed.grpc;
 
+import io.grpc.Attributes;
+import io.grpc.CallOptions;
+import io.grpc.ConnectivityState;
+import io.grpc.ConnectivityStateInfo;
+import io.grpc.EquivalentAddressGroup;
+import io.grpc.LoadBalancer;
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.NameResolver;
+import io.grpc.Status;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
 import static org.junit.Assert.fail;
 
 /**
@@ -21,4 +36,122 @@ public final class UtilsForTesting {
             fail("Expected null pointer exception, but one was not thrown");
         } catch (final NullPointerException ignored) {}
     }
+
+    /**
+     * Build the picker a channel balancing with an
+     * {@link AddressTrackingLoadBalancerFactory} is given by a balancer that
+     * always picks a subchannel of the provided addresses.
+     *
+     * @param addresses The addresses of the picked subchannel.
+     * @return The picker published to the channel.
+     */
+    public static LoadBalancer.SubchannelPicker newTrackingPicker(final EquivalentAddressGroup addresses) {
+        final LoadBalancer.Subchannel subchannel = new LoadBalancer.Subchannel() {
+            @Override
+            public void shutdown() {}
+
+            @Override
+            public void requestConnection() {}
+
+            @Override
+            public EquivalentAddressGroup getAddresses() {
+                return addresses;
+            }
+
+            @Override
+            public Attributes getAttributes() {
+                return Attributes.EMPTY;
+            }
+        };
+
+        final LoadBalancer.Factory fixed = new LoadBalancer.Factory() {
+            @Override
+            public LoadBalancer newLoadBalancer(final LoadBalancer.Helper helper) {
+                helper.updateBalancingState(ConnectivityState.READY, new LoadBalancer.SubchannelPicker() {
+                    @Override
+                    public LoadBalancer.PickResult pickSubchannel(final LoadBalancer.PickSubchannelArgs args) {
+                        return LoadBalancer.PickResult.withSubchannel(subchannel);
+                    }
+                });
+                return new LoadBalancer() {
+                    @Override
+                    public void handleResolvedAddressGroups(final List<EquivalentAddressGroup> servers, final Attributes attributes) {}
+
+                    @Override
+                    public void handleNameResolutionError(final Status error) {}
+
+                    @Override
+                    public void handleSubchannelState(final Subchannel subchannel, final ConnectivityStateInfo stateInfo) {}
+
+                    @Override
+                    public void shutdown() {}
+                };
+            }
+        };
+
+        final AtomicReference<LoadBalancer.SubchannelPicker> picker = new AtomicReference<>();
+        AddressTrackingLoadBalancerFactory.wrap(fixed).newLoadBalancer(new LoadBalancer.Helper() {
+            @Override
+            public LoadBalancer.Subchannel createSubchannel(final EquivalentAddressGroup addrs, final Attributes attrs) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public ManagedChannel createOobChannel(final EquivalentAddressGroup eag, final String authority) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public void updateBalancingState(final ConnectivityState newState, final LoadBalancer.SubchannelPicker newPicker) {
+                picker.set(newPicker);
+            }
+
+            @Override
+            public void runSerialized(final Runnable task) {
+                task.run();
+            }
+
+            @Override
+            public NameResolver.Factory getNameResolverFactory() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public String getAuthority() {
+                return "MyServiceName";
+            }
+        });
+        return picker.get();
+    }
+
+    /**
+     * Pick a subchannel for a call, as a channel does before starting it.
+     *
+     * @param picker The picker of the channel.
+     * @param method The method of the call.
+     * @param callOptions The options of the call.
+     * @return The result of the pick.
+     */
+    public static LoadBalancer.PickResult pick(
+            final LoadBalancer.SubchannelPicker picker,
+            final MethodDescriptor<?, ?> method,
+            final CallOptions callOptions
+    ) {
+        return picker.pickSubchannel(new LoadBalancer.PickSubchannelArgs() {
+            @Override
+            public CallOptions getCallOptions() {
+                return callOptions;
+            }
+
+            @Override
+            public Metadata getHeaders() {
+                return new Metadata();
+            }
+
+            @Override
+            public MethodDescriptor<?, ?> getMethodDescriptor() {
+                return method;
+            }
+        });
+    }
 }
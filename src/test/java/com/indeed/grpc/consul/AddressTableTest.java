@@ -0,0 +1,88 @@
+package com.indeed.grpc.consul;
+
+import com.ecwid.consul.v1.catalog.model.CatalogService;
+import com.google.common.collect.Lists;
+import io.grpc.EquivalentAddressGroup;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ */
+public class AddressTableTest {
+    private static CatalogService service(final String address, final String serviceAddress, final int port) {
+        final CatalogService service = new CatalogService();
+        service.setAddress(address);
+        service.setServiceAddress(serviceAddress);
+        service.setServicePort(port);
+        return service;
+    }
+
+    @Test
+    public void testSortedWithoutDuplicates() {
+        final AddressTable table = AddressTable.of(Lists.newArrayList(
+                service("host2", "", 8080),
+                service("host1", null, 8081),
+                service("node", "host1", 8080),
+                service("host2", null, 8080)
+        ));
+
+        assertEquals(3, table.size());
+        assertEquals("host1", table.getHost(0));
+        assertEquals(8080, table.getPort(0));
+        assertEquals("host1", table.getHost(1));
+        assertEquals(8081, table.getPort(1));
+        assertEquals("host2", table.getHost(2));
+        assertEquals(8080, table.getPort(2));
+
+        final List<EquivalentAddressGroup> groups = table.toAddressGroups();
+        assertEquals(3, groups.size());
+        assertEquals(8081, ((InetSocketAddress) groups.get(1).getAddresses().get(0)).getPort());
+    }
+
+    @Test
+    public void testMatches() {
+        final List<CatalogService> services = Lists.newArrayList(
+                service("host1", null, 8080),
+                service("host2", null, 8080)
+        );
+        final AddressTable table = AddressTable.of(services);
+
+        assertTrue(table.matches(services));
+        assertTrue(table.matches(Lists.newArrayList(
+                service("host2", null, 8080),
+                service("other", "host1", 8080)
+        )));
+
+        assertFalse(table.matches(Lists.newArrayList(service("host1", null, 8080))));
+        assertFalse(table.matches(Lists.newArrayList(
+                service("host1", null, 8080),
+                service("host2", null, 8081)
+        )));
+        assertFalse(table.matches(Lists.newArrayList(
+                service("host1", null, 8080),
+                service("host2", null, 8080),
+                service("host2", null, 8080)
+        )));
+    }
+
+    @Test
+    public void testHostsAreInterned() {
+        final AddressTable first = AddressTable.of(Lists.newArrayList(service(new String("host1"), null, 8080)));
+        final AddressTable second = AddressTable.of(Lists.newArrayList(service(new String("host1"), null, 8081)));
+
+        assertSame(first.getHost(0), second.getHost(0));
+        assertFalse(first.hasSameAddresses(second));
+        assertTrue(first.hasSameAddresses(AddressTable.of(Lists.newArrayList(
+                service("host1", null, 8080),
+                service("host1", null, 8080)
+        ))));
+    }
+}
@@ -0,0 +1,200 @@
+package com.indeed.grpc.consul;
+
+import com.ecwid.consul.UrlParameters;
+import com.ecwid.consul.transport.RawResponse;
+import com.ecwid.consul.v1.ConsulRawClient;
+import com.ecwid.consul.v1.OperationException;
+import com.ecwid.consul.v1.QueryParams;
+import com.ecwid.consul.v1.Response;
+import com.ecwid.consul.v1.catalog.model.CatalogService;
+import com.ecwid.consul.v1.query.QueryClient;
+import com.ecwid.consul.v1.query.model.QueryExecution;
+import com.ecwid.consul.v1.query.model.QueryNode;
+import com.google.common.collect.Lists;
+import mockit.Expectations;
+import mockit.Mocked;
+import mockit.Verifications;
+import mockit.integration.junit4.JMockit;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ *
+ */
+@RunWith(JMockit.class)
+public class CatalogLookupTest {
+    @Mocked
+    private ConsulRawClient rawClient;
+
+    @Mocked
+    private QueryClient queryClient;
+
+    @Test
+    public void testFiltered() {
+        final String content = "[{\"Address\":\"10.0.0.1\",\"ServiceAddress\":\"\",\"ServicePort\":8080," +
+                "\"ServiceTags\":[\"grpc\",\"canary\"]}]";
+
+        new Expectations() {{
+            rawClient.makeGetRequest("/v1/catalog/service/MyServiceName", (UrlParameters[]) any);
+            result = new RawResponse(200, "OK", content, 42L, true, 0L);
+        }};
+
+        final CatalogLookup lookup = CatalogLookup.filtered(
+                rawClient, "MyServiceName", Lists.newArrayList("grpc", "canary"), "ServiceMeta.version == \"2\"", false
+        );
+        final Response<List<CatalogService>> response = lookup.lookup(QueryParams.DEFAULT);
+
+        assertEquals(Long.valueOf(42), response.getConsulIndex());
+        assertEquals(1, response.getValue().size());
+        assertEquals("10.0.0.1", response.getValue().get(0).getAddress());
+        assertEquals(Integer.valueOf(8080), response.getValue().get(0).getServicePort());
+
+        new Verifications() {{
+            final UrlParameters[] parameters;
+            rawClient.makeGetRequest(anyString, parameters = withCapture());
+
+            final List<String> urlParameters = new ArrayList<>();
+            for (final UrlParameters parameter : parameters) {
+                urlParameters.addAll(parameter.toUrlParameters());
+            }
+            assertEquals(
+                    Lists.newArrayList("tag=grpc", "tag=canary", "filter=ServiceMeta.version+%3D%3D+%222%22"),
+                    urlParameters
+            );
+        }};
+    }
+
+    @Test
+    public void testFilteredIgnoredByAgent() {
+        // agents older than 1.5 ignore the filter, and all but one tag
+        final String content = "[" +
+                "{\"Address\":\"10.0.0.1\",\"ServicePort\":8080,\"ServiceTags\":[\"grpc\",\"canary\"]}," +
+                "{\"Address\":\"10.0.0.2\",\"ServicePort\":8080,\"ServiceTags\":[\"grpc\"]}," +
+                "{\"Address\":\"10.0.0.3\",\"ServicePort\":8080}" +
+                "]";
+
+        new Expectations() {{
+            rawClient.makeGetRequest(anyString, (UrlParameters[]) any);
+            result = new RawResponse(200, "OK", content, 42L, true, 0L);
+        }};
+
+        final Response<List<CatalogService>> response = CatalogLookup.filtered(
+                rawClient, "MyServiceName", Lists.newArrayList("grpc", "canary"), "ServiceMeta.version == \"2\"", false
+        ).lookup(QueryParams.DEFAULT);
+
+        assertEquals(1, response.getValue().size());
+        assertEquals("10.0.0.1", response.getValue().get(0).getAddress());
+    }
+
+    @Test
+    public void testFilteredWithoutTags() {
+        // the agent leaves out the tags of instances registered without any
+        final String content = "[{\"Address\":\"10.0.0.1\",\"ServicePort\":8080}]";
+
+        new Expectations() {{
+            rawClient.makeGetRequest(anyString, (UrlParameters[]) any);
+            result = new RawResponse(200, "OK", content, 42L, true, 0L);
+        }};
+
+        final Response<List<CatalogService>> response = CatalogLookup.filtered(
+                rawClient, "MyServiceName", new ArrayList<>(), "ServiceMeta.version == \"2\"", false
+        ).lookup(QueryParams.DEFAULT);
+
+        assertEquals(1, response.getValue().size());
+        assertEquals("10.0.0.1", response.getValue().get(0).getAddress());
+    }
+
+    @Test
+    public void testFilteredPassing() {
+        final String content = "[" +
+                "{\"Node\":{\"Node\":\"node1\",\"Address\":\"10.0.0.1\"}," +
+                "\"Service\":{\"ID\":\"MyServiceName-1\",\"Port\":8080,\"Tags\":[\"grpc\"]}," +
+                "\"Checks\":[{\"CheckID\":\"service:MyServiceName-1\",\"Status\":\"passing\"}]}," +
+                "{\"Node\":{\"Node\":\"node2\",\"Address\":\"10.0.0.2\"}," +
+                "\"Service\":{\"ID\":\"MyServiceName-2\",\"Port\":8080,\"Tags\":[\"grpc\"]}," +
+                "\"Checks\":[{\"CheckID\":\"service:MyServiceName-2\",\"Status\":\"critical\"}]}" +
+                "]";
+
+        new Expectations() {{
+            rawClient.makeGetRequest("/v1/health/service/MyServiceName", (UrlParameters[]) any);
+            result = new RawResponse(200, "OK", content, 42L, true, 0L);
+        }};
+
+        final Response<List<CatalogService>> response = CatalogLookup.filtered(
+                rawClient, "MyServiceName", Lists.newArrayList("grpc"), "Service.Meta.version == \"2\"", true
+        ).lookup(QueryParams.DEFAULT);
+
+        // the critical instance is dropped even if the agent returned it
+        assertEquals(1, response.getValue().size());
+        assertEquals("node1", response.getValue().get(0).getNode());
+        assertEquals("10.0.0.1", response.getValue().get(0).getAddress());
+        assertEquals(Integer.valueOf(8080), response.getValue().get(0).getServicePort());
+
+        new Verifications() {{
+            final UrlParameters[] parameters;
+            rawClient.makeGetRequest(anyString, parameters = withCapture());
+
+            final List<String> urlParameters = new ArrayList<>();
+            for (final UrlParameters parameter : parameters) {
+                urlParameters.addAll(parameter.toUrlParameters());
+            }
+            assertEquals(
+                    Lists.newArrayList("passing", "tag=grpc", "filter=Service.Meta.version+%3D%3D+%222%22"),
+                    urlParameters
+            );
+        }};
+    }
+
+    @Test(expected = OperationException.class)
+    public void testFilteredError() {
+        new Expectations() {{
+            rawClient.makeGetRequest(anyString, (UrlParameters[]) any);
+            result = new RawResponse(400, "Bad Request", "invalid filter", null, null, null);
+        }};
+
+        CatalogLookup.filtered(rawClient, "MyServiceName", Lists.newArrayList(), "invalid", false).lookup(QueryParams.DEFAULT);
+    }
+
+    @Test
+    public void testPreparedQuery() {
+        final QueryNode.Node node = new QueryNode.Node();
+        node.setNode("node1");
+        node.setAddress("10.0.0.1");
+
+        final QueryNode.Service service = new QueryNode.Service();
+        service.setId("MyServiceName-1");
+        service.setService("MyServiceName");
+        service.setAddress("10.0.0.2");
+        service.setPort(8080);
+
+        final QueryNode queryNode = new QueryNode();
+        queryNode.setNode(node);
+        queryNode.setService(service);
+
+        final QueryExecution execution = new QueryExecution();
+        execution.setNodes(Lists.newArrayList(queryNode));
+
+        new Expectations() {{
+            queryClient.executePreparedQuery("MyQueryName", QueryParams.DEFAULT);
+            result = new Response<>(execution, 42L, true, 0L);
+        }};
+
+        final Response<List<CatalogService>> response = CatalogLookup.preparedQuery(queryClient, "MyQueryName")
+                .lookup(QueryParams.DEFAULT);
+
+        assertEquals(Long.valueOf(42), response.getConsulIndex());
+        assertEquals(1, response.getValue().size());
+
+        final CatalogService catalogService = response.getValue().get(0);
+        assertEquals("node1", catalogService.getNode());
+        assertEquals("10.0.0.1", catalogService.getAddress());
+        assertEquals("10.0.0.2", catalogService.getServiceAddress());
+        assertEquals(Integer.valueOf(8080), catalogService.getServicePort());
+        assertEquals("MyServiceName", catalogService.getServiceName());
+    }
+}
@@ -1,6 +1,8 @@
 package com.indeed.grpc.consul;
 
 import com.ecwid.consul.v1.ConsulClient;
+import com.ecwid.consul.v1.ConsulRawClient;
+import mockit.Deencapsulation;
 import org.junit.Test;
 
 import static org.junit.Assert.assertFalse;
@@ -21,4 +23,19 @@ public class ConsulClientManagerTest {
         assertTrue(c1 == c2);
         assertFalse(c2 == c3);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void getRawInstance() throws Exception {
+        final ConsulRawClient r1 = ConsulClientManager.getRawInstance("localhost", 8501);
+        final ConsulRawClient r2 = ConsulClientManager.getRawInstance("localhost", 8501);
+        final ConsulRawClient r3 = ConsulClientManager.getRawInstance("127.0.0.1", 8501);
+
+        assertTrue(r1 == r2);
+        assertFalse(r2 == r3);
+
+        // the client shares the transport of the raw client
+        final ConsulClient c1 = ConsulClientManager.getInstance("localhost", 8501);
+        final Object agentClient = Deencapsulation.getField(c1, "agentClient");
+        assertTrue(r1 == Deencapsulation.getField(agentClient, "rawClient"));
+    }
+}
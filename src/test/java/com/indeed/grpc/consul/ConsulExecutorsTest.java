@@ -0,0 +1,51 @@
+package com.indeed.grpc.consul;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ */
+public class ConsulExecutorsTest {
+    @Test
+    public void testBlockingIoExecutor() throws InterruptedException {
+        final ExecutorService executor = ConsulExecutors.newBlockingIoExecutor();
+        try {
+            // every task blocks until all of them started, which requires one thread per task
+            final int tasks = 32;
+            final CountDownLatch started = new CountDownLatch(tasks);
+            final CountDownLatch done = new CountDownLatch(tasks);
+            for (int i = 0; i < tasks; i++) {
+                executor.execute(() -> {
+                    started.countDown();
+                    try {
+                        started.await();
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    done.countDown();
+                });
+            }
+
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testVirtualThreadSupport() {
+        final String version = System.getProperty("java.specification.version");
+        if (version.startsWith("1.")) {
+            assertFalse(ConsulExecutors.isVirtualThreadSupported());
+        } else if (Integer.parseInt(version) >= 21) {
+            assertTrue(ConsulExecutors.isVirtualThreadSupported());
+        }
+    }
+}
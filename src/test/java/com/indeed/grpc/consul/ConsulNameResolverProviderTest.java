@@ -1,9 +1,12 @@
 package com.indeed.grpc.consul;
 
+import com.google.common.collect.Lists;
+import com.google.common.net.HostAndPort;
 import io.grpc.Attributes;
 import org.junit.Test;
 
 import java.net.URI;
+import java.util.Collections;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
@@ -93,4 +96,83 @@ public class ConsulNameResolverProviderTest {
             assertEquals("grpc", r.getTag());
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testParseEndpoints() {
+        assertEquals(
+                Collections.singletonList(HostAndPort.fromParts("localhost", 8500)),
+                ConsulNameResolverProvider.parseEndpoints(null)
+        );
+        assertEquals(
+                Collections.singletonList(HostAndPort.fromParts("consul1", 8500)),
+                ConsulNameResolverProvider.parseEndpoints("consul1")
+        );
+        assertEquals(
+                Lists.newArrayList(HostAndPort.fromParts("consul1", 8500), HostAndPort.fromParts("consul2", 8501)),
+                ConsulNameResolverProvider.parseEndpoints("consul1,consul2:8501")
+        );
+
+        final ConsulNameResolver r = PROVIDER.newNameResolver(
+                URI.create("consul://consul1:8500,consul2:8500/MyServiceName#grpc"),
+                Attributes.EMPTY
+        );
+        assertNotNull(r);
+        assertEquals("MyServiceName", r.getServiceAuthority());
+        assertEquals("grpc", r.getTag());
+    }
+
+    @Test
+    public void testParseQuery() {
+        assertTrue(ConsulNameResolverProvider.parseQuery(null).isEmpty());
+        assertEquals(
+                Lists.newArrayList("stale"),
+                ConsulNameResolverProvider.parseQuery("consistency=stale&max-stale=5s").get("consistency")
+        );
+        assertEquals(5000, ConsulNameResolverProvider.parseDurationMillis("5s"));
+        assertEquals(250, ConsulNameResolverProvider.parseDurationMillis("250ms"));
+        assertEquals(60000, ConsulNameResolverProvider.parseDurationMillis("1m"));
+
+        assertNotNull(PROVIDER.newNameResolver(
+                URI.create("consul:///MyServiceName?consistency=stale&max-stale=5s"),
+                Attributes.EMPTY
+        ));
+
+        for (final String invalid : Lists.newArrayList("consistency=eventual", "max-stale=5", "unknown=1", "consistency")) {
+            try {
+                PROVIDER.newNameResolver(URI.create("consul:///MyServiceName?" + invalid), Attributes.EMPTY);
+                fail("invalid parameter: " + invalid);
+            } catch (final IllegalArgumentException ignored) {}
+        }
+    }
+
+    @Test
+    public void testTagsAndFilter() {
+        final ConsulNameResolver r = PROVIDER.newNameResolver(
+                URI.create("consul:///MyServiceName?tag=canary&tag=v2&filter=ServiceMeta.version%3D%3D%222%22#grpc"),
+                Attributes.EMPTY
+        );
+        assertNotNull(r);
+        assertEquals("grpc", r.getTag());
+        assertEquals(Lists.newArrayList("grpc", "canary", "v2"), r.getTags());
+        assertEquals("ServiceMeta.version==\"2\"", r.getFilter());
+    }
+
+    @Test
+    public void testPreparedQuery() {
+        final ConsulNameResolver r = PROVIDER.newNameResolver(
+                URI.create("consul://localhost:8500/query/MyQueryName"),
+                Attributes.EMPTY
+        );
+        assertNotNull(r);
+        // the authority of the channel, as for a service name
+        assertEquals("MyQueryName", r.getServiceAuthority());
+        assertNull(r.getTag());
+
+        for (final String invalid : Lists.newArrayList("consul:///query/", "consul:///query/MyQueryName#grpc")) {
+            try {
+                PROVIDER.newNameResolver(URI.create(invalid), Attributes.EMPTY);
+                fail("invalid prepared query target: " + invalid);
+            } catch (final IllegalArgumentException ignored) {}
+        }
+    }
+}
@@ -1,16 +1,23 @@
 package com.indeed.grpc.consul;
 
+import com.ecwid.consul.v1.ConsistencyMode;
 import com.ecwid.consul.v1.QueryParams;
 import com.ecwid.consul.v1.Response;
 import com.ecwid.consul.v1.catalog.CatalogClient;
 import com.ecwid.consul.v1.catalog.model.CatalogService;
+import com.ecwid.consul.v1.health.HealthClient;
+import com.ecwid.consul.v1.health.model.Check;
+import com.ecwid.consul.v1.health.model.HealthService;
 import com.ecwid.consul.v1.kv.KeyValueClient;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.MoreExecutors;
 import io.grpc.Attributes;
 import io.grpc.EquivalentAddressGroup;
 import io.grpc.NameResolver;
 import io.grpc.Status;
 import mockit.Expectations;
 import mockit.Mocked;
+import mockit.Verifications;
 import mockit.integration.junit4.JMockit;
 import org.junit.Before;
 import org.junit.Test;
@@ -19,8 +26,11 @@ import org.junit.runner.RunWith;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
@@ -48,6 +58,9 @@ public class ConsulNameResolverTest {
     @Mocked
     private CatalogClient catalogClient;
 
+    @Mocked
+    private HealthClient healthClient;
+
     @Mocked
     private KeyValueClient keyValueClient;
 
@@ -146,6 +159,205 @@ public class ConsulNameResolverTest {
         }
     }
 
+    @Test
+    public void testStaleResolutionRetriedOnLeader() throws Exception {
+        final CatalogService service = new CatalogService();
+        service.setAddress("localhost");
+        service.setServicePort(8080);
+
+        final Response<List<CatalogService>> staleResponse = new Response<>(
+                Collections.singletonList(service), CONSUL_INDEX, CONSUL_KNOWN_LEADER, 5000L
+        );
+        final Response<List<CatalogService>> leaderResponse = composeResponse(Collections.singletonList(service));
+
+        resolver = new ConsulNameResolver(
+                Collections.singletonList(CatalogLookup.of(catalogClient, SERVICE_NAME, Optional.empty())),
+                keyValueClient,
+                SERVICE_NAME,
+                Collections.emptyList(),
+                null,
+                ConsistencyMode.STALE,
+                1000,
+                Executors.newSingleThreadScheduledExecutor(),
+                MoreExecutors.sameThreadExecutor(),
+                ResolveSchedule.fixed(2, TimeUnit.SECONDS),
+                new RequestHedger(MoreExecutors.sameThreadExecutor(), 0, 0),
+                ConsulRequestGovernor.getShared(),
+                null,
+                null,
+                SERVICE_NAME
+        );
+
+        new Expectations() {{
+            catalogClient.getCatalogService(SERVICE_NAME, (QueryParams) any);
+            returns(staleResponse, leaderResponse);
+        }};
+
+        final List<NameResolverEvent<?>> events = runTest(resolver, 1);
+        assertEquals(events.toString(), 1, events.size());
+        assertEquals(NameResolverEventType.ON_ADDRESSES, events.get(0).type);
+
+        new Verifications() {{
+            final List<QueryParams> queryParams = new ArrayList<>();
+            catalogClient.getCatalogService(SERVICE_NAME, withCapture(queryParams));
+            times = 2;
+
+            assertEquals(ConsistencyMode.STALE, queryParams.get(0).getConsistencyMode());
+            assertEquals(ConsistencyMode.DEFAULT, queryParams.get(1).getConsistencyMode());
+        }};
+    }
+
+    @Test
+    public void testFailingCheckDropsAddress() throws Exception {
+        final Response<List<HealthService>> passing = composeResponse(Lists.newArrayList(
+                newHealthService(8080, Check.CheckStatus.PASSING),
+                newHealthService(8081, Check.CheckStatus.PASSING)
+        ));
+        // draining, warming up or failing
+        final Response<List<HealthService>> failing = composeResponse(Lists.newArrayList(
+                newHealthService(8080, Check.CheckStatus.PASSING),
+                newHealthService(8081, Check.CheckStatus.CRITICAL)
+        ));
+
+        resolver = new ConsulNameResolver(
+                Collections.singletonList(CatalogLookup.passing(healthClient, SERVICE_NAME, Optional.empty())),
+                keyValueClient,
+                SERVICE_NAME,
+                Collections.emptyList(),
+                null,
+                ConsistencyMode.DEFAULT,
+                0,
+                Executors.newSingleThreadScheduledExecutor(),
+                MoreExecutors.sameThreadExecutor(),
+                ResolveSchedule.fixed(100, TimeUnit.MILLISECONDS),
+                new RequestHedger(MoreExecutors.sameThreadExecutor(), 0, 0),
+                ConsulRequestGovernor.getShared(),
+                null,
+                null,
+                SERVICE_NAME
+        );
+
+        new Expectations() {{
+            healthClient.getHealthServices(SERVICE_NAME, true, (QueryParams) any);
+            returns(passing, failing);
+        }};
+
+        final List<NameResolverEvent<?>> events = runTest(resolver, 1);
+        assertEquals(events.toString(), 2, events.size());
+        assertEquals(2, ((List<?>) events.get(0).payload).size());
+
+        final List<EquivalentAddressGroup> servers = (List<EquivalentAddressGroup>) events.get(1).payload;
+        assertEquals(1, servers.size());
+        assertEquals(8080, ((InetSocketAddress) servers.get(0).getAddresses().get(0)).getPort());
+    }
+
+    private static HealthService newHealthService(final int port, final Check.CheckStatus status) {
+        final HealthService.Node node = new HealthService.Node();
+        node.setNode("node1");
+        node.setAddress("localhost");
+
+        final HealthService.Service service = new HealthService.Service();
+        service.setId(SERVICE_NAME + "-" + port);
+        service.setService(SERVICE_NAME);
+        service.setPort(port);
+
+        final Check check = new Check();
+        check.setCheckId("service:" + service.getId());
+        check.setStatus(status);
+
+        final HealthService healthService = new HealthService();
+        healthService.setNode(node);
+        healthService.setService(service);
+        healthService.setChecks(Collections.singletonList(check));
+        return healthService;
+    }
+
+    @Test
+    public void testShutdownDuringResolution() throws Exception {
+        final CatalogService service = new CatalogService();
+        service.setAddress("localhost");
+        service.setServicePort(8080);
+
+        final CountDownLatch lookupStarted = new CountDownLatch(1);
+        final CountDownLatch lookupReleased = new CountDownLatch(1);
+        final CatalogLookup blockingLookup = (queryParams) -> {
+            lookupStarted.countDown();
+            try {
+                lookupReleased.await();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return composeResponse(Collections.singletonList(service));
+        };
+
+        final ExecutorService ioExecutor = Executors.newSingleThreadExecutor();
+        try {
+            resolver = new ConsulNameResolver(
+                    Collections.singletonList(blockingLookup),
+                    keyValueClient,
+                    SERVICE_NAME,
+                    Collections.emptyList(),
+                    null,
+                    ConsistencyMode.DEFAULT,
+                    0,
+                    Executors.newSingleThreadScheduledExecutor(),
+                    ioExecutor,
+                    ResolveSchedule.fixed(2, TimeUnit.SECONDS),
+                    new RequestHedger(MoreExecutors.sameThreadExecutor(), 0, 0),
+                    ConsulRequestGovernor.getShared(),
+                    null,
+                    null,
+                    SERVICE_NAME
+            );
+
+            final List<NameResolverEvent<?>> events = new ArrayList<>();
+            resolver.start(new NameResolver.Listener() {
+                @Override
+                public void onAddresses(final List<EquivalentAddressGroup> list, final Attributes attributes) {
+                    events.add(new NameResolverEvent<>(NameResolverEventType.ON_ADDRESSES, list));
+                }
+
+                @Override
+                public void onError(final Status status) {
+                    events.add(new NameResolverEvent<>(NameResolverEventType.ON_ERROR, status));
+                }
+            });
+
+            assertTrue(lookupStarted.await(5, TimeUnit.SECONDS));
+
+            // returns while the lookup is still blocked
+            resolver.shutdown();
+            lookupReleased.countDown();
+
+            ioExecutor.shutdown();
+            assertTrue(ioExecutor.awaitTermination(5, TimeUnit.SECONDS));
+            assertTrue(events.toString(), events.isEmpty());
+        } finally {
+            lookupReleased.countDown();
+            ioExecutor.shutdownNow();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testStartTwice() {
+        final NameResolver.Listener listener = new NameResolver.Listener() {
+            @Override
+            public void onAddresses(final List<EquivalentAddressGroup> list, final Attributes attributes) {
+            }
+
+            @Override
+            public void onError(final Status status) {
+            }
+        };
+
+        try {
+            resolver.start(listener);
+            resolver.start(listener);
+        } finally {
+            resolver.shutdown();
+        }
+    }
+
     private static List<NameResolverEvent<?>> runTest(
             final NameResolver resolver,
             final int sleepSeconds
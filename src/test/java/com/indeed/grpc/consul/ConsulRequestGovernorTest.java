@@ -0,0 +1,100 @@
+package com.indeed.grpc.consul;
+
+import com.indeed.grpc.consul.ConsulRequestGovernor.Priority;
+import com.indeed.util.varexport.VarExporter;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ */
+public class ConsulRequestGovernorTest {
+    @Test
+    public void testBurst() throws InterruptedException {
+        final ConsulRequestGovernor governor = new ConsulRequestGovernor(1, 5);
+
+        final long start = System.nanoTime();
+        for (int i = 0; i < 5; i++) {
+            governor.acquire(Priority.LOW);
+        }
+
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+        assertEquals(5, governor.getAcquiredCount(Priority.LOW));
+        assertEquals(0, governor.getAcquiredCount(Priority.HIGH));
+    }
+
+    @Test
+    public void testRateLimited() throws InterruptedException {
+        final ConsulRequestGovernor governor = new ConsulRequestGovernor(10, 1);
+
+        final long start = System.nanoTime();
+        for (int i = 0; i < 4; i++) {
+            governor.acquire(Priority.HIGH);
+        }
+
+        // the first permit is free, the next three take 100ms each
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(250));
+        assertTrue(governor.getQueueingDelayNanos(Priority.HIGH) >= TimeUnit.MILLISECONDS.toNanos(250));
+        assertTrue(governor.getAverageQueueingDelayMillis(Priority.HIGH) > 0);
+    }
+
+    @Test
+    public void testHighPriorityFirst() throws InterruptedException {
+        final ConsulRequestGovernor governor = new ConsulRequestGovernor(2, 1);
+        governor.acquire(Priority.LOW);
+
+        final List<Priority> order = new CopyOnWriteArrayList<>();
+        final Thread low = new Thread(() -> {
+            governor.acquireUninterruptibly(Priority.LOW);
+            order.add(Priority.LOW);
+        });
+        final Thread high = new Thread(() -> {
+            governor.acquireUninterruptibly(Priority.HIGH);
+            order.add(Priority.HIGH);
+        });
+
+        low.start();
+        while (governor.getQueueLength(Priority.LOW) == 0) {
+            Thread.sleep(1);
+        }
+
+        high.start();
+        while (governor.getQueueLength(Priority.HIGH) == 0 && order.isEmpty()) {
+            Thread.sleep(1);
+        }
+
+        low.join();
+        high.join();
+
+        assertEquals(2, order.size());
+        assertEquals(Priority.HIGH, order.get(0));
+        assertEquals(Priority.LOW, order.get(1));
+    }
+
+    @Test
+    public void testExported() throws InterruptedException {
+        final ConsulRequestGovernor governor = new ConsulRequestGovernor(10, 1);
+        final VarExporter exporter = VarExporter.forNamespace("ConsulRequestGovernorTest");
+        exporter.export(governor, "");
+
+        governor.acquire(Priority.HIGH);
+        governor.acquire(Priority.HIGH);
+
+        assertEquals(Integer.valueOf(0), exporter.getValue("high-priority-queue-length"));
+        assertEquals(Integer.valueOf(0), exporter.getValue("low-priority-queue-length"));
+        assertTrue(exporter.<Double>getValue("high-priority-queueing-delay-millis") > 0);
+        assertEquals(Double.valueOf(0), exporter.getValue("low-priority-queueing-delay-millis"));
+
+        ConsulRequestGovernor.getShared();
+        assertEquals(
+                Integer.valueOf(0),
+                VarExporter.forNamespace("ConsulRequestGovernor").getValue("high-priority-queue-length")
+        );
+    }
+}
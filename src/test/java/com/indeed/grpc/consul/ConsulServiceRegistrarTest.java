@@ -1,28 +1,48 @@
 package com.indeed.grpc.consul;
 
+import com.ecwid.consul.UrlParameters;
+import com.ecwid.consul.transport.RawResponse;
+import com.ecwid.consul.v1.ConsulRawClient;
+import com.ecwid.consul.v1.Response;
 import com.ecwid.consul.v1.agent.AgentClient;
 import com.ecwid.consul.v1.agent.model.NewService;
+import com.ecwid.consul.v1.agent.model.Service;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
+import com.indeed.grpc.ServerLoad;
+import io.grpc.Server;
+import mockit.Delegate;
 import mockit.Expectations;
 import mockit.Mocked;
+import mockit.Verifications;
+import mockit.VerificationsInOrder;
 import mockit.integration.junit4.JMockit;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static com.indeed.grpc.UtilsForTesting.expectNullPointerException;
 import static com.indeed.grpc.consul.ConsulServiceRegistrar.computeId;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  *
@@ -95,6 +115,19 @@ public class ConsulServiceRegistrarTest {
         assertEquals("service1:7538edebdd7fd1db", id);
     }
 
+    @Test
+    public void testRegistrationIsCached() {
+        final ServiceRegistration registration = registrar.getRegistration("service1", "localhost", 8080);
+
+        assertEquals("service1:7538edebdd7fd1db", registration.getId());
+        assertEquals("service:service1:7538edebdd7fd1db", registration.getCheckId());
+        assertEquals(Lists.newArrayList("tag1", "tag2"), registration.getTags());
+        assertTrue(registration.getPayload().contains("\"ID\":\"service1:7538edebdd7fd1db\""));
+
+        assertSame(registration, registrar.getRegistration("service1", "localhost", 8080));
+        assertNotSame(registration, registrar.getRegistration("service1", "localhost", 8081));
+    }
+
     @Test
     public void testRegisterServices() throws InterruptedException, IOException {
         final List<String> serviceNames = Lists.newArrayList(
@@ -151,4 +184,524 @@ public class ConsulServiceRegistrarTest {
 
         registrar.close();
     }
+
+    @Test
+    public void testShutdownGracefully(@Mocked final Server server) throws InterruptedException, IOException {
+        registrar = registrarBuilder
+                .withDrainPeriod(2)
+                .withDrainPeriodTimeUnit(TimeUnit.SECONDS)
+                .build();
+
+        new Expectations() {{
+            server.awaitTermination(anyLong, (TimeUnit) any);
+            result = true;
+        }};
+
+        registrar.registerServices("localhost", 8080, Lists.newArrayList("service3").stream());
+        assertTrue(registrar.shutdownGracefully(server, 1, TimeUnit.SECONDS));
+
+        new VerificationsInOrder() {{
+            agentClient.agentServiceRegister((NewService) any, withNull());
+            agentClient.agentCheckFail("service:" + computeId("localhost", 8080, "service3"), anyString, withNull());
+            server.shutdown();
+            server.awaitTermination(1, TimeUnit.SECONDS);
+            agentClient.agentServiceDeregister(anyString, withNull());
+        }};
+
+        // heartbeats stop once draining
+        new Verifications() {{
+            agentClient.agentCheckPass(anyString, withNull());
+            maxTimes = 0;
+        }};
+    }
+
+    @Test
+    public void testDrainWaitsForHeartbeatInFlight() throws InterruptedException, IOException {
+        final CountDownLatch heartbeatStarted = new CountDownLatch(1);
+        final CountDownLatch heartbeatReleased = new CountDownLatch(1);
+        registrar = registrarBuilder
+                .withLoadReporter(() -> {
+                    heartbeatStarted.countDown();
+                    try {
+                        heartbeatReleased.await();
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return new ServerLoad(10, 2, 0.5);
+                })
+                .build();
+        final String checkId = "service:" + computeId("localhost", 8080, "service3");
+
+        registrar.registerService("service3", "localhost", 8080);
+        assertTrue(heartbeatStarted.await(5, TimeUnit.SECONDS));
+
+        final Thread drain = new Thread(registrar::drain);
+        drain.start();
+        drain.join(200);
+        // the drain must not be overwritten by the heartbeat in flight
+        assertTrue(drain.isAlive());
+
+        heartbeatReleased.countDown();
+        drain.join(TimeUnit.SECONDS.toMillis(5));
+        assertFalse(drain.isAlive());
+        registrar.close();
+
+        new VerificationsInOrder() {{
+            agentClient.agentCheckPass(checkId, anyString, withNull());
+            agentClient.agentCheckFail(checkId, anyString, withNull());
+        }};
+        new Verifications() {{
+            agentClient.agentCheckPass(checkId, anyString, withNull());
+            times = 1;
+        }};
+    }
+
+    @Test
+    public void testDrainInMaintenanceWithToken(@Mocked final ConsulRawClient consulRawClient) throws IOException {
+        registrar = registrarBuilder
+                .withDrainMode(ConsulServiceRegistrar.DrainMode.MAINTENANCE)
+                .withConsulToken("my-token")
+                .withConsulRawClient(consulRawClient)
+                .build();
+        final String path = "/v1/agent/service/maintenance/" + computeId("localhost", 8080, "service3");
+
+        new Expectations() {{
+            consulRawClient.makePutRequest(anyString, anyString, (UrlParameters[]) any);
+            result = new RawResponse(200, "OK", "", null, null, null);
+        }};
+
+        registrar.registerService("service3", "localhost", 8080);
+        registrar.drain();
+
+        new Verifications() {{
+            final List<UrlParameters[]> parameters = new ArrayList<>();
+            consulRawClient.makePutRequest(path, "", withCapture(parameters));
+            times = 1;
+            assertTrue(parameters.get(0)[2].toUrlParameters().contains("token=my-token"));
+
+            agentClient.agentServiceSetMaintenance(anyString, anyBoolean, anyString);
+            times = 0;
+        }};
+        registrar.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDrainInMaintenanceWithTokenWithoutRawClient() {
+        registrarBuilder
+                .withDrainMode(ConsulServiceRegistrar.DrainMode.MAINTENANCE)
+                .withConsulToken("my-token")
+                .build();
+    }
+
+    @Test
+    public void testHeartbeatWithLoadReport() throws InterruptedException, IOException {
+        final ServerLoad load = new ServerLoad(10, 2, 0.5);
+        registrar = registrarBuilder
+                .withLoadReporter(() -> load)
+                .build();
+
+        new Expectations() {{
+            agentClient.agentCheckPass(anyString, "inflight=10 queue=2 cpu=0.50", withNull());
+            minTimes = 1;
+            maxTimes = 5;
+        }};
+
+        registrar.registerServices("localhost", 8080, Lists.newArrayList("service3").stream());
+
+        Thread.sleep(TimeUnit.SECONDS.toMillis(3));
+
+        registrar.close();
+
+        new Verifications() {{
+            agentClient.agentCheckPass(anyString, withNull());
+            maxTimes = 0;
+        }};
+    }
+
+    @Test
+    public void testLoadReportPerService() throws InterruptedException, IOException {
+        final AtomicReference<ServerLoad> load = new AtomicReference<>(new ServerLoad(10, 2, 0.5));
+        registrar = registrarBuilder
+                .withLoadReporter(load::get)
+                .build();
+        final String firstCheckId = "service:" + computeId("localhost", 8080, "service3");
+        final String secondCheckId = "service:" + computeId("localhost", 8081, "service3");
+
+        registrar.registerService("service3", "localhost", 8080);
+        Thread.sleep(1500);
+
+        // not a significant change for the first service, but the first load of the second one
+        load.set(new ServerLoad(11, 2, 0.5));
+        registrar.registerService("service3", "localhost", 8081);
+        Thread.sleep(1500);
+        registrar.close();
+
+        new Verifications() {{
+            agentClient.agentCheckPass(firstCheckId, "inflight=10 queue=2 cpu=0.50", withNull());
+            minTimes = 1;
+            agentClient.agentCheckPass(firstCheckId, "inflight=11 queue=2 cpu=0.50", withNull());
+            times = 0;
+            agentClient.agentCheckPass(secondCheckId, "inflight=11 queue=2 cpu=0.50", withNull());
+            minTimes = 1;
+        }};
+    }
+
+    @Test
+    public void testReadiness() throws InterruptedException, IOException {
+        final CompletableFuture<Void> readiness = new CompletableFuture<>();
+        registrar = registrarBuilder
+                .withReadiness(readiness)
+                .withWarmUpStatus(ConsulServiceRegistrar.WarmUpStatus.WARNING)
+                .build();
+        final String checkId = "service:" + computeId("localhost", 8080, "service3");
+
+        registrar.registerServices("localhost", 8080, Lists.newArrayList("service3").stream());
+        Thread.sleep(1500);
+
+        new Verifications() {{
+            final NewService service;
+            agentClient.agentServiceRegister(service = withCapture(), withNull());
+            assertEquals("warning", service.getChecks().get(0).getStatus());
+
+            agentClient.agentCheckWarn(checkId, "warming up", withNull());
+            minTimes = 1;
+
+            agentClient.agentCheckPass(anyString, withNull());
+            maxTimes = 0;
+        }};
+
+        // brought into rotation right away, not on the next heartbeat
+        readiness.complete(null);
+        Thread.sleep(200);
+
+        new Verifications() {{
+            agentClient.agentCheckPass(checkId, withNull());
+            minTimes = 1;
+        }};
+
+        // registered again without the warm-up status once ready
+        assertFalse(registrar.getRegistration("service3", "localhost", 8080).isWarmingUp());
+        registrar.close();
+    }
+
+    @Test
+    public void testReadinessWithoutTtlCheckWithToken(@Mocked final ConsulRawClient consulRawClient) throws IOException {
+        final CompletableFuture<Void> readiness = new CompletableFuture<>();
+        registrar = registrarBuilder
+                .withChecks(new ArrayList<>())
+                .withReadiness(readiness)
+                .withConsulToken("my-token")
+                .withConsulRawClient(consulRawClient)
+                .build();
+        final String path = "/v1/agent/service/maintenance/" + computeId("localhost", 8080, "service3");
+
+        new Expectations() {{
+            consulRawClient.makePutRequest(anyString, anyString, (UrlParameters[]) any);
+            result = new RawResponse(200, "OK", "", null, null, null);
+        }};
+
+        registrar.registerService("service3", "localhost", 8080);
+
+        new Verifications() {{
+            final List<UrlParameters[]> parameters = new ArrayList<>();
+            consulRawClient.makePutRequest(path, "", withCapture(parameters));
+            times = 1;
+
+            final List<String> query = new ArrayList<>();
+            for (final UrlParameters parameter : parameters.get(0)) {
+                if (parameter != null) {
+                    query.addAll(parameter.toUrlParameters());
+                }
+            }
+            assertEquals(Lists.newArrayList("enable=true", "reason=warming+up", "token=my-token"), query);
+
+            agentClient.agentServiceSetMaintenance(anyString, anyBoolean, anyString);
+            times = 0;
+        }};
+        registrar.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReadinessWithoutTtlCheckWithTokenWithoutRawClient() {
+        registrarBuilder
+                .withChecks(new ArrayList<>())
+                .withReadiness(new CompletableFuture<>())
+                .withConsulToken("my-token")
+                .build();
+    }
+
+    @Test
+    public void testReadinessWithoutTtlCheckFailedMaintenance() throws IOException {
+        registrar = registrarBuilder
+                .withChecks(new ArrayList<>())
+                .withReadiness(new CompletableFuture<>())
+                .build();
+        final String id = computeId("localhost", 8080, "service3");
+
+        new Expectations() {{
+            agentClient.agentServiceSetMaintenance(id, true, anyString);
+            result = new IllegalStateException("agent unavailable");
+        }};
+
+        try {
+            registrar.registerService("service3", "localhost", 8080);
+            fail("the failure to put the service into maintenance mode must be thrown");
+        } catch (final IllegalStateException e) {
+            assertEquals("agent unavailable", e.getMessage());
+        }
+
+        // not left in rotation, nor tracked as registered
+        new Verifications() {{
+            agentClient.agentServiceDeregister(id, withNull());
+            times = 1;
+        }};
+        try {
+            registrar.registerService("service3", "localhost", 8080);
+        } catch (final IllegalStateException e) {
+            // expected again
+        }
+        new Verifications() {{
+            agentClient.agentServiceRegister((NewService) any, withNull());
+            times = 2;
+        }};
+        registrar.close();
+    }
+
+    @Test
+    public void testSlowStart() throws InterruptedException, IOException {
+        registrar = registrarBuilder
+                .withSlowStart(0.5, 1, TimeUnit.HOURS)
+                .build();
+
+        new Expectations() {{
+            agentClient.agentCheckPass(anyString, "weight=0.50", withNull());
+            minTimes = 1;
+            maxTimes = 5;
+        }};
+
+        registrar.registerServices("localhost", 8080, Lists.newArrayList("service3").stream());
+        Thread.sleep(TimeUnit.SECONDS.toMillis(3));
+        registrar.close();
+    }
+
+    @Test
+    public void testComputeSlowStartWeight() {
+        final long period = TimeUnit.MINUTES.toNanos(10);
+
+        assertEquals(0.1, ConsulServiceRegistrar.computeSlowStartWeight(0, period, 0.1), 0);
+        assertEquals(0.5, ConsulServiceRegistrar.computeSlowStartWeight(period / 2, period, 0.1), 1e-9);
+        // rounded down to a tenth, never below the initial weight
+        assertEquals(0.5, ConsulServiceRegistrar.computeSlowStartWeight(period / 2 + 1000, period, 0.1), 1e-9);
+        assertEquals(0.25, ConsulServiceRegistrar.computeSlowStartWeight(1000, period, 0.25), 0);
+        assertEquals(1, ConsulServiceRegistrar.computeSlowStartWeight(period, period, 0.1), 0);
+        assertEquals(1, ConsulServiceRegistrar.computeSlowStartWeight(0, 0, 0.1), 0);
+    }
+
+    @Test
+    public void testRegisterUnchangedService() throws IOException {
+        registrar.registerService("service3", "localhost", 8080);
+        registrar.registerService("service3", "localhost", 8080);
+        // another port is another service
+        registrar.registerService("service3", "localhost", 8081);
+
+        new Verifications() {{
+            agentClient.agentServiceRegister((NewService) any, withNull());
+            times = 2;
+        }};
+
+        // registered again once deregistered
+        registrar.deregisterService(computeId("localhost", 8080, "service3"));
+        registrar.registerService("service3", "localhost", 8080);
+
+        new Verifications() {{
+            agentClient.agentServiceRegister((NewService) any, withNull());
+            times = 3;
+        }};
+        registrar.close();
+    }
+
+    @Test
+    public void testRegisterAgainAfterFailure() throws InterruptedException, IOException {
+        final String checkId = "service:" + computeId("localhost", 8080, "service3");
+        final CountDownLatch heartbeatFailed = new CountDownLatch(1);
+
+        new Expectations() {{
+            agentClient.agentServiceRegister((NewService) any, withNull());
+            result = new RuntimeException("agent unavailable");
+            result = null;
+
+            agentClient.agentCheckPass(checkId, withNull());
+            result = new Delegate<Void>() {
+                @SuppressWarnings("unused")
+                void agentCheckPass(final String checkId, final String token) {
+                    heartbeatFailed.countDown();
+                    throw new RuntimeException("agent restarted");
+                }
+            };
+        }};
+
+        // a failed registration is not skipped the next time
+        try {
+            registrar.registerService("service3", "localhost", 8080);
+            fail("Expected the registration to fail");
+        } catch (final RuntimeException ignored) {}
+        registrar.registerService("service3", "localhost", 8080);
+
+        // nor is a registration whose heartbeat failed
+        assertTrue(heartbeatFailed.await(5, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        registrar.registerService("service3", "localhost", 8080);
+        registrar.close();
+
+        new Verifications() {{
+            agentClient.agentServiceRegister((NewService) any, withNull());
+            times = 3;
+        }};
+    }
+
+    @Test
+    public void testReconcile() throws IOException {
+        final String id = computeId("localhost", 8080, "service3");
+        final String deregisteredId = computeId("localhost", 8082, "service3");
+        final Map<String, Service> agentServices = new HashMap<>();
+        // drifted: a tag was removed from the agent
+        agentServices.put(id, newService(id, "service3", "localhost", 8080, "tag1"));
+        // deregistered by this registrar, but still in the agent
+        agentServices.put(deregisteredId, newService(deregisteredId, "service3", "localhost", 8082));
+        // live replicas registered by other processes
+        final String siblingId = computeId("localhost", 8081, "service3");
+        agentServices.put(siblingId, newService(siblingId, "service3", "localhost", 8081));
+        agentServices.put("service3-sidecar", newService("service3-sidecar", "service3", "localhost", 8083));
+
+        new Expectations() {{
+            agentClient.getAgentServices();
+            result = new Response<>(agentServices, 1L, true, 0L);
+        }};
+
+        registrar.registerService("service3", "localhost", 8080);
+        registrar.registerService("service3", "localhost", 8082);
+        registrar.deregisterService(deregisteredId);
+        assertEquals(2, registrar.reconcile());
+
+        new Verifications() {{
+            agentClient.agentServiceRegister((NewService) any, withNull());
+            times = 3;
+
+            agentClient.agentServiceDeregister(deregisteredId, withNull());
+            times = 2;
+            agentClient.agentServiceDeregister(siblingId, withNull());
+            times = 0;
+            agentClient.agentServiceDeregister("service3-sidecar", withNull());
+            times = 0;
+        }};
+
+        // nothing to do once converged
+        agentServices.put(id, newService(id, "service3", "localhost", 8080, "tag2", "tag1"));
+        agentServices.remove(deregisteredId);
+        assertEquals(0, registrar.reconcile());
+
+        // nothing is written once closed
+        agentServices.remove(id);
+        registrar.close();
+        assertEquals(0, registrar.reconcile());
+    }
+
+    @Test
+    public void testReconcileWhileWarmingUp() throws IOException {
+        registrar = registrarBuilder
+                .withChecks(new ArrayList<>())
+                .withReadiness(new CompletableFuture<>())
+                .build();
+        final String id = computeId("localhost", 8080, "service3");
+
+        new Expectations() {{
+            agentClient.getAgentServices();
+            result = new Response<>(Collections.<String, Service>emptyMap(), 1L, true, 0L);
+        }};
+
+        registrar.registerService("service3", "localhost", 8080);
+        assertEquals(1, registrar.reconcile());
+
+        // registered again, still out of rotation
+        new VerificationsInOrder() {{
+            agentClient.agentServiceRegister((NewService) any, withNull());
+            agentClient.agentServiceSetMaintenance(id, true, "warming up");
+            agentClient.agentServiceRegister((NewService) any, withNull());
+            agentClient.agentServiceSetMaintenance(id, true, "warming up");
+        }};
+        registrar.close();
+    }
+
+    @Test
+    public void testReconcileWhileDraining() throws IOException {
+        final String checkId = "service:" + computeId("localhost", 8080, "service3");
+
+        new Expectations() {{
+            agentClient.getAgentServices();
+            result = new Response<>(Collections.<String, Service>emptyMap(), 1L, true, 0L);
+        }};
+
+        registrar.registerService("service3", "localhost", 8080);
+
+        // the drain starts while the reconciliation registers the service again
+        new Expectations() {{
+            agentClient.agentServiceRegister((NewService) any, withNull());
+            result = new Delegate<Void>() {
+                @SuppressWarnings("unused")
+                void agentServiceRegister(final NewService newService, final String token) {
+                    registrar.drain();
+                }
+            };
+        }};
+        assertEquals(1, registrar.reconcile());
+        registrar.close();
+
+        // the second drain covers the service registered again
+        new VerificationsInOrder() {{
+            agentClient.agentCheckFail(checkId, "draining", withNull());
+            agentClient.agentCheckFail(checkId, "draining", withNull());
+        }};
+        new Verifications() {{
+            agentClient.agentCheckPass(checkId, withNull());
+            times = 0;
+        }};
+    }
+
+    @Test
+    public void testReconcilePeriodically() throws InterruptedException, IOException {
+        registrar = registrarBuilder
+                .withReconcilePeriod(100, TimeUnit.MILLISECONDS)
+                .build();
+
+        new Expectations() {{
+            agentClient.getAgentServices();
+            result = new Response<>(Collections.<String, Service>emptyMap(), 1L, true, 0L);
+        }};
+
+        registrar.registerService("service3", "localhost", 8080);
+        Thread.sleep(500);
+        registrar.close();
+
+        // the missing service is registered again
+        new Verifications() {{
+            agentClient.agentServiceRegister((NewService) any, withNull());
+            minTimes = 2;
+        }};
+    }
+
+    private static Service newService(
+            final String id,
+            final String name,
+            final String address,
+            final int port,
+            final String... tags
+    ) {
+        final Service service = new Service();
+        service.setId(id);
+        service.setService(name);
+        service.setAddress(address);
+        service.setPort(port);
+        service.setTags(Lists.newArrayList(tags));
+        return service;
+    }
 }
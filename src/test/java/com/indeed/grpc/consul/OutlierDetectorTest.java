@@ -0,0 +1,318 @@
+package com.indeed.grpc.consul;
+
+import com.google.common.base.Ticker;
+import com.indeed.grpc.UtilsForTesting;
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptors;
+import io.grpc.EquivalentAddressGroup;
+import io.grpc.LoadBalancer;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ */
+public class OutlierDetectorTest {
+    private static final MethodDescriptor.Marshaller<String> MARSHALLER = new MethodDescriptor.Marshaller<String>() {
+        @Override
+        public InputStream stream(final String value) {
+            return new ByteArrayInputStream(value.getBytes());
+        }
+
+        @Override
+        public String parse(final InputStream stream) {
+            return "";
+        }
+    };
+
+    private static final MethodDescriptor<String, String> METHOD = MethodDescriptor.<String, String>newBuilder()
+            .setType(MethodDescriptor.MethodType.UNARY)
+            .setFullMethodName(MethodDescriptor.generateFullMethodName("test.MyService", "MyMethod"))
+            .setRequestMarshaller(MARSHALLER)
+            .setResponseMarshaller(MARSHALLER)
+            .build();
+
+    private final AtomicLong now = new AtomicLong(0);
+
+    private OutlierDetector detector;
+
+    @Before
+    public void setup() {
+        detector = OutlierDetector.newBuilder()
+                .withTimerService(Executors.newSingleThreadScheduledExecutor())
+                .withTicker(new Ticker() {
+                    @Override
+                    public long read() {
+                        return now.get();
+                    }
+                })
+                // evaluation is driven manually by the tests
+                .withInterval(1, TimeUnit.DAYS)
+                .withMinimumRequests(10)
+                .withFailureRateThreshold(0.5)
+                .withLatencyFactor(3)
+                .withEjectionTime(10, 60, TimeUnit.SECONDS)
+                .withMaxEjectionPercent(50)
+                .build();
+    }
+
+    @After
+    public void teardown() {
+        detector.close();
+    }
+
+    @Test
+    public void testFailureRateEjection() {
+        final List<EquivalentAddressGroup> servers = servers(4);
+        final SocketAddress bad = servers.get(0).getAddresses().get(0);
+
+        final AtomicInteger notifications = new AtomicInteger();
+        detector.addListener(notifications::incrementAndGet);
+
+        recordAll(servers, 20, 1);
+        record(bad, false, 30, 1);
+        detector.evaluate();
+
+        assertTrue(detector.isEjected(bad));
+        assertEquals(1, notifications.get());
+
+        final List<EquivalentAddressGroup> filtered = detector.filter(servers);
+        assertEquals(3, filtered.size());
+        assertFalse(filtered.contains(servers.get(0)));
+
+        // not yet expired
+        now.addAndGet(TimeUnit.SECONDS.toNanos(9));
+        detector.evaluate();
+        assertTrue(detector.isEjected(bad));
+        assertEquals(1, notifications.get());
+
+        now.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        detector.evaluate();
+        assertFalse(detector.isEjected(bad));
+        assertEquals(2, notifications.get());
+        assertSame(servers, detector.filter(servers));
+    }
+
+    @Test
+    public void testLatencyEjection() {
+        final List<EquivalentAddressGroup> servers = servers(4);
+        final SocketAddress slow = servers.get(3).getAddresses().get(0);
+
+        recordAll(servers, 20, TimeUnit.MILLISECONDS.toNanos(5));
+        record(slow, true, 20, TimeUnit.MILLISECONDS.toNanos(100));
+        detector.evaluate();
+
+        assertTrue(detector.isEjected(slow));
+        assertEquals(3, detector.filter(servers).size());
+    }
+
+    @Test
+    public void testMinimumRequests() {
+        final List<EquivalentAddressGroup> servers = servers(4);
+        final SocketAddress bad = servers.get(0).getAddresses().get(0);
+
+        record(bad, false, 9, 1);
+        detector.evaluate();
+
+        assertFalse(detector.isEjected(bad));
+    }
+
+    @Test
+    public void testEjectionCap() {
+        final List<EquivalentAddressGroup> servers = servers(4);
+        recordAll(servers, 20, 1);
+        for (final EquivalentAddressGroup server : servers) {
+            record(server.getAddresses().get(0), false, 40, 1);
+        }
+        detector.evaluate();
+
+        // every address is an outlier, but only half of them may be ejected
+        assertEquals(2, detector.filter(servers).size());
+    }
+
+    @Test
+    public void testRepeatedEjectionBacksOff() {
+        final List<EquivalentAddressGroup> servers = servers(4);
+        final SocketAddress bad = servers.get(0).getAddresses().get(0);
+
+        record(bad, false, 20, 1);
+        detector.evaluate();
+        assertTrue(detector.isEjected(bad));
+
+        now.addAndGet(TimeUnit.SECONDS.toNanos(10));
+        detector.evaluate();
+        assertFalse(detector.isEjected(bad));
+
+        record(bad, false, 20, 1);
+        detector.evaluate();
+        assertTrue(detector.isEjected(bad));
+
+        // second ejection lasts twice as long
+        now.addAndGet(TimeUnit.SECONDS.toNanos(10));
+        detector.evaluate();
+        assertTrue(detector.isEjected(bad));
+
+        now.addAndGet(TimeUnit.SECONDS.toNanos(10));
+        detector.evaluate();
+        assertFalse(detector.isEjected(bad));
+    }
+
+    @Test
+    public void testIdleAddressesDecay() {
+        final List<EquivalentAddressGroup> servers = servers(4);
+        final SocketAddress bad = servers.get(0).getAddresses().get(0);
+
+        record(bad, false, 20, 1);
+        detector.evaluate();
+        assertTrue(detector.isEjected(bad));
+
+        // the address left resolution, nothing is sent to it anymore
+        now.addAndGet(TimeUnit.SECONDS.toNanos(10));
+        detector.evaluate();
+        assertFalse(detector.isEjected(bad));
+        assertTrue(detector.isTracked(bad));
+
+        detector.evaluate();
+        detector.evaluate();
+        assertFalse(detector.isTracked(bad));
+
+        // when it comes back, it starts over with the base ejection time
+        record(bad, false, 20, 1);
+        detector.evaluate();
+        assertTrue(detector.isEjected(bad));
+
+        now.addAndGet(TimeUnit.SECONDS.toNanos(10));
+        detector.evaluate();
+        assertFalse(detector.isEjected(bad));
+    }
+
+    @Test
+    public void testInterceptor() {
+        final List<EquivalentAddressGroup> servers = servers(1);
+        final SocketAddress bad = servers.get(0).getAddresses().get(0);
+
+        final Channel failing = ClientInterceptors.intercept(
+                new PickingChannel(UtilsForTesting.newTrackingPicker(servers.get(0)), Status.UNAVAILABLE),
+                detector.newClientInterceptor()
+        );
+        final Channel cancelled = ClientInterceptors.intercept(
+                new PickingChannel(UtilsForTesting.newTrackingPicker(servers.get(0)), Status.CANCELLED),
+                detector.newClientInterceptor()
+        );
+        for (int i = 0; i < 10; i++) {
+            failing.newCall(METHOD, CallOptions.DEFAULT).start(new ClientCall.Listener<String>() {}, new Metadata());
+            cancelled.newCall(METHOD, CallOptions.DEFAULT).start(new ClientCall.Listener<String>() {}, new Metadata());
+        }
+        detector.evaluate();
+
+        // cancelled calls don't dilute the failure rate
+        assertTrue(detector.isEjected(bad));
+    }
+
+    @Test
+    public void testInterceptorWithoutTracking() {
+        final List<EquivalentAddressGroup> servers = servers(1);
+        final Channel channel = ClientInterceptors.intercept(
+                new PickingChannel(null, Status.UNAVAILABLE),
+                detector.newClientInterceptor()
+        );
+        for (int i = 0; i < 10; i++) {
+            channel.newCall(METHOD, CallOptions.DEFAULT).start(new ClientCall.Listener<String>() {}, new Metadata());
+        }
+        detector.evaluate();
+
+        assertFalse(detector.isEjected(servers.get(0).getAddresses().get(0)));
+    }
+
+    private void recordAll(final List<EquivalentAddressGroup> servers, final int count, final long latencyNanos) {
+        for (final EquivalentAddressGroup server : servers) {
+            record(server.getAddresses().get(0), true, count, latencyNanos);
+        }
+    }
+
+    private void record(final SocketAddress address, final boolean success, final int count, final long latencyNanos) {
+        for (int i = 0; i < count; i++) {
+            detector.record(address, success, latencyNanos);
+        }
+    }
+
+    private static List<EquivalentAddressGroup> servers(final int count) {
+        final List<EquivalentAddressGroup> servers = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            servers.add(new EquivalentAddressGroup(InetSocketAddress.createUnresolved("localhost", 8080 + i)));
+        }
+        return servers;
+    }
+
+    /**
+     * Picks a subchannel for every call, like a channel would, then closes
+     * the call with a fixed status.
+     */
+    private static final class PickingChannel extends Channel {
+        @Nullable
+        private final LoadBalancer.SubchannelPicker picker;
+        private final Status status;
+
+        private PickingChannel(@Nullable final LoadBalancer.SubchannelPicker picker, final Status status) {
+            this.picker = picker;
+            this.status = status;
+        }
+
+        @Override
+        public <ReqT, RespT> ClientCall<ReqT, RespT> newCall(
+                final MethodDescriptor<ReqT, RespT> methodDescriptor,
+                final CallOptions callOptions
+        ) {
+            if (picker != null) {
+                UtilsForTesting.pick(picker, methodDescriptor, callOptions);
+            }
+
+            return new ClientCall<ReqT, RespT>() {
+                @Override
+                public void start(final Listener<RespT> responseListener, final Metadata headers) {
+                    responseListener.onClose(status, new Metadata());
+                }
+
+                @Override
+                public void request(final int numMessages) {}
+
+                @Override
+                public void cancel(@Nullable final String message, @Nullable final Throwable cause) {}
+
+                @Override
+                public void halfClose() {}
+
+                @Override
+                public void sendMessage(final ReqT message) {}
+            };
+        }
+
+        @Override
+        public String authority() {
+            return "MyServiceName";
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.indeed.grpc.consul;
+
+import com.google.common.collect.ImmutableList;
+import io.grpc.Attributes;
+import io.grpc.ConnectivityState;
+import io.grpc.ConnectivityStateInfo;
+import io.grpc.EquivalentAddressGroup;
+import io.grpc.LoadBalancer;
+import io.grpc.LoadBalancer.Subchannel;
+import io.grpc.LoadBalancer.SubchannelPicker;
+import io.grpc.ManagedChannel;
+import io.grpc.NameResolver;
+import io.grpc.Status;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ *
+ */
+public class PrewarmingLoadBalancerFactoryTest {
+    private final List<FakeSubchannel> subchannels = new ArrayList<>();
+    private final List<ConnectivityState> states = new ArrayList<>();
+
+    private LoadBalancer balancer;
+
+    @Before
+    public void setup() {
+        balancer = PrewarmingLoadBalancerFactory.newBuilder()
+                .withMaxConcurrentConnections(2)
+                .withReadyFraction(0.6)
+                .build()
+                .newLoadBalancer(new FakeHelper());
+    }
+
+    @Test
+    public void testWaves() {
+        balancer.handleResolvedAddressGroups(servers(5), Attributes.EMPTY);
+        assertEquals(2, subchannels.size());
+        assertEquals(2, requestedConnections());
+
+        // the next address is handed over once one is connected, but the channel isn't ready yet
+        connect(0, ConnectivityState.READY);
+        assertEquals(3, subchannels.size());
+        assertEquals(ConnectivityState.CONNECTING, lastState());
+
+        // or once one failed
+        connect(1, ConnectivityState.TRANSIENT_FAILURE);
+        assertEquals(4, subchannels.size());
+
+        connect(2, ConnectivityState.READY);
+        assertEquals(5, subchannels.size());
+        assertEquals(ConnectivityState.CONNECTING, lastState());
+
+        // ready with 3 out of 5 addresses connected
+        connect(3, ConnectivityState.READY);
+        assertEquals(ConnectivityState.READY, lastState());
+    }
+
+    @Test
+    public void testAllTried() {
+        balancer.handleResolvedAddressGroups(servers(2), Attributes.EMPTY);
+        connect(0, ConnectivityState.READY);
+        assertEquals(ConnectivityState.CONNECTING, lastState());
+
+        // ready once every address was tried, even if too few connected
+        connect(1, ConnectivityState.TRANSIENT_FAILURE);
+        assertEquals(ConnectivityState.READY, lastState());
+    }
+
+    @Test
+    public void testRemovedAddresses() {
+        final List<EquivalentAddressGroup> servers = servers(5);
+        balancer.handleResolvedAddressGroups(servers, Attributes.EMPTY);
+
+        // the addresses connecting are gone, the next ones are handed over
+        balancer.handleResolvedAddressGroups(servers.subList(2, 5), Attributes.EMPTY);
+        assertEquals(4, subchannels.size());
+        assertEquals(2, shutdownSubchannels());
+
+        connect(2, ConnectivityState.READY);
+        connect(3, ConnectivityState.READY);
+        assertEquals(ConnectivityState.READY, lastState());
+        assertEquals(5, subchannels.size());
+    }
+
+    private static List<EquivalentAddressGroup> servers(final int count) {
+        final ImmutableList.Builder<EquivalentAddressGroup> servers = ImmutableList.builder();
+        for (int i = 0; i < count; i++) {
+            servers.add(new EquivalentAddressGroup(new InetSocketAddress("10.0.0." + i, 8080)));
+        }
+        return servers.build();
+    }
+
+    private void connect(final int index, final ConnectivityState state) {
+        final FakeSubchannel subchannel = subchannels.get(index);
+        final ConnectivityStateInfo stateInfo = state == ConnectivityState.TRANSIENT_FAILURE
+                ? ConnectivityStateInfo.forTransientFailure(Status.UNAVAILABLE)
+                : ConnectivityStateInfo.forNonError(state);
+        balancer.handleSubchannelState(subchannel, stateInfo);
+    }
+
+    private ConnectivityState lastState() {
+        return states.get(states.size() - 1);
+    }
+
+    private int requestedConnections() {
+        return (int) subchannels.stream().filter((subchannel) -> subchannel.connectionRequested).count();
+    }
+
+    private int shutdownSubchannels() {
+        return (int) subchannels.stream().filter((subchannel) -> subchannel.shutdown).count();
+    }
+
+    private final class FakeHelper extends LoadBalancer.Helper {
+        @Override
+        public Subchannel createSubchannel(final EquivalentAddressGroup addrs, final Attributes attrs) {
+            final FakeSubchannel subchannel = new FakeSubchannel(addrs, attrs);
+            subchannels.add(subchannel);
+            return subchannel;
+        }
+
+        @Override
+        public ManagedChannel createOobChannel(final EquivalentAddressGroup eag, final String authority) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void updateBalancingState(final ConnectivityState newState, final SubchannelPicker newPicker) {
+            states.add(newState);
+        }
+
+        @Override
+        public void runSerialized(final Runnable task) {
+            task.run();
+        }
+
+        @Override
+        public NameResolver.Factory getNameResolverFactory() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String getAuthority() {
+            return "MyServiceName";
+        }
+    }
+
+    private static final class FakeSubchannel extends Subchannel {
+        private final EquivalentAddressGroup addresses;
+        private final Attributes attributes;
+        private boolean connectionRequested = false;
+        private boolean shutdown = false;
+
+        private FakeSubchannel(final EquivalentAddressGroup addresses, final Attributes attributes) {
+            this.addresses = addresses;
+            this.attributes = attributes;
+        }
+
+        @Override
+        public void shutdown() {
+            shutdown = true;
+        }
+
+        @Override
+        public void requestConnection() {
+            connectionRequested = true;
+        }
+
+        @Override
+        public EquivalentAddressGroup getAddresses() {
+            return addresses;
+        }
+
+        @Override
+        public Attributes getAttributes() {
+            return attributes;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.indeed.grpc.consul;
+
+import com.google.common.collect.Lists;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ *
+ */
+public class RequestHedgerTest {
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testSingleAttempt() throws Exception {
+        final RequestHedger hedger = new RequestHedger(executor, TimeUnit.MILLISECONDS.toNanos(10), 0);
+
+        assertEquals("a", hedger.call(Collections.singletonList(() -> "a"), (response) -> true));
+        assertEquals(0, hedger.getHedgedCount());
+    }
+
+    @Test
+    public void testSlowAttemptIsHedged() throws Exception {
+        final RequestHedger hedger = new RequestHedger(executor, TimeUnit.MILLISECONDS.toNanos(50), 0);
+        final CountDownLatch slow = new CountDownLatch(1);
+
+        final List<Callable<String>> attempts = Lists.newArrayList(
+                () -> {
+                    slow.await();
+                    return "slow";
+                },
+                () -> "fast"
+        );
+
+        final long start = System.nanoTime();
+        assertEquals("fast", hedger.call(attempts, (response) -> true));
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        assertEquals(1, hedger.getHedgedCount());
+        slow.countDown();
+    }
+
+    @Test
+    public void testCallerOnTheExecutor() throws Exception {
+        // every attempt has to wait behind the caller, which holds the only thread
+        final ExecutorService single = Executors.newSingleThreadExecutor();
+        try {
+            final RequestHedger hedger = new RequestHedger(single, TimeUnit.MILLISECONDS.toNanos(10), 0);
+            final List<Callable<String>> attempts = Lists.newArrayList(
+                    () -> {
+                        throw new IllegalStateException("failed");
+                    },
+                    () -> "second"
+            );
+
+            final String response = single.submit(() -> hedger.call(attempts, (value) -> true))
+                    .get(5, TimeUnit.SECONDS);
+            assertEquals("second", response);
+        } finally {
+            single.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFastAttemptIsNotHedged() throws Exception {
+        final RequestHedger hedger = new RequestHedger(executor, TimeUnit.SECONDS.toNanos(5), 0);
+
+        final List<Callable<String>> attempts = Lists.newArrayList(
+                () -> "first",
+                () -> "second"
+        );
+
+        assertEquals("first", hedger.call(attempts, (response) -> true));
+        assertEquals(0, hedger.getHedgedCount());
+    }
+
+    @Test
+    public void testRejectedResponse() throws Exception {
+        final RequestHedger hedger = new RequestHedger(executor, TimeUnit.SECONDS.toNanos(5), 0);
+
+        // a rejected response sends the next attempt without waiting for the delay
+        final List<Callable<String>> attempts = Lists.newArrayList(
+                () -> "stale",
+                () -> "current"
+        );
+        assertEquals("current", hedger.call(attempts, "current"::equals));
+
+        try {
+            hedger.call(attempts, "other"::equals);
+            fail("every response is rejected");
+        } catch (final RequestHedger.RejectedResponseException expected) {}
+    }
+
+    @Test
+    public void testFailedAttempt() throws Exception {
+        final RequestHedger hedger = new RequestHedger(executor, TimeUnit.SECONDS.toNanos(5), 0);
+
+        final List<Callable<String>> attempts = Lists.newArrayList(
+                () -> {
+                    throw new IllegalStateException("down");
+                },
+                () -> "up"
+        );
+        assertEquals("up", hedger.call(attempts, (response) -> true));
+
+        try {
+            hedger.call(Collections.<Callable<String>>singletonList(() -> {
+                throw new IllegalStateException("down");
+            }), (response) -> true);
+            fail("the only attempt failed");
+        } catch (final IllegalStateException expected) {}
+    }
+
+    @Test
+    public void testQuantileDelay() throws Exception {
+        final long delayNanos = TimeUnit.SECONDS.toNanos(5);
+        final RequestHedger hedger = new RequestHedger(executor, delayNanos, 0.95);
+        assertEquals(delayNanos, hedger.getHedgeDelayNanos());
+
+        for (int i = 0; i < 20; i++) {
+            hedger.call(Collections.singletonList(() -> "a"), (response) -> true);
+        }
+
+        assertTrue(hedger.getHedgeDelayNanos() < delayNanos);
+    }
+}
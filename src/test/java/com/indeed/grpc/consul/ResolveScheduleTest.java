@@ -0,0 +1,64 @@
+package com.indeed.grpc.consul;
+
+import com.indeed.grpc.consul.ResolveSchedule.Outcome;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ */
+public class ResolveScheduleTest {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void testFixed() {
+        final ResolveSchedule schedule = ResolveSchedule.fixed(1, TimeUnit.MINUTES);
+
+        for (final Outcome outcome : Outcome.values()) {
+            assertEquals(TimeUnit.MINUTES.toNanos(1), schedule.nextDelayNanos(outcome));
+        }
+    }
+
+    @Test
+    public void testAdaptive() {
+        final ResolveSchedule schedule = new ResolveSchedule(SECOND, 8 * SECOND, 0);
+
+        assertEquals(8 * SECOND, schedule.nextDelayNanos(Outcome.UNCHANGED));
+        assertEquals(SECOND, schedule.nextDelayNanos(Outcome.CHANGED));
+        assertEquals(2 * SECOND, schedule.nextDelayNanos(Outcome.UNCHANGED));
+        assertEquals(4 * SECOND, schedule.nextDelayNanos(Outcome.UNCHANGED));
+        assertEquals(SECOND, schedule.nextDelayNanos(Outcome.FAILED));
+        assertEquals(2 * SECOND, schedule.nextDelayNanos(Outcome.UNCHANGED));
+        assertEquals(4 * SECOND, schedule.nextDelayNanos(Outcome.UNCHANGED));
+        assertEquals(8 * SECOND, schedule.nextDelayNanos(Outcome.UNCHANGED));
+        assertEquals(8 * SECOND, schedule.nextDelayNanos(Outcome.UNCHANGED));
+    }
+
+    @Test
+    public void testJitter() {
+        final ResolveSchedule schedule = new ResolveSchedule(10 * SECOND, 10 * SECOND, 0.2);
+
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (int i = 0; i < 1000; i++) {
+            final long delay = schedule.nextDelayNanos(Outcome.UNCHANGED);
+            assertTrue(delay >= 8 * SECOND);
+            assertTrue(delay <= 12 * SECOND);
+
+            min = Math.min(min, delay);
+            max = Math.max(max, delay);
+        }
+
+        // the delays are actually spread out
+        assertTrue(max - min > SECOND);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidJitter() {
+        new ResolveSchedule(SECOND, SECOND, 1);
+    }
+}
@@ -0,0 +1,194 @@
+package com.indeed.grpc.metrics;
+
+import com.google.common.base.Ticker;
+import com.indeed.grpc.UtilsForTesting;
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptors;
+import io.grpc.ClientStreamTracer;
+import io.grpc.EquivalentAddressGroup;
+import io.grpc.LoadBalancer;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+import org.junit.Test;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ *
+ */
+public class ClientMetricsTest {
+    private static final String TARGET = "consul:///MyServiceName?tag=a";
+
+    private static final MethodDescriptor.Marshaller<String> MARSHALLER = new MethodDescriptor.Marshaller<String>() {
+        @Override
+        public InputStream stream(final String value) {
+            return new ByteArrayInputStream(value.getBytes());
+        }
+
+        @Override
+        public String parse(final InputStream stream) {
+            return "";
+        }
+    };
+
+    private static final MethodDescriptor<String, String> METHOD = MethodDescriptor.<String, String>newBuilder()
+            .setType(MethodDescriptor.MethodType.UNARY)
+            .setFullMethodName(MethodDescriptor.generateFullMethodName("test.MyService", "MyMethod"))
+            .setRequestMarshaller(MARSHALLER)
+            .setResponseMarshaller(MARSHALLER)
+            .build();
+
+    private final AtomicLong nanos = new AtomicLong();
+    private final Ticker ticker = new Ticker() {
+        @Override
+        public long read() {
+            return nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    };
+
+    @Test
+    public void testInterceptor() throws Exception {
+        final ClientMetrics metrics = new ClientMetrics(ticker);
+        final ClientCall<String, String> call = ClientInterceptors.intercept(new FailingChannel(), metrics.newClientInterceptor(TARGET))
+                .newCall(METHOD, CallOptions.DEFAULT);
+
+        final AtomicReference<Status> closed = new AtomicReference<>();
+        call.start(new ClientCall.Listener<String>() {
+            @Override
+            public void onClose(final Status status, final Metadata trailers) {
+                closed.set(status);
+            }
+        }, new Metadata());
+        assertEquals(Status.Code.UNAVAILABLE, closed.get().getCode());
+
+        final TargetMetrics targetMetrics = metrics.getTargetMetrics(TARGET);
+        assertNotNull(targetMetrics);
+        assertEquals(1, targetMetrics.getTotal().getCallCount());
+        assertEquals(1, targetMetrics.getTotal().getFailureCount());
+        assertEquals(42, targetMetrics.getTotal().getBytesSent());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(1), targetMetrics.getTotal().getLatency().getMaxNanos());
+        assertEquals(1, targetMetrics.getAddressMetrics(FailingChannel.ADDRESS).getCallCount());
+    }
+
+    @Test
+    public void testTargetsOfTheSameService() {
+        final ClientMetrics metrics = new ClientMetrics(ticker);
+        final Channel first = ClientInterceptors.intercept(new FailingChannel(), metrics.newClientInterceptor(TARGET));
+        final Channel second = ClientInterceptors.intercept(
+                new FailingChannel(), metrics.newClientInterceptor("consul:///MyServiceName?tag=b")
+        );
+
+        first.newCall(METHOD, CallOptions.DEFAULT).start(new ClientCall.Listener<String>() {}, new Metadata());
+        first.newCall(METHOD, CallOptions.DEFAULT).start(new ClientCall.Listener<String>() {}, new Metadata());
+        second.newCall(METHOD, CallOptions.DEFAULT).start(new ClientCall.Listener<String>() {}, new Metadata());
+
+        // same authority, but resolved to different addresses
+        assertEquals(2, metrics.getTargetMetrics(TARGET).getTotal().getCallCount());
+        assertEquals(1, metrics.getTargetMetrics("consul:///MyServiceName?tag=b").getTotal().getCallCount());
+        assertNull(metrics.getTargetMetrics("MyServiceName"));
+    }
+
+    @Test
+    public void testAddresses() {
+        final ClientMetrics metrics = new ClientMetrics(ticker);
+        final InetSocketAddress first = new InetSocketAddress("127.0.0.1", 8080);
+        final InetSocketAddress second = new InetSocketAddress("127.0.0.1", 8081);
+
+        // tracked as calls are made until resolved
+        final TargetMetrics targetMetrics = metrics.getOrCreateTargetMetrics("MyServiceName");
+        targetMetrics.record(new EquivalentAddressGroup(first), 10, true, 100, 200);
+        assertEquals(1, targetMetrics.getAddressMetrics(first).getCallCount());
+        assertEquals(100, targetMetrics.getAddressMetrics(first).getBytesSent());
+        assertEquals(200, targetMetrics.getAddressMetrics(first).getBytesReceived());
+
+        // then only the published addresses are
+        metrics.updateAddresses("MyServiceName", Collections.singletonList(new EquivalentAddressGroup(second)));
+        assertNull(targetMetrics.getAddressMetrics(first));
+        assertEquals(0, targetMetrics.getAddressMetrics(second).getCallCount());
+
+        targetMetrics.record(new EquivalentAddressGroup(first), 10, false, 0, 0);
+        targetMetrics.record(new EquivalentAddressGroup(second), 10, false, 0, 0);
+        assertNull(targetMetrics.getAddressMetrics(first));
+        assertEquals(1, targetMetrics.getAddressMetrics(second).getFailureCount());
+        assertEquals(3, targetMetrics.getTotal().getCallCount());
+
+        metrics.updateAddresses("MyServiceName", Arrays.asList(
+                new EquivalentAddressGroup(first),
+                new EquivalentAddressGroup(second)
+        ));
+        assertEquals(2, targetMetrics.getAddressMetrics().size());
+        assertEquals(1, targetMetrics.getAddressMetrics(second).getCallCount());
+
+        // every address of the picked group is recorded, calls without a pick only count in total
+        targetMetrics.record(new EquivalentAddressGroup(Arrays.<SocketAddress>asList(first, second)), 10, true, 0, 0);
+        targetMetrics.record(null, 10, true, 0, 0);
+        assertEquals(1, targetMetrics.getAddressMetrics(first).getCallCount());
+        assertEquals(2, targetMetrics.getAddressMetrics(second).getCallCount());
+        assertEquals(5, targetMetrics.getTotal().getCallCount());
+    }
+
+    /**
+     * Picks a subchannel for every call like a channel balancing with an
+     * {@link com.indeed.grpc.AddressTrackingLoadBalancerFactory} would, then
+     * fails the call after reporting the wire size of the request to the
+     * stream tracers of the call.
+     */
+    private static final class FailingChannel extends Channel {
+        private static final InetSocketAddress ADDRESS = new InetSocketAddress("127.0.0.1", 8080);
+
+        private final LoadBalancer.SubchannelPicker picker = UtilsForTesting.newTrackingPicker(
+                new EquivalentAddressGroup(ADDRESS)
+        );
+
+        @Override
+        public <ReqT, RespT> ClientCall<ReqT, RespT> newCall(
+                final MethodDescriptor<ReqT, RespT> methodDescriptor,
+                final CallOptions callOptions
+        ) {
+            UtilsForTesting.pick(picker, methodDescriptor, callOptions);
+
+            return new ClientCall<ReqT, RespT>() {
+                @Override
+                public void start(final Listener<RespT> responseListener, final Metadata headers) {
+                    for (final ClientStreamTracer.Factory factory : callOptions.getStreamTracerFactories()) {
+                        factory.newClientStreamTracer(callOptions, headers).outboundWireSize(42);
+                    }
+                    responseListener.onClose(Status.UNAVAILABLE, new Metadata());
+                }
+
+                @Override
+                public void request(final int numMessages) {}
+
+                @Override
+                public void cancel(@Nullable final String message, @Nullable final Throwable cause) {}
+
+                @Override
+                public void halfClose() {}
+
+                @Override
+                public void sendMessage(final ReqT message) {}
+            };
+        }
+
+        @Override
+        public String authority() {
+            return "MyServiceName";
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.indeed.grpc.metrics;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ */
+public class LatencyHistogramTest {
+    @Test
+    public void testBuckets() {
+        int previousIndex = -1;
+        for (long value = 0; value < 100_000; value++) {
+            final int index = LatencyHistogram.bucketIndex(value);
+            assertTrue(index == previousIndex || index == previousIndex + 1);
+            assertTrue(value <= LatencyHistogram.bucketUpperBound(index));
+            if (index > 0) {
+                assertTrue(value > LatencyHistogram.bucketUpperBound(index - 1));
+            }
+            previousIndex = index;
+        }
+
+        // out of range values end up in the last bucket
+        assertEquals(LatencyHistogram.bucketIndex(TimeUnit.DAYS.toNanos(1)), LatencyHistogram.bucketIndex(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testQuantiles() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.snapshot().getValueAtQuantile(0.99));
+
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(i));
+        }
+
+        final LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(1000), snapshot.getMaxNanos());
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(1001) / 2, snapshot.getMeanNanos());
+
+        // within the precision of the buckets
+        assertWithin(TimeUnit.MICROSECONDS.toNanos(500), snapshot.getValueAtQuantile(0.5));
+        assertWithin(TimeUnit.MICROSECONDS.toNanos(990), snapshot.getValueAtQuantile(0.99));
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(1000), snapshot.getValueAtQuantile(1));
+        assertEquals(990, snapshot.getValueAtQuantile(0.99, TimeUnit.MICROSECONDS), 990 * 0.07);
+    }
+
+    @Test
+    public void testNegativeLatency() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-1);
+        assertEquals(1, histogram.snapshot().getCount());
+        assertEquals(0, histogram.snapshot().getValueAtQuantile(1));
+    }
+
+    private static void assertWithin(final long expected, final long actual) {
+        assertTrue(expected + " ~ " + actual, actual >= expected && actual <= expected * 1.07);
+    }
+}
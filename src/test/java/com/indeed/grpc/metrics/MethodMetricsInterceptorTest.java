@@ -0,0 +1,136 @@
+package com.indeed.grpc.metrics;
+
+import com.google.common.base.Ticker;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.Status;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ *
+ */
+public class MethodMetricsInterceptorTest {
+    private static final MethodDescriptor.Marshaller<String> MARSHALLER = new MethodDescriptor.Marshaller<String>() {
+        @Override
+        public InputStream stream(final String value) {
+            return new ByteArrayInputStream(value.getBytes());
+        }
+
+        @Override
+        public String parse(final InputStream stream) {
+            throw new UnsupportedOperationException();
+        }
+    };
+
+    private static final MethodDescriptor<String, String> METHOD = MethodDescriptor.<String, String>newBuilder()
+            .setType(MethodDescriptor.MethodType.UNARY)
+            .setFullMethodName(MethodDescriptor.generateFullMethodName("test.MyService", "MyMethod"))
+            .setRequestMarshaller(MARSHALLER)
+            .setResponseMarshaller(MARSHALLER)
+            .build();
+
+    private static final MethodDescriptor<String, String> UNKNOWN_METHOD = METHOD.toBuilder()
+            .setFullMethodName(MethodDescriptor.generateFullMethodName("test.MyService", "Unknown"))
+            .build();
+
+    private static final ServerCallHandler<String, String> HANDLER = (call, headers) -> new ServerCall.Listener<String>() {};
+
+    private final AtomicReference<ServerCall<String, String>> handled = new AtomicReference<>();
+    private final ServerCallHandler<String, String> capturingHandler = (call, headers) -> {
+        handled.set(call);
+        return new ServerCall.Listener<String>() {};
+    };
+
+    private final AtomicLong nanos = new AtomicLong();
+    private final Ticker ticker = new Ticker() {
+        @Override
+        public long read() {
+            return nanos.get();
+        }
+    };
+
+    private final MethodMetricsInterceptor interceptor = new MethodMetricsInterceptor(
+            Collections.singletonList(ServerServiceDefinition.builder("test.MyService").addMethod(METHOD, HANDLER).build()),
+            ticker
+    );
+
+    @Test
+    public void testRecordedCalls() {
+        final MethodMetrics metrics = interceptor.getMethodMetrics("test.MyService/MyMethod");
+        assertNotNull(metrics);
+        assertEquals(1, interceptor.getMethodMetrics().size());
+
+        interceptor.interceptCall(new TestCall(METHOD), new Metadata(), capturingHandler);
+        assertEquals(1, metrics.getInFlight());
+
+        nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(5));
+        handled.get().close(Status.OK, new Metadata());
+        assertEquals(0, metrics.getInFlight());
+        assertEquals(0, metrics.getFailedCount());
+        assertEquals(1, metrics.getLatency().getCount());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(5), metrics.getLatency().getMaxNanos());
+
+        // cancelled, then closed, counted once
+        final ServerCall.Listener<String> listener = interceptor.interceptCall(
+                new TestCall(METHOD), new Metadata(), capturingHandler
+        );
+        listener.onCancel();
+        handled.get().close(Status.CANCELLED, new Metadata());
+        assertEquals(0, metrics.getInFlight());
+        assertEquals(1, metrics.getFailedCount());
+        assertEquals(2, metrics.getLatency().getCount());
+    }
+
+    @Test
+    public void testUnknownMethod() {
+        interceptor.interceptCall(new TestCall(UNKNOWN_METHOD), new Metadata(), capturingHandler);
+        handled.get().close(Status.OK, new Metadata());
+
+        assertNull(interceptor.getMethodMetrics("test.MyService/Unknown"));
+        assertEquals(0, interceptor.getMethodMetrics("test.MyService/MyMethod").getLatency().getCount());
+    }
+
+    private static final class TestCall extends ServerCall<String, String> {
+        private final MethodDescriptor<String, String> method;
+
+        private TestCall(final MethodDescriptor<String, String> method) {
+            this.method = method;
+        }
+
+        @Override
+        public void request(final int numMessages) {}
+
+        @Override
+        public void sendHeaders(final Metadata headers) {}
+
+        @Override
+        public void sendMessage(final String message) {}
+
+        @Override
+        public void close(final Status status, final Metadata trailers) {}
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public MethodDescriptor<String, String> getMethodDescriptor() {
+            return method;
+        }
+    }
+}
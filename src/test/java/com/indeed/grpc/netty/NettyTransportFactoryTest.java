@@ -0,0 +1,88 @@
+package com.indeed.grpc.netty;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.util.SelfSignedCertificate;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ */
+public class NettyTransportFactoryTest {
+    @Test
+    public void testDetect() {
+        // netty-transport-native-epoll isn't a dependency
+        assertSame(NettyTransportFactory.Transport.NIO, NettyTransportFactory.Transport.detect());
+        try (NettyTransportFactory factory = NettyTransportFactory.newBuilder().build()) {
+            assertFalse(factory.isEpoll());
+        }
+    }
+
+    @Test
+    public void testSharedEventLoopGroup() {
+        final NettyTransportFactory first = NettyTransportFactory.newBuilder().build();
+        final NettyTransportFactory second = NettyTransportFactory.newBuilder().build();
+        assertSame(first.getEventLoopGroup(), second.getEventLoopGroup());
+        assertEquals(2, SharedResources.getReferenceCount(SharedResources.EVENT_LOOP_GROUP));
+
+        first.close();
+        first.close();
+        assertEquals(1, SharedResources.getReferenceCount(SharedResources.EVENT_LOOP_GROUP));
+        assertFalse(second.getEventLoopGroup().isShuttingDown());
+
+        second.close();
+        assertEquals(0, SharedResources.getReferenceCount(SharedResources.EVENT_LOOP_GROUP));
+        assertTrue(second.getEventLoopGroup().isShuttingDown());
+    }
+
+    @Test
+    public void testChannelAndServer() throws Exception {
+        final NioEventLoopGroup eventLoopGroup = new NioEventLoopGroup(1);
+        try {
+            final NettyTransportFactory factory = NettyTransportFactory.newBuilder()
+                    .withEventLoopGroup(eventLoopGroup)
+                    .withFlowControlWindow(1024 * 1024)
+                    .withKeepAlive(1, 1, TimeUnit.MINUTES)
+                    .withClientKeepAlive(true)
+                    .build();
+            assertSame(eventLoopGroup, factory.getEventLoopGroup());
+
+            final Server server = factory.newServerBuilder(0).build().start();
+            final ManagedChannel channel = factory.newChannelBuilder("localhost:" + server.getPort()).build();
+
+            channel.shutdownNow();
+            server.shutdownNow();
+            assertTrue(channel.awaitTermination(5, TimeUnit.SECONDS));
+            assertTrue(server.awaitTermination(5, TimeUnit.SECONDS));
+        } finally {
+            eventLoopGroup.shutdownGracefully(0, 0, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidFlowControlWindow() {
+        NettyTransportFactory.newBuilder().withFlowControlWindow(0);
+    }
+
+    @Test
+    public void testClientKeepAliveIsOptIn() {
+        // servers outside of the factory would close the connections of clients pinging every 30 seconds
+        final NettyTransportFactory.Builder builder = NettyTransportFactory.newBuilder();
+        assertFalse(builder.isClientKeepAlive());
+        assertTrue(builder.withClientKeepAlive(true).isClientKeepAlive());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidKeepAlive() {
+        NettyTransportFactory.newBuilder().withKeepAlive(30, 0, TimeUnit.SECONDS);
+    }
+}
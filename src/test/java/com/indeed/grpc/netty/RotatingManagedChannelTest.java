@@ -0,0 +1,68 @@
+package com.indeed.grpc.netty;
+
+import io.grpc.ManagedChannel;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.util.SelfSignedCertificate;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ */
+public class RotatingManagedChannelTest {
+    @Test
+    public void testRotation() throws Exception {
+        final SslContextReloader reloader = new SslContextReloader(RotatingManagedChannelTest::newSslContext);
+        final ScheduledExecutorService timerService = Executors.newSingleThreadScheduledExecutor();
+
+        final List<ManagedChannel> created = new CopyOnWriteArrayList<>();
+        final RotatingManagedChannel channel = new RotatingManagedChannel(
+                () -> {
+                    final ManagedChannel managedChannel = InProcessChannelBuilder.forName("test").build();
+                    created.add(managedChannel);
+                    return managedChannel;
+                },
+                reloader,
+                timerService,
+                0, TimeUnit.SECONDS
+        );
+        assertEquals(1, created.size());
+
+        // a new certificate is a rotation
+        assertTrue(reloader.load());
+        timerService.submit(() -> {}).get();
+
+        assertEquals(2, created.size());
+        assertTrue(created.get(0).isShutdown());
+        assertFalse(created.get(1).isShutdown());
+
+        channel.shutdown();
+        assertTrue(channel.isShutdown());
+        assertTrue(created.get(1).isShutdown());
+        assertTrue(channel.awaitTermination(5, TimeUnit.SECONDS));
+
+        // no rotation once shut down
+        assertTrue(reloader.load());
+        timerService.submit(() -> {}).get();
+        assertEquals(2, created.size());
+
+        timerService.shutdown();
+    }
+
+    private static SslContext newSslContext() throws Exception {
+        // a new certificate on every load
+        final SelfSignedCertificate certificate = new SelfSignedCertificate();
+        return SslContextBuilder.forClient().keyManager(certificate.key(), certificate.cert()).build();
+    }
+}
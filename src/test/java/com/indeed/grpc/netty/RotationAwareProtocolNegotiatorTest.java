@@ -0,0 +1,51 @@
+package com.indeed.grpc.netty;
+
+import io.grpc.netty.ProtocolNegotiator;
+import io.netty.channel.ChannelHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.AsciiString;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ */
+public class RotationAwareProtocolNegotiatorTest {
+    private static final class TestHandler extends ChannelHandlerAdapter implements ProtocolNegotiator.Handler {
+        @Override
+        public AsciiString scheme() {
+            return AsciiString.of("https");
+        }
+    }
+
+    @Test
+    public void testRetireConnections() {
+        final RotationAwareProtocolNegotiator negotiator = new RotationAwareProtocolNegotiator(
+                (grpcHandler) -> new TestHandler(), 0, TimeUnit.SECONDS
+        );
+
+        final ProtocolNegotiator.Handler handler = negotiator.newHandler(null);
+        assertEquals(AsciiString.of("https"), handler.scheme());
+
+        final EmbeddedChannel channel = new EmbeddedChannel(handler);
+        assertEquals(1, negotiator.getConnectionCount());
+
+        // the tracking handler replaced itself with the delegate's handler
+        assertNull(channel.pipeline().get(handler.getClass()));
+        assertNotNull(channel.pipeline().get(TestHandler.class));
+
+        negotiator.retireConnections();
+        assertTrue(channel.isOpen());
+
+        channel.runScheduledPendingTasks();
+        assertFalse(channel.isOpen());
+        assertEquals(0, negotiator.getConnectionCount());
+    }
+}
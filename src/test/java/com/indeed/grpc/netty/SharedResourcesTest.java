@@ -0,0 +1,95 @@
+package com.indeed.grpc.netty;
+
+import org.junit.Test;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ */
+public class SharedResourcesTest {
+    private static final class CountingResource implements SharedResources.Resource<Object> {
+        private final AtomicInteger created = new AtomicInteger();
+        private final AtomicInteger closed = new AtomicInteger();
+
+        @Override
+        public Object create() {
+            created.incrementAndGet();
+            return new Object();
+        }
+
+        @Override
+        public void close(final Object instance) {
+            closed.incrementAndGet();
+        }
+    }
+
+    @Test
+    public void testReferenceCounting() {
+        final CountingResource resource = new CountingResource();
+
+        final Object first = SharedResources.get(resource);
+        final Object second = SharedResources.get(resource);
+        assertSame(first, second);
+        assertEquals(1, resource.created.get());
+        assertEquals(2, SharedResources.getReferenceCount(resource));
+
+        SharedResources.release(resource, first);
+        assertEquals(0, resource.closed.get());
+        assertEquals(1, SharedResources.getReferenceCount(resource));
+
+        SharedResources.release(resource, second);
+        assertEquals(1, resource.closed.get());
+        assertEquals(0, SharedResources.getReferenceCount(resource));
+
+        // a new instance once the previous one was closed
+        final Object third = SharedResources.get(resource);
+        assertNotSame(first, third);
+        assertEquals(2, resource.created.get());
+        SharedResources.release(resource, third);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testReleaseUnused() {
+        SharedResources.release(new CountingResource(), new Object());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReleaseWrongInstance() {
+        final CountingResource resource = new CountingResource();
+        final Object instance = SharedResources.get(resource);
+        try {
+            SharedResources.release(resource, new Object());
+        } finally {
+            SharedResources.release(resource, instance);
+        }
+    }
+
+    @Test
+    public void testScheduler() {
+        final int references = SharedResources.getReferenceCount(SharedResources.SCHEDULER);
+        final ScheduledExecutorService scheduler = SharedResources.get(SharedResources.SCHEDULER);
+        assertEquals(references + 1, SharedResources.getReferenceCount(SharedResources.SCHEDULER));
+
+        SharedResources.release(SharedResources.SCHEDULER, scheduler);
+        assertEquals(references, SharedResources.getReferenceCount(SharedResources.SCHEDULER));
+        assertEquals(references == 0, scheduler.isShutdown());
+    }
+
+    @Test
+    public void testVirtualThreadSupport() {
+        final String version = System.getProperty("java.specification.version");
+        if (version.startsWith("1.")) {
+            assertFalse(SharedResources.isVirtualThreadSupported());
+        } else if (Integer.parseInt(version) >= 21) {
+            assertTrue(SharedResources.isVirtualThreadSupported());
+        }
+    }
+}
@@ -5,9 +5,17 @@ import io.netty.buffer.ByteBufAllocator;
 import io.netty.handler.ssl.ClientAuth;
 import io.netty.handler.ssl.JdkSslContext;
 import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.util.SelfSignedCertificate;
 import org.junit.Test;
 
 import javax.net.ssl.SSLContext;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.indeed.grpc.UtilsForTesting.expectNullPointerException;
 import static org.junit.Assert.assertEquals;
@@ -76,4 +84,179 @@ public class SslContextReloaderTest {
         expectNullPointerException(() -> context.newEngine(ByteBufAllocator.DEFAULT));
         expectNullPointerException(() -> context.newEngine(ByteBufAllocator.DEFAULT, "localhost", 1234));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testRotationListener() throws Exception {
+        final SelfSignedCertificate certificate = new SelfSignedCertificate();
+        final SelfSignedCertificate other = new SelfSignedCertificate();
+        final AtomicBoolean rotated = new AtomicBoolean(false);
+
+        final AtomicInteger rotations = new AtomicInteger();
+        final SslContextReloader reloader = new SslContextReloader(() -> {
+            final SelfSignedCertificate current = rotated.get() ? other : certificate;
+            return SslContextBuilder.forServer(current.key(), current.cert()).build();
+        });
+        final Runnable listener = rotations::incrementAndGet;
+        reloader.addRotationListener(listener);
+
+        rotated.set(true);
+        assertTrue(reloader.load());
+        assertEquals(1, rotations.get());
+
+        reloader.removeRotationListener(listener);
+        rotated.set(false);
+        assertTrue(reloader.load());
+        assertEquals(1, rotations.get());
+    }
+
+    @Test
+    public void testUnchangedCertificateIsNotARotation() throws Exception {
+        final SelfSignedCertificate certificate = new SelfSignedCertificate();
+
+        final AtomicInteger rotations = new AtomicInteger();
+        final SslContextReloader reloader = new SslContextReloader(() -> SslContextBuilder
+                .forServer(certificate.key(), certificate.cert())
+                .build());
+        reloader.addRotationListener(rotations::incrementAndGet);
+
+        // a new context of the same certificate and key
+        assertTrue(reloader.load());
+        assertTrue(reloader.load());
+        assertEquals(0, rotations.get());
+
+        // the same goes for clients without a certificate
+        final SslContextReloader clientReloader = new SslContextReloader(() -> SslContextBuilder.forClient().build());
+        clientReloader.addRotationListener(rotations::incrementAndGet);
+        assertTrue(clientReloader.load());
+        assertEquals(0, rotations.get());
+    }
+
+    @Test
+    public void testAsyncLoad() throws Exception {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final SslContextReloader reloader = new SslContextReloader("async", () -> {
+                return new JdkSslContext(SSLContext.getDefault(), true, ClientAuth.REQUIRE);
+            }, executor);
+
+            // shares the first load started by the constructor, or starts a new one
+            reloader.loadAsync().get(5, TimeUnit.SECONDS);
+            assertEquals(ReloadState.RELOADED, reloader.getReloadState());
+            assertTrue(reloader.get().isClient());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testInvalidContextIsNotSwapped() throws Exception {
+        final SelfSignedCertificate certificate = new SelfSignedCertificate();
+        final SelfSignedCertificate other = new SelfSignedCertificate();
+        final AtomicBoolean broken = new AtomicBoolean(false);
+
+        final SslContextReloader reloader = new SslContextReloader(() -> SslContextBuilder
+                .forServer(broken.get() ? other.key() : certificate.key(), certificate.cert())
+                .build());
+        assertEquals(ReloadState.RELOADED, reloader.getReloadState());
+
+        broken.set(true);
+        assertFalse(reloader.load());
+        assertEquals(ReloadState.FAILED, reloader.getReloadState());
+
+        // the previous context is still in use
+        assertFalse(reloader.get().isClient());
+    }
+
+    @Test
+    public void testCertificateExpiry() throws Exception {
+        final SelfSignedCertificate certificate = new SelfSignedCertificate();
+        final SslContextReloader reloader = new SslContextReloader(() -> SslContextBuilder
+                .forServer(certificate.key(), certificate.cert())
+                .build());
+
+        assertEquals(certificate.cert().getNotAfter().getTime(), reloader.getCertificateNotAfterMillis());
+        assertTrue(reloader.getMillisUntilCertificateExpiry() > 0);
+
+        // the certificate a client presents is tracked too
+        final SelfSignedCertificate clientCertificate = new SelfSignedCertificate();
+        final SslContextReloader clientReloader = new SslContextReloader(() -> SslContextBuilder
+                .forClient()
+                .keyManager(clientCertificate.key(), clientCertificate.cert())
+                .build());
+        assertEquals(clientCertificate.cert().getNotAfter().getTime(), clientReloader.getCertificateNotAfterMillis());
+        assertTrue(clientReloader.getMillisUntilCertificateExpiry() > 0);
+
+        // no certificate to track for a client without a key manager
+        final SslContextReloader anonymousReloader = new SslContextReloader(() -> SslContextBuilder.forClient().build());
+        assertEquals(0, anonymousReloader.getCertificateNotAfterMillis());
+        assertEquals(-1, anonymousReloader.getMillisUntilCertificateExpiry());
+    }
+
+    @Test
+    public void testComputeReloadDelay() {
+        final long min = TimeUnit.MINUTES.toMillis(1);
+        final long max = TimeUnit.HOURS.toMillis(1);
+
+        // unknown expiry
+        assertEquals(max, SslContextReloader.computeReloadDelayMillis(1000, 0, min, max));
+        // far from expiry
+        assertEquals(max, SslContextReloader.computeReloadDelayMillis(0, TimeUnit.DAYS.toMillis(30), min, max));
+        // nearing expiry
+        assertEquals(TimeUnit.MINUTES.toMillis(10), SslContextReloader.computeReloadDelayMillis(0, TimeUnit.MINUTES.toMillis(40), min, max));
+        // expired
+        assertEquals(min, SslContextReloader.computeReloadDelayMillis(1000, 500, min, max));
+    }
+
+    @Test
+    public void testScheduledReloads() throws Exception {
+        final AtomicInteger loads = new AtomicInteger(0);
+        final SslContextReloader reloader = new SslContextReloader(() -> {
+            loads.incrementAndGet();
+            return SslContextBuilder.forClient().build();
+        });
+
+        final ScheduledExecutorService timerService = Executors.newSingleThreadScheduledExecutor();
+        try {
+            reloader.scheduleReloads(timerService, 1, 1, TimeUnit.MILLISECONDS);
+
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (loads.get() < 4 && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+            assertTrue(loads.get() >= 4);
+
+            reloader.cancelScheduledReloads();
+            // a reload may already be running when cancelled
+            Thread.sleep(50);
+            final int cancelledAt = loads.get();
+            Thread.sleep(50);
+            assertEquals(cancelledAt, loads.get());
+        } finally {
+            timerService.shutdown();
+        }
+    }
+
+    @Test
+    public void testSharedScheduledReloads() throws Exception {
+        final AtomicInteger loads = new AtomicInteger(0);
+        final SslContextReloader reloader = new SslContextReloader(() -> {
+            loads.incrementAndGet();
+            return SslContextBuilder.forClient().build();
+        });
+
+        final int references = SharedResources.getReferenceCount(SharedResources.SCHEDULER);
+        reloader.scheduleReloads(1, 1, TimeUnit.MILLISECONDS);
+        // rescheduling releases the scheduler held by the previous schedule
+        reloader.scheduleReloads(1, 1, TimeUnit.MILLISECONDS);
+        assertEquals(references + 1, SharedResources.getReferenceCount(SharedResources.SCHEDULER));
+
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (loads.get() < 4 && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertTrue(loads.get() >= 4);
+
+        reloader.cancelScheduledReloads();
+        assertEquals(references, SharedResources.getReferenceCount(SharedResources.SCHEDULER));
+    }
+}
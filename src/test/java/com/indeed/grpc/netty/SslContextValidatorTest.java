@@ -0,0 +1,98 @@
+package com.indeed.grpc.netty;
+
+import io.netty.handler.ssl.ClientAuth;
+import io.netty.handler.ssl.JdkSslContext;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.util.SelfSignedCertificate;
+import org.junit.Test;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+import java.security.cert.CertificateExpiredException;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ *
+ */
+public class SslContextValidatorTest {
+    @Test
+    public void testValidServer() throws Exception {
+        final SelfSignedCertificate certificate = new SelfSignedCertificate();
+        final SslContext context = SslContextBuilder.forServer(certificate.key(), certificate.cert())
+                .clientAuth(ClientAuth.REQUIRE)
+                .build();
+
+        final X509Certificate presented = SslContextValidator.validate(context, new Date());
+        assertEquals(certificate.cert(), presented);
+    }
+
+    @Test(expected = CertificateExpiredException.class)
+    public void testExpiredServer() throws Exception {
+        final long now = System.currentTimeMillis();
+        final SelfSignedCertificate certificate = new SelfSignedCertificate(
+                new Date(now - TimeUnit.DAYS.toMillis(2)),
+                new Date(now - TimeUnit.DAYS.toMillis(1))
+        );
+        final SslContext context = SslContextBuilder.forServer(certificate.key(), certificate.cert()).build();
+
+        SslContextValidator.validate(context, new Date(now));
+    }
+
+    @Test(expected = SSLException.class)
+    public void testMismatchedKey() throws Exception {
+        final SelfSignedCertificate certificate = new SelfSignedCertificate();
+        final SelfSignedCertificate other = new SelfSignedCertificate();
+        final SslContext context = SslContextBuilder.forServer(other.key(), certificate.cert()).build();
+
+        SslContextValidator.validate(context, new Date());
+    }
+
+    @Test
+    public void testClient() throws Exception {
+        final SslContext context = new JdkSslContext(SSLContext.getDefault(), true, ClientAuth.NONE);
+
+        assertNull(SslContextValidator.validate(context, new Date()));
+    }
+
+    @Test
+    public void testClientWithKeyManager() throws Exception {
+        final SelfSignedCertificate certificate = new SelfSignedCertificate();
+        final SslContext context = SslContextBuilder.forClient()
+                .keyManager(certificate.key(), certificate.cert())
+                .build();
+
+        final X509Certificate presented = SslContextValidator.validate(context, new Date());
+        assertEquals(certificate.cert(), presented);
+    }
+
+    @Test(expected = CertificateExpiredException.class)
+    public void testExpiredClient() throws Exception {
+        final long now = System.currentTimeMillis();
+        final SelfSignedCertificate certificate = new SelfSignedCertificate(
+                new Date(now - TimeUnit.DAYS.toMillis(2)),
+                new Date(now - TimeUnit.DAYS.toMillis(1))
+        );
+        final SslContext context = SslContextBuilder.forClient()
+                .keyManager(certificate.key(), certificate.cert())
+                .build();
+
+        SslContextValidator.validate(context, new Date(now));
+    }
+
+    @Test(expected = SSLException.class)
+    public void testClientWithMismatchedKey() throws Exception {
+        final SelfSignedCertificate certificate = new SelfSignedCertificate();
+        final SelfSignedCertificate other = new SelfSignedCertificate();
+        final SslContext context = SslContextBuilder.forClient()
+                .keyManager(other.key(), certificate.cert())
+                .build();
+
+        SslContextValidator.validate(context, new Date());
+    }
+}